@@ -90,6 +90,8 @@ import javax.xml.stream.*;
 import javax.xml.namespace.QName;
 
 import org.dike.hdfs.NdpHdfsFileSystem;
+import org.dike.hdfs.NdpParallelInputStream;
+import org.dike.hdfs.NdpReadParamTemplate;
 
 public class DikeClient
 {
@@ -126,18 +128,47 @@ public class DikeClient
 
     public static String getReadParam(String name,
                                       long blockSize) throws XMLStreamException
+    {
+        return getReadParam(name, blockSize, 0);
+    }
+
+    // The file name picks the processor, dikeSQL reads the file itself
+    // from the request URL
+    public static String getReadParam(String name, long blockSize,
+                                      int rowGroupIndex) throws XMLStreamException
     {
         if(name.endsWith(".csv")) {
             return getCsvReadParam(name, blockSize);
         } else if(name.endsWith(".parquet")) {
-            return getParquetReadParam(name, blockSize);
+            return getParquetReadParam(name, rowGroupIndex);
         }
         return null;
     }
  
 
-    public static String getCsvReadParam(String name,
+    // ReadParams only differ in BlockSize and RowGroupIndex, serialize them once
+    private static NdpReadParamTemplate csvReadParam = null;
+    private static NdpReadParamTemplate parquetReadParam = null;
+
+    public static synchronized String getCsvReadParam(String name,
                                       long blockSize) throws XMLStreamException 
+    {
+        if (csvReadParam == null) {
+            csvReadParam = NdpReadParamTemplate.compile(buildCsvReadParam(), "BlockSize");
+        }
+        return csvReadParam.bind("BlockSize", blockSize);
+    }
+
+    public static synchronized String getParquetReadParam(String name,
+                                      int rowGroupIndex) throws XMLStreamException 
+    {
+        if (parquetReadParam == null) {
+            parquetReadParam = NdpReadParamTemplate.compile(buildParquetReadParam(), "RowGroupIndex");
+        }
+        return parquetReadParam.bind("RowGroupIndex", rowGroupIndex);
+    }
+
+    private static String buildCsvReadParam() throws XMLStreamException 
     {
         XMLOutputFactory xmlof = XMLOutputFactory.newInstance();
         StringWriter strw = new StringWriter();
@@ -163,7 +194,7 @@ public class DikeClient
         xmlw.writeEndElement(); // Query
 
         xmlw.writeStartElement("BlockSize");
-        xmlw.writeCharacters(String.valueOf(blockSize));
+        xmlw.writeCharacters("0");
         xmlw.writeEndElement(); // BlockSize
 
         xmlw.writeStartElement("HeaderInfo");
@@ -178,8 +209,7 @@ public class DikeClient
         return strw.toString();
     }
 
-    public static String getParquetReadParam(String name,
-                                      long blockSize) throws XMLStreamException 
+    private static String buildParquetReadParam() throws XMLStreamException 
     {
         XMLOutputFactory xmlof = XMLOutputFactory.newInstance();
         StringWriter strw = new StringWriter();
@@ -224,12 +254,20 @@ public class DikeClient
         return strw.toString();
     }
 
+    // Pushdown and partitioned reads need the ndphdfs:// file system
+    static NdpHdfsFileSystem ndpFileSystem(FileSystem fs) throws IOException {
+        if (!(fs instanceof NdpHdfsFileSystem)) {
+            throw new IOException("Pushdown needs an ndphdfs:// path, not " + fs.getScheme() + "://");
+        }
+        return (NdpHdfsFileSystem) fs;
+    }
+
     public static void perfTest(Path fsPath, String fname, Configuration conf)
     {
         perfTest(fsPath, fname, conf, false, false);
     }
 
-    public static void perfTest(Path fsPath, String fname, Configuration conf, Boolean pushdown, Boolean partitionned)
+    public static void perfTest(Path fsPath, final String fname, Configuration conf, Boolean pushdown, Boolean partitionned)
     {
         InputStream input = null;
         Path fileToRead = new Path(fname);
@@ -262,33 +300,30 @@ public class DikeClient
             FSDataInputStream dataInputStream = null;
 
             if (partitionned) { 
-                BlockLocation[] locs = fs.getFileBlockLocations(fileToRead, 0, Long.MAX_VALUE);                            
-                for (int i  = 0; i < locs.length; i++) {
-                    System.out.format("%d off=%d size=%d\n", i, locs[i].getOffset(), locs[i].getLength());
-
-                    readParam = getReadParam(fname, locs[i].getLength());
-
-                    if(fs.getScheme() == "ndphdfs"){
-                        dikeFS = (NdpHdfsFileSystem)fs;
-                        dataInputStream = dikeFS.open(fileToRead, 128 << 10, readParam);                    
-                    }
+                dikeFS = ndpFileSystem(fs);
+                NdpParallelInputStream parallelStream = dikeFS.openBlocks(fileToRead, 128 << 10,
+                    new NdpHdfsFileSystem.BlockReadParam() {
+                        @Override
+                        public String getReadParam(BlockLocation location) throws IOException {
+                            try {
+                                return DikeClient.getReadParam(fname, location.getLength());
+                            } catch (XMLStreamException ex) {
+                                throw new IOException(ex);
+                            }
+                        }
+                    });
+                Iterator<NdpParallelInputStream.BlockStream> blocks = parallelStream.blocks();
+                for (int i  = 0; blocks.hasNext(); i++) {
+                    NdpParallelInputStream.BlockStream block = blocks.next();
+                    System.out.format("%d off=%d size=%d\n", i, block.getLocation().getOffset(), block.getLocation().getLength());
 
-                    dataInputStream.seek(locs[i].getOffset());
-                    BufferedReader br = new BufferedReader(new InputStreamReader(dataInputStream,StandardCharsets.UTF_8), 128 << 10);
+                    BufferedReader br = new BufferedReader(new InputStreamReader(block,StandardCharsets.UTF_8), 128 << 10);
                     String record = br.readLine();
                     int counter = 0;
                     while (record != null && record.length() > 0 ) {
                         if(counter < 10) {
                             System.out.println(record);
                         }
-/*                        
-                        String[] values = record.split(",");
-                        if(values.length < 15){
-                            System.out.println(counter);
-                            System.out.println(record);
-                            return;
-                        }
-*/                    
                         totalDataSize += record.length() + 1; // +1 to count end of line
                         totalRecords += 1;
                         counter += 1;
@@ -297,10 +332,15 @@ public class DikeClient
                     }
                     br.close();                    
                 }
+                parallelStream.close();
             } else { // regular read
                 if(pushdown){
-                    dikeFS = (NdpHdfsFileSystem)fs;
+                    dikeFS = ndpFileSystem(fs);
                     readParam = getReadParam(fname, 0 /* ignore stream size */);                                        
+                }
+                // The query only runs on the datanodes, a plain read would
+                // count unfiltered rows as its result
+                if(pushdown){
                     dataInputStream = dikeFS.open(fileToRead, 128 << 10, readParam);                    
                 } else {
                     dataInputStream = fs.open(fileToRead);
@@ -357,8 +397,8 @@ public class DikeClient
         try {
             fs1 = FileSystem.get(fsPath.toUri(), conf);
             fs2 = FileSystem.get(fsPath.toUri(), conf);
-            dikeFS1 = (NdpHdfsFileSystem)fs1;
-            dikeFS2 = (NdpHdfsFileSystem)fs2;
+            dikeFS1 = ndpFileSystem(fs1);
+            dikeFS2 = ndpFileSystem(fs2);
             System.out.println("\nConnected to -- " + fsPath.toString());
             start_time = System.currentTimeMillis();                        
             
@@ -455,7 +495,7 @@ public class DikeClient
 
             // regular read
             if(pushdown){
-                dikeFS = (NdpHdfsFileSystem)fs;
+                dikeFS = ndpFileSystem(fs);
                 readParam = getReadParam(fname, 0 /* ignore stream size */);                                        
                 dataInputStream = dikeFS.open(fileToRead, 128 << 10, readParam);                    
             } else {
@@ -678,121 +718,36 @@ public class DikeClient
             System.out.println("\nConnected to -- " + fsPath.toString());
             start_time = System.currentTimeMillis();                                                
 
-            dikeFS = (NdpHdfsFileSystem)fs;
+            dikeFS = ndpFileSystem(fs);
             readParam = getReadParam(fname, 0 /* ignore stream size */);                                        
             FSDataInputStream dataInputStream = dikeFS.open(fileToRead, BUFFER_SIZE, readParam);                    
   
-            DataInputStream dis = new DataInputStream(new BufferedInputStream(dataInputStream, BUFFER_SIZE ));
-
-            int dataTypes[];
-            long nCols = dis.readLong();
-            System.out.println("nCols : " + String.valueOf(nCols));
-            dataTypes = new int [(int)nCols];
-            for( int i = 0 ; i < nCols; i++){
-                dataTypes[i] = (int)dis.readLong();
+            NdpColumnarBatchReader reader = new NdpColumnarBatchReader(
+                    new BufferedInputStream(dataInputStream, BUFFER_SIZE),
+                    NdpColumnarBatchReader.Format.DIKE_SQL);
+            reader.setReuse(true);
+
+            int dataTypes[] = reader.getTypes();
+            System.out.println("nCols : " + String.valueOf(dataTypes.length));
+            for( int i = 0 ; i < dataTypes.length; i++){
                 System.out.println(String.valueOf(i) + " : " + String.valueOf(dataTypes[i]));
             }
 
-            final int BATCH_SIZE = 4096;
-            final int TYPE_INT64 = 1;
-            final int TYPE_DOUBLE = 2;
-            final int TYPE_BYTE_ARRAY = 3;
-  
-            class ColumVector {                
-                ByteBuffer   byteBuffer = null;
-                LongBuffer   longBuffer = null;
-                DoubleBuffer doubleBuffer = null;
-                byte text_buffer[] = null;
-                int text_size;
-                int index_buffer [] = null;
-                int data_type;
-                int record_count;
-                public ColumVector(int data_type){
-                    this.data_type = data_type;
-                    switch(data_type) {
-                        case TYPE_INT64:
-                            byteBuffer = ByteBuffer.allocate(BATCH_SIZE * 8);
-                            longBuffer = byteBuffer.asLongBuffer();
-                        break;
-                        case TYPE_DOUBLE:
-                            byteBuffer = ByteBuffer.allocate(BATCH_SIZE * 8);
-                            doubleBuffer = byteBuffer.asDoubleBuffer();
-                        break;
-                        case TYPE_BYTE_ARRAY:
-                            byteBuffer = ByteBuffer.allocate(BATCH_SIZE);
-                            text_buffer = new byte[256 * 1024];
-                            index_buffer = new int[BATCH_SIZE];
-                        break;
-                    }
-                }
-
-                public void readColumn(DataInputStream dis) throws IOException {
-                    long nbytes = dis.readLong();
-                    record_count = (int) (nbytes / 8);
-                    dis.readFully(byteBuffer.array(), 0, (int)nbytes);
-
-                    if(data_type == TYPE_BYTE_ARRAY){
-                        record_count = (int) (nbytes);
-                        int idx = 0;
-                        for(int i = 0; i < record_count; i++){
-                            index_buffer[i] = idx;
-                            idx += byteBuffer.get(i) & 0xFF;
+            NdpColumnarBatch batch;
+            while((batch = reader.next()) != null) {
+                if(totalRecords < traceRecordCount) {
+                    for(int idx = 0; idx < traceRecordCount && idx < batch.getRowCount(); idx++){
+                        String record = "";
+                        for( int i = 0 ; i < batch.getColumnCount(); i++) {
+                            record += batch.getColumn(i).getString(idx) + ",";
                         }
-                        // Read actual text size                            
-                        nbytes = dis.readLong();
-                        text_size = (int)nbytes;
-                        dis.readFully(text_buffer, 0, (int)nbytes);
-                    }
-                }
-
-                public String getString(int index) {
-                    String value = null;
-                    switch(data_type) {
-                        case TYPE_INT64:
-                            value = String.valueOf(byteBuffer.getLong(index * 8));
-                        break;
-                        case TYPE_DOUBLE:
-                            value = String.valueOf(byteBuffer.getDouble(index * 8));                            
-                        break;
-                        case TYPE_BYTE_ARRAY:                            
-                            int len = byteBuffer.get(index) & 0xFF;
-                            value = new String(text_buffer, index_buffer[index], len, StandardCharsets.UTF_8);
-                        break;
+                        System.out.println(record);
                     }
-                    return value;
                 }
-            };            
-            
-            ColumVector [] columVector = new ColumVector [(int)nCols];
-            int record_count = 0;
-
-            for( int i = 0 ; i < nCols; i++) {
-                columVector[i] = new ColumVector(dataTypes[i]);
-            }
-
-            while(true) {
-                try {
-                    for( int i = 0 ; i < nCols; i++) {
-                        columVector[i].readColumn(dis);
-                    }
-                                      
-                    if(totalRecords < traceRecordCount) {                        
-                        for(int idx = 0; idx < traceRecordCount && idx < columVector[0].record_count; idx++){
-                            String record = "";
-                            for( int i = 0 ; i < nCols; i++) {
-                                record += columVector[i].getString(idx) + ",";
-                            }
-                            System.out.println(record);
-                        }                        
-                    }
 
-                    
-                    totalRecords += columVector[0].record_count;                    
-                }catch (Exception ex) {
-                    System.out.println(ex);
-                    break;
-                }
+                totalRecords += batch.getRowCount();
             }
+            reader.close();
         } catch (Exception ex) {
             System.out.println("Error occurred: ");
             ex.printStackTrace();
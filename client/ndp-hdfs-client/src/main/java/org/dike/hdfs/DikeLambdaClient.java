@@ -475,336 +475,36 @@ public class DikeLambdaClient
             System.out.println("\nConnected to -- " + fsPath.toString());
             start_time = System.currentTimeMillis();                                                
 
-            dikeFS = (NdpHdfsFileSystem)fs;            
+            dikeFS = DikeClient.ndpFileSystem(fs);            
             readParam = getLambdaReadParam(fname);                                        
             FSDataInputStream dataInputStream = dikeFS.open(fileToRead, BUFFER_SIZE, readParam);                    
   
-            DataInputStream dis = new DataInputStream(new BufferedInputStream(dataInputStream, BUFFER_SIZE ));
-
-            int dataTypes[];
-            long nCols = dis.readLong();
-            System.out.println("nCols : " + String.valueOf(nCols));
-            dataTypes = new int [(int)nCols];
-            for( int i = 0 ; i < nCols; i++){
-                dataTypes[i] = (int)dis.readLong();
+            NdpColumnarBatchReader reader = new NdpColumnarBatchReader(
+                    new BufferedInputStream(dataInputStream, BUFFER_SIZE));
+            reader.setReuse(true);
+
+            int dataTypes[] = reader.getTypes();
+            System.out.println("nCols : " + String.valueOf(dataTypes.length));
+            for( int i = 0 ; i < dataTypes.length; i++){
                 System.out.println(String.valueOf(i) + " : " + String.valueOf(dataTypes[i]));
             }
 
-            final int BATCH_SIZE = 8192;
-            final int TYPE_INT64 = 2;
-            final int TYPE_DOUBLE = 5;
-            final int TYPE_BYTE_ARRAY = 6;
-            final int TYPE_FIXED_LEN_BYTE_ARRAY = 7;
-
-            final int HEADER_DATA_TYPE = 0 * 4;
-            final int HEADER_TYPE_SIZE = 1 * 4;
-            final int HEADER_DATA_LEN = 2 * 4;
-            final int HEADER_COMPRESSED_LEN = 3 * 4;
-
-            class ColumVector {   
-                int colId;             
-                ByteBuffer   byteBuffer = null;
-                LongBuffer   longBuffer = null;
-                DoubleBuffer doubleBuffer = null;
-                byte text_buffer[] = null;
-                int text_size;
-                int fixedTextLen = 0;
-                int index_buffer [] = null;
-                int data_type;
-                int record_count;                
-                byte [] compressedBuffer = new byte[BATCH_SIZE * 128];
-
-                ByteBuffer header = null;
-
-                public ColumVector(int colId, int data_type){
-                    this.colId = colId;
-                    this.data_type = data_type;
-                    header = ByteBuffer.allocate(4 * 4); // Header size by int size
-                    switch(data_type) {
-                        case TYPE_INT64:
-                            byteBuffer = ByteBuffer.allocate(BATCH_SIZE * 8);
-                            longBuffer = byteBuffer.asLongBuffer();
-                        break;
-                        case TYPE_DOUBLE:
-                            byteBuffer = ByteBuffer.allocate(BATCH_SIZE * 8);
-                            doubleBuffer = byteBuffer.asDoubleBuffer();
-                        break;
-                        case TYPE_BYTE_ARRAY:
-                            byteBuffer = ByteBuffer.allocate(BATCH_SIZE);
-                            text_buffer = new byte[BATCH_SIZE * 128];
-                            index_buffer = new int[BATCH_SIZE];
-                        break;
-                    }
-                }
-
-                public void readRawData(DataInputStream dis) throws IOException {
-                    int nbytes;
-                    dis.readFully(header.array(), 0, header.capacity());
-                    nbytes = header.getInt(HEADER_COMPRESSED_LEN);                    
-                    dis.readFully(compressedBuffer, 0, nbytes);
-                    if(data_type == TYPE_BYTE_ARRAY){
-                        dis.readFully(header.array(), 0, header.capacity());
-                        nbytes = header.getInt(HEADER_COMPRESSED_LEN);                    
-                        dis.readFully(compressedBuffer, 0, (int)nbytes);
-                    }
-                }
-
-                public void readColumn(DataInputStream dis, LZ4SafeDecompressor decompressor) 
-                    throws DataFormatException, UnsupportedEncodingException, IOException {
-                    long nbytes;
-                    dis.readFully(header.array(), 0, header.capacity());
-                    nbytes = header.getInt(HEADER_COMPRESSED_LEN);                    
-                    //System.out.format("readColumn[%d] %d header size %d ", colId, nbytes, header.capacity());
-
-                    dis.readFully(compressedBuffer, 0, (int)nbytes);
-                    /* Note: if we know decompressed length
-                    * We can call LZ4FastDecompressor :
-                    * decompress(compressedBuffer, 0, byteBuffer.array(), 0, decompressedLength);
-                    * for faster processing
-                    */
-
-                    // Compressed length is known (a little slower)
-                    int dataSize;
-                    if(TYPE_FIXED_LEN_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)){
-                        fixedTextLen = header.getInt(HEADER_TYPE_SIZE);                        
-                        dataSize = decompressor.decompress(compressedBuffer, 0, (int)nbytes, text_buffer, 0);
-                        record_count = (int) (dataSize / fixedTextLen);
-                    } else {
-                        fixedTextLen = 0;
-                        dataSize = decompressor.decompress(compressedBuffer, 0, (int)nbytes, byteBuffer.array(), 0);
-                        record_count = (int) (dataSize / 8);
-                    }
-
-                    if(TYPE_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)){
-                        record_count = (int) (dataSize);
-                        int idx = 0;
-                        for(int i = 0; i < record_count; i++){
-                            index_buffer[i] = idx;
-                            idx += byteBuffer.get(i) & 0xFF;
+            NdpColumnarBatch batch;
+            while((batch = reader.next()) != null) {
+                if(traceRecordCount < traceRecordMax) {
+                    for(int idx = 0; idx < batch.getRowCount() && traceRecordCount < traceRecordMax; idx++){
+                        String record = "";
+                        for( int i = 0 ; i < batch.getColumnCount(); i++) {
+                            record += batch.getColumn(i).getString(idx) + ",";
                         }
-                        // Read actual text size                            
-                        // nbytes = dis.readLong();
-                        dis.readFully(header.array(), 0, header.capacity());                                                
-                        nbytes = header.getInt(HEADER_COMPRESSED_LEN);                        
-                        dis.readFully(compressedBuffer, 0, (int)nbytes);                            
-                        dataSize = decompressor.decompress(compressedBuffer, 0, (int)nbytes, text_buffer, 0);
-                        text_size = dataSize;
-                   }
-                   //System.out.format("\n");
-                }
-
-                public void readColumn(DataInputStream dis, LZ4FastDecompressor decompressor) 
-                    throws DataFormatException, UnsupportedEncodingException, IOException {
-                    long nbytes;
-                    dis.readFully(header.array(), 0, header.capacity());
-                    nbytes = header.getInt(HEADER_COMPRESSED_LEN);                    
-                    //System.out.format("readColumn[%d] %d header size %d ", colId, nbytes, header.capacity());
-
-                    dis.readFully(compressedBuffer, 0, (int)nbytes);
-
-                    int dataSize;
-                    if(TYPE_FIXED_LEN_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)){
-                        fixedTextLen = header.getInt(HEADER_TYPE_SIZE);                        
-                        //dataSize = decompressor.decompress(compressedBuffer, 0, (int)nbytes, text_buffer, 0);
-                        dataSize = header.getInt(HEADER_DATA_LEN);
-                        decompressor.decompress(compressedBuffer, 0, text_buffer, 0, dataSize);
-                        record_count = (int) (dataSize / fixedTextLen);
-                    } else {
-                        fixedTextLen = 0;
-                        //dataSize = decompressor.decompress(compressedBuffer, 0, (int)nbytes, byteBuffer.array(), 0);
-                        dataSize = header.getInt(HEADER_DATA_LEN);
-                        decompressor.decompress(compressedBuffer, 0, byteBuffer.array(), 0, dataSize);
-                        record_count = (int) (dataSize / 8);
+                        System.out.println(record);
+                        traceRecordCount++;
                     }
-
-                    if(TYPE_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)){
-                        record_count = (int) (dataSize);
-                        int idx = 0;
-                        for(int i = 0; i < record_count; i++){
-                            index_buffer[i] = idx;
-                            idx += byteBuffer.get(i) & 0xFF;
-                        }
-                        // Read actual text size                            
-                        // nbytes = dis.readLong();
-                        dis.readFully(header.array(), 0, header.capacity());                                                
-                        nbytes = header.getInt(HEADER_COMPRESSED_LEN);                        
-                        dis.readFully(compressedBuffer, 0, (int)nbytes);                            
-                        //dataSize = decompressor.decompress(compressedBuffer, 0, (int)nbytes, text_buffer, 0);
-                        dataSize = header.getInt(HEADER_DATA_LEN);
-                        decompressor.decompress(compressedBuffer, 0, text_buffer, 0, dataSize);
-                        text_size = dataSize;
-                   }
-                   //System.out.format("\n");
                 }
 
-                public void readColumnZSTD(DataInputStream dis) throws  IOException {
-                    int nbytes;
-                    
-                    dis.readFully(header.array(), 0, header.capacity());
-                    nbytes = header.getInt(HEADER_COMPRESSED_LEN);                    
-                    //System.out.format("readColumn[%d] %d header size %d ", colId, nbytes, header.capacity());
-                    //System.out.format("readColumn[%d] type %d ratio %f \n", colId, header.getInt(HEADER_DATA_TYPE), 1.0 * header.getInt(HEADER_DATA_LEN) /  header.getInt(HEADER_COMPRESSED_LEN));                    
-
-                    byte [] cb = new byte [nbytes];
-
-                    //dis.readFully(compressedBuffer, 0, nbytes);
-                    dis.readFully(cb, 0, nbytes);                    
-
-                    //System.out.format("readColumn[%d] %d decompressedSize %d \n", colId, nbytes, Zstd.decompressedSize(compressedBuffer));                    
-
-                    int dataSize;
-                    if(TYPE_FIXED_LEN_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)){
-                        fixedTextLen = header.getInt(HEADER_TYPE_SIZE);                                                
-                        dataSize = header.getInt(HEADER_DATA_LEN);
-                        //Zstd.decompress(text_buffer, Arrays.copyOfRange(compressedBuffer, 0, nbytes));
-                        Zstd.decompress(text_buffer, cb);
-                        record_count = (int) (dataSize / fixedTextLen);
-                    } else {
-                        fixedTextLen = 0;                        
-                        dataSize = header.getInt(HEADER_DATA_LEN);                        
-                        //Zstd.decompress(byteBuffer.array(), Arrays.copyOfRange(compressedBuffer, 0, nbytes));
-                        Zstd.decompress(byteBuffer.array(), cb);
-                        //System.out.format("readColumn[%d] Zstd.decompress %d bytes \n", colId, nbytes);                        
-                        record_count = (int) (dataSize / 8);
-                    }
-
-                    if(TYPE_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)){
-                        record_count = (int) (dataSize);
-                        int idx = 0;
-                        for(int i = 0; i < record_count; i++){
-                            index_buffer[i] = idx;
-                            idx += byteBuffer.get(i) & 0xFF;
-                        }
-                        // Read actual text size                                                    
-                        dis.readFully(header.array(), 0, header.capacity());
-                        //System.out.format("readColumn[%d] type %d ratio %f \n", colId, header.getInt(HEADER_DATA_TYPE), 1.0 * header.getInt(HEADER_DATA_LEN) /  header.getInt(HEADER_COMPRESSED_LEN));
-
-                        nbytes = header.getInt(HEADER_COMPRESSED_LEN);
-                        cb = new byte [nbytes];
-                        //dis.readFully(compressedBuffer, 0, nbytes);                            
-                        dis.readFully(cb, 0, nbytes);                            
-                        
-                        dataSize = header.getInt(HEADER_DATA_LEN);
-                        //Zstd.decompress(text_buffer, Arrays.copyOfRange(compressedBuffer, 0, nbytes));
-                        Zstd.decompress(text_buffer, cb);
-                        text_size = dataSize;
-                   }
-                   //System.out.format("\n");
-                }
-
-                public void readColumn(DataInputStream dis) throws IOException {
-                    long nbytes;
-                            
-                    dis.readFully(header.array(), 0, header.capacity());
-                    nbytes = header.getInt(HEADER_DATA_LEN);
-                    //System.out.format("readColumn[%d] %d header size %d ", colId, nbytes, header.capacity());
-
-                    record_count = (int) (nbytes / 8);
-                    
-                    if(TYPE_FIXED_LEN_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)){
-                        fixedTextLen = header.getInt(HEADER_TYPE_SIZE);
-                        dis.readFully(text_buffer, 0, (int)nbytes);
-                    } else {
-                        fixedTextLen = 0;
-                        dis.readFully(byteBuffer.array(), 0, (int)nbytes);
-                    }
-                    
-                    if(TYPE_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)) {
-                        record_count = (int) (nbytes);
-                        int idx = 0;
-                        for(int i = 0; i < record_count; i++){
-                            index_buffer[i] = idx;
-                            idx += byteBuffer.get(i) & 0xFF;
-                        }
-                        // Read actual text size                            
-                        
-                        dis.readFully(header.array(), 0, header.capacity());                                                
-                        text_size =  header.getInt(HEADER_DATA_LEN);
-                        //System.out.format("text_size %d ", text_size);
-                        dis.readFully(text_buffer, 0, (int)text_size);
-                    }
-                    //System.out.format("\n");
-                }
-
-                public String getString(int index) {
-                    String value = null;
-                    switch(data_type) {
-                        case TYPE_INT64:
-                            value = String.valueOf(byteBuffer.getLong(index * 8));
-                        break;
-                        case TYPE_DOUBLE:
-                            value = String.valueOf(byteBuffer.getDouble(index * 8));                            
-                        break;
-                        case TYPE_BYTE_ARRAY:
-                            if(fixedTextLen > 0){
-                                value = new String(text_buffer, fixedTextLen * index, fixedTextLen, StandardCharsets.UTF_8);
-                            } else {
-                                int len = byteBuffer.get(index) & 0xFF;
-                                value = new String(text_buffer, index_buffer[index], len, StandardCharsets.UTF_8);
-                            }
-                        break;
-                    }
-                    return value;
-                }
-            };            
-            
-            ColumVector [] columVector = new ColumVector [(int)nCols];
-            int record_count = 0;
-
-            for( int i = 0 ; i < nCols; i++) {
-                columVector[i] = new ColumVector(i, dataTypes[i]);
-            }
-            
-            Boolean compressionEnabled = false;
-            String compressionTypeEnv = System.getenv("DIKE_COMPRESSION");
-            Inflater inflater = new Inflater();
-            LZ4Factory factory = LZ4Factory.fastestInstance();
-            LZ4FastDecompressor decompressor = factory.fastDecompressor();
-            //LZ4SafeDecompressor decompressor = factory.safeDecompressor();
-
-            if(compressionTypeEnv != null){
-                if(compressionTypeEnv.equals("ZSTD")){
-                    compressionEnabled = true;                    
-                }
+                totalRecords += batch.getRowCount();
             }
-
-            if(compressionEnabled){
-                System.out.println("Compression ENABLED ");
-            } else {
-                System.out.println("Compression DISABLED ");
-            }
-
-            while(true) {
-                try {
-                    for( int i = 0 ; i < nCols; i++) {
-                        if(compressionEnabled) {
-                            //columVector[i].readColumn(dis, inflater);
-                            //columVector[i].readRawData(dis);
-                            //columVector[i].readColumn(dis, decompressor);
-                            columVector[i].readColumnZSTD(dis);
-                        } else {
-                            columVector[i].readColumn(dis);
-                        }
-                    }
-                    
-                    if(traceRecordCount < traceRecordMax) {                        
-                        for(int idx = 0; idx < columVector[0].record_count && traceRecordCount < traceRecordMax; idx++){
-                            String record = "";
-                            for( int i = 0 ; i < nCols; i++) {
-                                record += columVector[i].getString(idx) + ",";
-                            }
-                            System.out.println(record);
-                            traceRecordCount++;
-                        }                        
-                    }
-                    
-                    totalRecords += columVector[0].record_count;
-                    
-                }catch (Exception ex) {
-                    System.out.println(ex);
-                    break;
-                }
-            }                          
+            reader.close();
         } catch (Exception ex) {
             System.out.println("Error occurred: ");
             ex.printStackTrace();
@@ -39,6 +39,7 @@ import java.net.URL;
 import java.security.NoSuchAlgorithmException;
 import java.util.Properties;
 import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Base64;
@@ -102,6 +103,8 @@ import javax.xml.stream.*;
 import javax.xml.namespace.QName;
 
 import org.dike.hdfs.NdpHdfsFileSystem;
+import org.dike.hdfs.NdpConfigKeys;
+import org.dike.hdfs.NdpReadParamTemplate;
 
 public class DikeTpchClient
 {
@@ -118,6 +121,10 @@ public class DikeTpchClient
         conf.addResource(hdfsCoreSitePath);
         conf.addResource(hdfsHDFSSitePath);
 
+        String readAheadDepthEnv = System.getenv("DIKE_READAHEAD_DEPTH");
+        if(readAheadDepthEnv != null){
+            conf.setInt(NdpConfigKeys.READAHEAD_DEPTH_KEY, Integer.parseInt(readAheadDepthEnv));
+        }
 
         Path dikehdfsPath = new Path("ndphdfs://dikehdfs:9860/");
         //Path dikehdfsPath = new Path("ndphdfs://DP3:9860/");
@@ -174,7 +181,86 @@ public class DikeTpchClient
         TpchTest(dikehdfsPath, fname, conf, param);
     }        
 
-    public static String getQ1Param(String name)    
+    // ReadParams of a query only differ in File and RowGroupIndex, serialize them once
+    private static final Map<String, NdpReadParamTemplate> templates =
+            new HashMap<String, NdpReadParamTemplate>();
+
+    /**
+     * ReadParam of a query for one row group of a file, null if it
+     * cannot be built.
+     */
+    public static synchronized String getParam(String query, String name, int rowGroupIndex)
+    {
+        NdpReadParamTemplate template = templates.get(query);
+        if (template == null) {
+            String readParam = buildParam(query, NdpReadParamTemplate.placeholder("File"));
+            if (readParam == null) {
+                return null;
+            }
+            template = NdpReadParamTemplate.compile(readParam, "RowGroupIndex");
+            templates.put(query, template);
+        }
+        return template.bind("File", name, "RowGroupIndex", rowGroupIndex);
+    }
+
+    private static String buildParam(String query, String name)
+    {
+        switch (query) {
+            case "Q1":
+                return buildQ1Param(name);
+            case "Q3":
+                return buildQ3Param(name);
+            case "Q6":
+                return buildQ6Param(name);
+            case "Q10":
+                return buildQ10_l_Param(name);
+            case "Q12":
+                return buildQ12Param(name);
+            case "Q14":
+                return buildQ14Param(name);
+            case "Q21":
+                return buildQ21Param(name);
+            default:
+                throw new IllegalArgumentException("Unsupported query " + query);
+        }
+    }
+
+    public static String getQ1Param(String name)
+    {
+        return getParam("Q1", name, 0);
+    }
+
+    public static String getQ3Param(String name)
+    {
+        return getParam("Q3", name, 0);
+    }
+
+    public static String getQ6Param(String name)
+    {
+        return getParam("Q6", name, 0);
+    }
+
+    public static String getQ10_l_Param(String name)
+    {
+        return getParam("Q10", name, 0);
+    }
+
+    public static String getQ12Param(String name)
+    {
+        return getParam("Q12", name, 0);
+    }
+
+    public static String getQ14Param(String name)
+    {
+        return getParam("Q14", name, 0);
+    }
+
+    public static String getQ21Param(String name)
+    {
+        return getParam("Q21", name, 0);
+    }
+
+    private static String buildQ1Param(String name)
     {
         try {
         XMLOutputFactory xmlof = XMLOutputFactory.newInstance();
@@ -295,8 +381,8 @@ public class DikeTpchClient
         }
         return null;        
     }
-    
-    public static String getQ3Param(String name)    
+
+    private static String buildQ3Param(String name)
     {
         /*
         Configuration.DAG = {
@@ -423,7 +509,7 @@ public class DikeTpchClient
         return null;        
     }    
 
-    public static String getQ6Param(String name)    
+    private static String buildQ6Param(String name)
     { // SELECT  SUM( l_extendedprice) FROM S3Object WHERE l_shipdate IS NOT NULL AND l_discount >= 0.05 AND l_discount <= 0.07 AND l_quantity < 24.0 AND l_shipdate >= '1994-01-01' AND l_shipdate < '1995-01-01' 
         try {
         XMLOutputFactory xmlof = XMLOutputFactory.newInstance();
@@ -567,7 +653,7 @@ public class DikeTpchClient
         return null;        
     }
 
-    public static String getQ10_l_Param(String name)    
+    private static String buildQ10_l_Param(String name)
     {
         try {
         XMLOutputFactory xmlof = XMLOutputFactory.newInstance();
@@ -861,7 +947,7 @@ public class DikeTpchClient
         return strw.toString();
     }
 
-public static String getQ12Param(String name)    
+    private static String buildQ12Param(String name)
     {
         try {
         XMLOutputFactory xmlof = XMLOutputFactory.newInstance();
@@ -1007,7 +1093,7 @@ public static String getQ12Param(String name)
      {"Name":"TPC-H Test Q14","Type":"_PROJECTION","ProjectionArray":["l_partkey","l_extendedprice","l_discount"]},
      {"Name":"OutputNode","Type":"_OUTPUT","CompressionType":"None","CompressionLevel":"-100"}]}
     */
-    public static String getQ14Param(String name)    
+    private static String buildQ14Param(String name)
     {
         try {
         XMLOutputFactory xmlof = XMLOutputFactory.newInstance();
@@ -1128,9 +1214,7 @@ public static String getQ12Param(String name)
         return null;        
     }
 
-
-
-    public static String getQ21Param(String name)    
+    private static String buildQ21Param(String name)
     {
         try {
         XMLOutputFactory xmlof = XMLOutputFactory.newInstance();
@@ -1273,238 +1357,39 @@ public static String getQ12Param(String name)
             stats = fs.getStatistics();
             System.out.println("Scheme " + fs.getScheme());
             stats.get(fs.getScheme()).reset();
+            dikeFS = DikeClient.ndpFileSystem(fs);
+            dikeFS.getNdpStatistics().reset();
 
             System.out.println("\nConnected to -- " + fsPath.toString());
             start_time = System.currentTimeMillis();                                                
 
-            dikeFS = (NdpHdfsFileSystem)fs;                                                              
             FSDataInputStream dataInputStream = dikeFS.open(fileToRead, BUFFER_SIZE, readParam);                    
-            DataInputStream dis = new DataInputStream(new BufferedInputStream(dataInputStream, BUFFER_SIZE ));
-
-            int dataTypes[];
-            long nCols = dis.readLong();
-            System.out.println("nCols : " + String.valueOf(nCols));
-            dataTypes = new int [(int)nCols];
-            for( int i = 0 ; i < nCols; i++){
-                dataTypes[i] = (int)dis.readLong();
+            NdpColumnarBatchReader reader = new NdpColumnarBatchReader(
+                    new BufferedInputStream(dataInputStream, BUFFER_SIZE));
+            reader.setReuse(true);
+
+            int dataTypes[] = reader.getTypes();
+            System.out.println("nCols : " + String.valueOf(dataTypes.length));
+            for( int i = 0 ; i < dataTypes.length; i++){
                 System.out.println(String.valueOf(i) + " : " + String.valueOf(dataTypes[i]));
             }
 
-            final int BATCH_SIZE = 256 << 10;
-            final int TYPE_INT64 = 2;
-            final int TYPE_DOUBLE = 5;
-            final int TYPE_BYTE_ARRAY = 6;
-            final int TYPE_FIXED_LEN_BYTE_ARRAY = 7;
-
-            final int HEADER_DATA_TYPE = 0 * 4;
-            final int HEADER_TYPE_SIZE = 1 * 4;
-            final int HEADER_DATA_LEN = 2 * 4;
-            final int HEADER_COMPRESSED_LEN = 3 * 4;
-
-            class ColumVector {   
-                int colId;             
-                ByteBuffer   byteBuffer = null;
-                LongBuffer   longBuffer = null;
-                DoubleBuffer doubleBuffer = null;
-                byte text_buffer[] = null;
-                int text_size;
-                int fixedTextLen = 0;
-                int index_buffer [] = null;
-                int data_type;
-                int record_count;                
-                byte [] compressedBuffer = new byte[BATCH_SIZE * 128];
-
-                ByteBuffer header = null;
-
-                public ColumVector(int colId, int data_type){
-                    this.colId = colId;
-                    this.data_type = data_type;
-                    header = ByteBuffer.allocate(4 * 4); // Header size by int size
-                    switch(data_type) {
-                        case TYPE_INT64:
-                            byteBuffer = ByteBuffer.allocate(BATCH_SIZE * 8);
-                            longBuffer = byteBuffer.asLongBuffer();
-                        break;
-                        case TYPE_DOUBLE:
-                            byteBuffer = ByteBuffer.allocate(BATCH_SIZE * 8);
-                            doubleBuffer = byteBuffer.asDoubleBuffer();
-                        break;
-                        case TYPE_BYTE_ARRAY:
-                            byteBuffer = ByteBuffer.allocate(BATCH_SIZE);
-                            text_buffer = new byte[BATCH_SIZE * 128];
-                            index_buffer = new int[BATCH_SIZE];
-                        break;
-                    }
-                }
-
-                public void readRawData(DataInputStream dis) throws IOException {
-                    int nbytes;
-                    dis.readFully(header.array(), 0, header.capacity());
-                    nbytes = header.getInt(HEADER_COMPRESSED_LEN);                    
-                    dis.readFully(compressedBuffer, 0, nbytes);
-                    if(data_type == TYPE_BYTE_ARRAY){
-                        dis.readFully(header.array(), 0, header.capacity());
-                        nbytes = header.getInt(HEADER_COMPRESSED_LEN);                    
-                        dis.readFully(compressedBuffer, 0, (int)nbytes);
-                    }
-                }
-
-                public void readColumnZSTD(DataInputStream dis) throws  IOException {
-                    int nbytes;
-                    byte [] cb = null;
-                    Boolean is_compressed;
-                    
-                    dis.readFully(header.array(), 0, header.capacity());
-                    nbytes = header.getInt(HEADER_COMPRESSED_LEN);                    
-                    //System.out.format("readColumn[%d] %d header size %d ", colId, nbytes, header.capacity());
-                    //System.out.format("readColumn[%d] type %d ratio %f \n", colId, header.getInt(HEADER_DATA_TYPE), 1.0 * header.getInt(HEADER_DATA_LEN) /  header.getInt(HEADER_COMPRESSED_LEN));                    
-                    if(nbytes > 0) {
-                        is_compressed = true;
-                    } else {
-                        is_compressed = false;
-                    }
-                    if(is_compressed) {
-                        cb = new byte [nbytes];
-                        dis.readFully(cb, 0, nbytes);
-                    } 
-
-                    //System.out.format("readColumn[%d] %d decompressedSize %d \n", colId, nbytes, Zstd.decompressedSize(compressedBuffer));                    
-
-                    int dataSize;
-                    if(TYPE_FIXED_LEN_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)){
-                        fixedTextLen = header.getInt(HEADER_TYPE_SIZE);                                                
-                        dataSize = header.getInt(HEADER_DATA_LEN);
-                        record_count = (int) (dataSize / fixedTextLen);
-                        if(is_compressed){
-                            Zstd.decompress(text_buffer, cb);
-                        } else {                            
-                            dis.readFully(text_buffer, 0, (int)dataSize);
-                        }
-                    } else {
-                        fixedTextLen = 0;                        
-                        dataSize = header.getInt(HEADER_DATA_LEN);
-                        if(is_compressed){
-                            Zstd.decompress(byteBuffer.array(), cb);
-                        } else {
-                            dis.readFully(byteBuffer.array(), 0, (int)dataSize);
+            NdpColumnarBatch batch;
+            while((batch = reader.next()) != null) {
+                if(traceRecordCount < traceRecordMax) {
+                    for(int idx = 0; idx < batch.getRowCount() && traceRecordCount < traceRecordMax; idx++){
+                        String record = "";
+                        for( int i = 0 ; i < batch.getColumnCount(); i++) {
+                            record += batch.getColumn(i).getString(idx) + ",";
                         }
-                        //System.out.format("readColumn[%d] Zstd.decompress %d bytes \n", colId, nbytes);                        
-                        record_count = (int) (dataSize / 8);
+                        System.out.println(record);
+                        traceRecordCount++;
                     }
-
-                    if(TYPE_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)){
-                        record_count = (int) (dataSize);
-                        int idx = 0;
-                        for(int i = 0; i < record_count; i++){
-                            index_buffer[i] = idx;
-                            idx += byteBuffer.get(i) & 0xFF;
-                        }
-                        // Read actual text size                                                    
-                        dis.readFully(header.array(), 0, header.capacity());
-                        //System.out.format("readColumn[%d] type %d ratio %f \n", colId, header.getInt(HEADER_DATA_TYPE), 1.0 * header.getInt(HEADER_DATA_LEN) /  header.getInt(HEADER_COMPRESSED_LEN));
-
-                        nbytes = header.getInt(HEADER_COMPRESSED_LEN);
-                        dataSize = header.getInt(HEADER_DATA_LEN);
-
-                        if(nbytes > 0){
-                            cb = new byte [nbytes];
-                            dis.readFully(cb, 0, nbytes);
-                            Zstd.decompress(text_buffer, cb);
-                        } else {
-                            dis.readFully(text_buffer, 0, (int)dataSize);
-                        }
-                        text_size = dataSize;
-                   }
-                   //System.out.format("\n");
-                }
-
-                public void readColumn(DataInputStream dis) throws IOException {
-                    long nbytes;
-                            
-                    dis.readFully(header.array(), 0, header.capacity());
-                    nbytes = header.getInt(HEADER_DATA_LEN);
-                    //System.out.format("readColumn[%d] %d header size %d ", colId, nbytes, header.capacity());
-
-                    record_count = (int) (nbytes / 8);
-                    
-                    if(TYPE_FIXED_LEN_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)){
-                        fixedTextLen = header.getInt(HEADER_TYPE_SIZE);
-                        dis.readFully(text_buffer, 0, (int)nbytes);
-                    } else {
-                        fixedTextLen = 0;
-                        dis.readFully(byteBuffer.array(), 0, (int)nbytes);
-                    }
-                    
-                    if(TYPE_BYTE_ARRAY == header.getInt(HEADER_DATA_TYPE)) {
-                        record_count = (int) (nbytes);
-                        int idx = 0;
-                        for(int i = 0; i < record_count; i++){
-                            index_buffer[i] = idx;
-                            idx += byteBuffer.get(i) & 0xFF;
-                        }
-                        // Read actual text size                            
-                        
-                        dis.readFully(header.array(), 0, header.capacity());                                                
-                        text_size =  header.getInt(HEADER_DATA_LEN);
-                        //System.out.format("text_size %d ", text_size);
-                        dis.readFully(text_buffer, 0, (int)text_size);
-                    }
-                    //System.out.format("\n");
                 }
 
-                public String getString(int index) {
-                    String value = null;
-                    switch(data_type) {
-                        case TYPE_INT64:
-                            value = String.valueOf(byteBuffer.getLong(index * 8));
-                        break;
-                        case TYPE_DOUBLE:
-                            value = String.valueOf(byteBuffer.getDouble(index * 8));                            
-                        break;
-                        case TYPE_BYTE_ARRAY:
-                            if(fixedTextLen > 0){
-                                value = new String(text_buffer, fixedTextLen * index, fixedTextLen, StandardCharsets.UTF_8);
-                            } else {
-                                int len = byteBuffer.get(index) & 0xFF;
-                                value = new String(text_buffer, index_buffer[index], len, StandardCharsets.UTF_8);
-                            }
-                        break;
-                    }
-                    return value;
-                }
-            };            
-            
-            ColumVector [] columVector = new ColumVector [(int)nCols];
-            int record_count = 0;
-
-            for( int i = 0 ; i < nCols; i++) {
-                columVector[i] = new ColumVector(i, dataTypes[i]);
-            }            
-
-            while(true) {
-                try {
-                    for( int i = 0 ; i < nCols; i++) {
-                        columVector[i].readColumnZSTD(dis);
-                    }
-                    
-                    if(traceRecordCount < traceRecordMax) {                        
-                        for(int idx = 0; idx < columVector[0].record_count && traceRecordCount < traceRecordMax; idx++){
-                            String record = "";
-                            for( int i = 0 ; i < nCols; i++) {
-                                record += columVector[i].getString(idx) + ",";
-                            }
-                            System.out.println(record);
-                            traceRecordCount++;
-                        }                        
-                    }
-                    
-                    totalRecords += columVector[0].record_count;
-                    
-                }catch (Exception ex) {
-                    System.out.println(ex);
-                    break;
-                }
-            }                          
+                totalRecords += batch.getRowCount();
+            }
+            reader.close();
         } catch (Exception ex) {
             System.out.println("Error occurred: ");
             ex.printStackTrace();
@@ -1517,6 +1402,7 @@ public static String getQ12Param(String name)
         
         //System.out.println(fs.getScheme());
         System.out.format("BytesRead %d\n", stats.get(fs.getScheme()).getBytesRead());
+        System.out.println("Pushdown " + dikeFS.getNdpStatistics());
         System.out.format("Received %d records (%d bytes) in %.3f sec\n", totalRecords, totalDataSize, (end_time - start_time) / 1000.0);
     }    
 }
@@ -1545,4 +1431,5 @@ public static String getQ12Param(String name)
 // export DIKE_COMPRESSION=ZSTD
 // export DIKE_COMPRESSION_LEVEL=3
 // export DIKE_PATH=DP3
+// export DIKE_READAHEAD_DEPTH=2
 
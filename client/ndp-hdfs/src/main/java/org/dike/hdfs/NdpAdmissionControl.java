@@ -0,0 +1,167 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.util.Time;
+
+/**
+ * Limits the pushdown streams open on each storage node, so work stays on
+ * the storage nodes instead of overflowing to compute nodes.
+ *
+ * Storage nodes advertise their free pushdown slots in the NdpCapacity
+ * header. Each node, by the authority its pushdowns are sent to, that does
+ * gets a window of open streams, grown by one per window of responses with
+ * free slots and halved when a response shows none. Nodes that never
+ * advertised are not limited.
+ *
+ * A stream waits for a slot at most the configured time. The open then
+ * fails rather than going over the window, so consumers holding many
+ * streams see the overload instead of stalling each other.
+ */
+public class NdpAdmissionControl {
+    // Halve a window at most this often, responses in flight still report
+    // the load from before the last decrease
+    private static final long DECREASE_INTERVAL_MS = 100;
+
+    private final ConcurrentHashMap<String, Window> windows =
+            new ConcurrentHashMap<String, Window>();
+    private final int maxWindow;
+    private final long maxWait;
+    private final AtomicLong waits = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+
+    public NdpAdmissionControl(int maxWindow, long maxWait) {
+        this.maxWindow = Math.max(1, maxWindow);
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Take a slot on the node, waiting while its window is full. Returns
+     * the milliseconds waited, or -1 if the node is not limited and no
+     * slot needs to be released. Fails if no slot frees up in time.
+     */
+    long acquire(String host) throws IOException {
+        Window window = windows.get(host);
+        if (window == null) {
+            return -1;
+        }
+        long start = Time.monotonicNow();
+        synchronized (window) {
+            boolean waited = false;
+            try {
+                while (window.inFlight >= (int) window.size) {
+                    long left = maxWait - (Time.monotonicNow() - start);
+                    if (left <= 0) {
+                        timeouts.incrementAndGet();
+                        throw new IOException("No pushdown slot on " + host
+                                + " within " + maxWait + " ms");
+                    }
+                    waited = true;
+                    window.wait(left);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for " + host);
+            }
+            window.inFlight++;
+            if (waited) {
+                waits.incrementAndGet();
+            }
+        }
+        return Time.monotonicNow() - start;
+    }
+
+    void release(String host) {
+        Window window = windows.get(host);
+        if (window == null) {
+            return;
+        }
+        synchronized (window) {
+            window.inFlight = Math.max(0, window.inFlight - 1);
+            window.notifyAll();
+        }
+    }
+
+    /**
+     * Apply the free slots a node advertised.
+     */
+    void update(String host, long capacity) {
+        Window window = windows.get(host);
+        if (window == null) {
+            // The reporting request holds one of the slots
+            Window created = new Window(Math.min(maxWindow, Math.max(1, capacity + 1)));
+            window = windows.putIfAbsent(host, created);
+            if (window == null) {
+                return;
+            }
+        }
+        synchronized (window) {
+            if (capacity > 0) {
+                window.size = Math.min(maxWindow, window.size + 1 / window.size);
+                window.notifyAll();
+            } else {
+                long now = Time.monotonicNow();
+                if (now - window.lastDecrease >= DECREASE_INTERVAL_MS) {
+                    window.size = Math.max(1, window.size / 2);
+                    window.lastDecrease = now;
+                }
+            }
+        }
+    }
+
+    /**
+     * Current window of the node, -1 when it is not limited.
+     */
+    public double getWindow(String host) {
+        Window window = windows.get(host);
+        if (window == null) {
+            return -1;
+        }
+        synchronized (window) {
+            return window.size;
+        }
+    }
+
+    /**
+     * Opens that had to wait for a slot.
+     */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /**
+     * Opens that failed waiting for a slot.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    private static final class Window {
+        private double size;
+        private int inFlight = 0;
+        private long lastDecrease = 0;
+
+        Window(double size) {
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Follows the column batch framing of a Lambda pushdown result as it is
+ * delivered, so a broken stream can be restarted after the last complete
+ * batch instead of from the beginning.
+ *
+ * The stream starts with the column count and column types as big endian
+ * longs. Every batch then carries one part per column, a 16 byte header
+ * (type, type size, data length, compressed length) followed by the data.
+ * Variable length byte array columns send a length part and a text part.
+ */
+final class NdpBatchTracker {
+    private static final int TYPE_BYTE_ARRAY = 6;
+    private static final int PART_HEADER_SIZE = 16;
+
+    private final ByteBuffer header = ByteBuffer.allocate(PART_HEADER_SIZE);
+    private long nCols = -1;
+    private boolean inPart = false;
+    private int partType;
+    private int partTypeSize;
+    private long skip = 0;
+    private long offset = 0;
+    private long columns = 0;
+    private long batches = 0;
+    private long batchEnd = 0;
+
+    void update(byte[] b, int off, int len) {
+        int end = off + len;
+        while (off < end) {
+            if (skip > 0) {
+                int n = (int) Math.min(skip, end - off);
+                skipped(n);
+                off += n;
+            } else {
+                header.put(b[off++]);
+                headerByte();
+            }
+        }
+    }
+
+    void update(ByteBuffer buf, int start, int len) {
+        int end = start + len;
+        while (start < end) {
+            if (skip > 0) {
+                int n = (int) Math.min(skip, end - start);
+                skipped(n);
+                start += n;
+            } else {
+                header.put(buf.get(start++));
+                headerByte();
+            }
+        }
+    }
+
+    /**
+     * Number of complete batches seen so far.
+     */
+    long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Stream offset right after the last complete batch.
+     */
+    long getBatchEnd() {
+        return batchEnd;
+    }
+
+    /**
+     * Whether the bytes seen so far end on a batch boundary, after the
+     * stream header.
+     */
+    boolean isComplete() {
+        return nCols > 0 && skip == 0 && !inPart && header.position() == 0
+                && columns == 0;
+    }
+
+    private void headerByte() {
+        offset++;
+        if (nCols < 0) {
+            if (header.position() == 8) {
+                nCols = header.getLong(0);
+                header.clear();
+                if (nCols <= 0 || nCols > Integer.MAX_VALUE / 8) {
+                    // Not a column stream, nothing to track
+                    skip = Long.MAX_VALUE;
+                } else {
+                    skip = nCols * 8;
+                }
+            }
+            return;
+        }
+        if (header.position() == PART_HEADER_SIZE) {
+            partType = header.getInt(0);
+            partTypeSize = header.getInt(4);
+            int dataLen = header.getInt(8);
+            int compressedLen = header.getInt(12);
+            header.clear();
+            inPart = true;
+            skip = compressedLen > 0 ? compressedLen : dataLen;
+            if (skip == 0) {
+                partDone();
+            }
+        }
+    }
+
+    private void skipped(int n) {
+        skip -= n;
+        offset += n;
+        if (skip == 0 && inPart) {
+            partDone();
+        }
+    }
+
+    private void partDone() {
+        inPart = false;
+        // The length part of a byte array column is followed by its text part
+        if (partType == TYPE_BYTE_ARRAY && partTypeSize != 0) {
+            return;
+        }
+        if (++columns == nCols) {
+            columns = 0;
+            batches++;
+            batchEnd = offset;
+        }
+    }
+}
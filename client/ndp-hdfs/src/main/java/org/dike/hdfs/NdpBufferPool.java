@@ -0,0 +1,407 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.util.Time;
+import org.dike.hdfs.NdpStorageStatistics.Statistic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffers of the NDP streams of all ndphdfs file systems in the JVM, with
+ * the memory they take bounded by a cap.
+ *
+ * Buffers come in power of two size classes. A lease takes an idle buffer
+ * of its class, or allocates one while leased and idle buffers stay under
+ * the cap, evicting idle buffers of other classes first. With the cap taken
+ * by leased buffers a lease waits for a return at most the configured time
+ * and then fails, so the cap is never exceeded and consumers holding many
+ * streams see the shortage instead of stalling each other.
+ *
+ * Stream buffers are heap arrays. Socket buffers are direct or heap as
+ * configured, direct ones are read from the socket channel and heap ones
+ * through the socket input stream, both with the socket read timeout.
+ * Occupancy is published through {@link NdpStorageStatistics}.
+ */
+public final class NdpBufferPool {
+    private static final Logger LOG = LoggerFactory.getLogger(NdpBufferPool.class);
+    private static final int MIN_BUFFER_SIZE = 4 << 10;
+    private static NdpBufferPool instance = null;
+
+    private final boolean direct;
+    private final long maxBytes;
+    private final long maxWait;
+    private final NdpStorageStatistics statistics;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> idleBuffers =
+            new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    private final Map<Integer, ArrayDeque<byte[]>> idleArrays =
+            new HashMap<Integer, ArrayDeque<byte[]>>();
+    private long leasedBytes = 0;
+    private long idleBytes = 0;
+
+    NdpBufferPool(boolean direct, long maxBytes, long maxWait,
+                  NdpStorageStatistics statistics) {
+        this.direct = direct;
+        this.maxBytes = maxBytes;
+        this.maxWait = maxWait;
+        this.statistics = statistics;
+    }
+
+    /**
+     * The pool of the JVM, configured by the first file system using it.
+     * Later file systems asking for other settings share it as it is.
+     */
+    static synchronized NdpBufferPool get(Configuration conf,
+                                          NdpStorageStatistics statistics) {
+        boolean direct = conf.getBoolean(NdpConfigKeys.BUFFER_POOL_DIRECT_KEY,
+                NdpConfigKeys.BUFFER_POOL_DIRECT_DEFAULT);
+        long maxBytes = conf.getLong(NdpConfigKeys.BUFFER_POOL_MAX_BYTES_KEY,
+                NdpConfigKeys.BUFFER_POOL_MAX_BYTES_DEFAULT);
+        long maxWait = conf.getLong(NdpConfigKeys.BUFFER_POOL_MAX_WAIT_KEY,
+                NdpConfigKeys.BUFFER_POOL_MAX_WAIT_DEFAULT);
+        if (instance == null) {
+            instance = new NdpBufferPool(direct, maxBytes, maxWait, statistics);
+        } else if (instance.direct != direct || instance.maxBytes != maxBytes
+                || instance.maxWait != maxWait) {
+            LOG.warn("Buffer pool already configured with direct=" + instance.direct
+                    + ", maxBytes=" + instance.maxBytes + ", maxWait=" + instance.maxWait
+                    + " ms, ignoring direct=" + direct + ", maxBytes=" + maxBytes
+                    + ", maxWait=" + maxWait + " ms");
+        }
+        return instance;
+    }
+
+    static int sizeClass(int size) {
+        int capacity = Math.max(MIN_BUFFER_SIZE, size);
+        int highest = Integer.highestOneBit(capacity);
+        return highest == capacity ? capacity : highest << 1;
+    }
+
+    /**
+     * Buffer of at least the given capacity, direct if the pool is.
+     */
+    ByteBuffer leaseBuffer(int size) throws IOException {
+        int capacity = sizeClass(size);
+        synchronized (this) {
+            ByteBuffer buffer = reserve(idleBuffers, capacity);
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        statistics.increment(Statistic.BUFFER_POOL_ALLOCATIONS, 1);
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Array of at least the given length.
+     */
+    byte[] leaseArray(int size) throws IOException {
+        int capacity = sizeClass(size);
+        synchronized (this) {
+            byte[] array = reserve(idleArrays, capacity);
+            if (array != null) {
+                return array;
+            }
+        }
+        statistics.increment(Statistic.BUFFER_POOL_ALLOCATIONS, 1);
+        return new byte[capacity];
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        putIdle(idleBuffers, buffer, buffer.capacity());
+    }
+
+    synchronized void release(byte[] array) {
+        putIdle(idleArrays, array, array.length);
+    }
+
+    private <T> T takeIdle(Map<Integer, ArrayDeque<T>> idle, int capacity) {
+        ArrayDeque<T> buffers = idle.get(capacity);
+        if (buffers == null || buffers.isEmpty()) {
+            return null;
+        }
+        idleBytes -= capacity;
+        leasedBytes += capacity;
+        updateOccupancy();
+        return buffers.pollFirst();
+    }
+
+    private <T> void putIdle(Map<Integer, ArrayDeque<T>> idle, T buffer, int capacity) {
+        leasedBytes -= capacity;
+        if (leasedBytes + idleBytes + capacity <= maxBytes) {
+            ArrayDeque<T> buffers = idle.get(capacity);
+            if (buffers == null) {
+                buffers = new ArrayDeque<T>();
+                idle.put(capacity, buffers);
+            }
+            buffers.addFirst(buffer);
+            idleBytes += capacity;
+        }
+        updateOccupancy();
+        notifyAll();
+    }
+
+    // Take an idle buffer of the class, or make room for a new one and
+    // return null. Waits for returns at the cap, must hold the lock
+    private <T> T reserve(Map<Integer, ArrayDeque<T>> idle, int capacity)
+            throws IOException {
+        long start = Time.monotonicNow();
+        try {
+            while (true) {
+                T buffer = takeIdle(idle, capacity);
+                if (buffer != null) {
+                    return buffer;
+                }
+                if (leasedBytes + idleBytes + capacity <= maxBytes) {
+                    leasedBytes += capacity;
+                    updateOccupancy();
+                    return null;
+                }
+                if (idleBytes > 0) {
+                    if (!evict(idleArrays)) {
+                        evict(idleBuffers);
+                    }
+                    continue;
+                }
+                long left = maxWait - (Time.monotonicNow() - start);
+                if (left <= 0) {
+                    statistics.increment(Statistic.BUFFER_POOL_TIMEOUTS, 1);
+                    throw new ExhaustedException("No " + capacity + " byte buffer within "
+                            + maxWait + " ms, the buffer pool is at its cap of "
+                            + maxBytes + " bytes");
+                }
+                wait(left);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        } finally {
+            long waited = Time.monotonicNow() - start;
+            if (waited > 0) {
+                statistics.increment(Statistic.BUFFER_POOL_WAIT_TIME, waited);
+            }
+        }
+    }
+
+    // Drop an idle buffer of the largest class
+    private <T> boolean evict(Map<Integer, ArrayDeque<T>> idle) {
+        int largest = 0;
+        Iterator<Map.Entry<Integer, ArrayDeque<T>>> it = idle.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, ArrayDeque<T>> entry = it.next();
+            if (entry.getValue().isEmpty()) {
+                it.remove();
+            } else if (entry.getKey() > largest) {
+                largest = entry.getKey();
+            }
+        }
+        if (largest == 0) {
+            return false;
+        }
+        idle.get(largest).pollLast();
+        idleBytes -= largest;
+        return true;
+    }
+
+    private void updateOccupancy() {
+        statistics.set(Statistic.BUFFER_POOL_LEASED_BYTES, leasedBytes);
+        statistics.set(Statistic.BUFFER_POOL_IDLE_BYTES, idleBytes);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getLeasedBytes() {
+        return leasedBytes;
+    }
+
+    public synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    /**
+     * A lease found the pool at its cap for the configured time. Not a
+     * failure of the datanode being read.
+     */
+    public static final class ExhaustedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Buffered stream like BufferedInputStream over a leased array. The
+     * array goes back to the pool at the end of the data or on release,
+     * whichever comes first. Byte buffer reads copy straight from the array.
+     * Reads are synchronized with the release, so a buffer being filled is
+     * never handed to another stream.
+     */
+    static final class BufferedStream extends InputStream implements ByteBufferReadable {
+        private final NdpBufferPool pool;
+        private final InputStream in;
+        private byte[] buf;
+        private int pos = 0;
+        private int count = 0;
+        private boolean eof = false;
+
+        BufferedStream(NdpBufferPool pool, InputStream in, int size) throws IOException {
+            this.pool = pool;
+            this.in = in;
+            this.buf = pool.leaseArray(size);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if (pos >= count && !fill()) {
+                return -1;
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int available = count - pos;
+            if (available <= 0) {
+                if (!eof && buf != null && len >= buf.length) {
+                    // Large reads go around the buffer
+                    int n = in.read(b, off, len);
+                    if (n < 0) {
+                        end();
+                    }
+                    return n;
+                }
+                if (!fill()) {
+                    return -1;
+                }
+                available = count - pos;
+            }
+            int n = Math.min(available, len);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            if (pos >= count && !fill()) {
+                return -1;
+            }
+            int n = Math.min(count - pos, dst.remaining());
+            dst.put(buf, pos, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public synchronized long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            int available = count - pos;
+            if (available > 0) {
+                int skipped = (int) Math.min(available, n);
+                pos += skipped;
+                return skipped;
+            }
+            if (eof) {
+                return 0;
+            }
+            ensureOpen();
+            return in.skip(n);
+        }
+
+        @Override
+        public synchronized int available() throws IOException {
+            int available = count - pos;
+            if (eof || buf == null) {
+                return Math.max(0, available);
+            }
+            return available + in.available();
+        }
+
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            ensureOpen();
+            int n = in.read(buf, 0, buf.length);
+            if (n < 0) {
+                end();
+                return false;
+            }
+            pos = 0;
+            count = n;
+            return true;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (buf == null) {
+                throw new IOException("Stream closed");
+            }
+        }
+
+        private void end() {
+            eof = true;
+            release();
+        }
+
+        /**
+         * Return the buffer without closing the underlying stream. Close
+         * the underlying stream first when another thread may be reading,
+         * so the read in progress fails before the buffer is returned.
+         */
+        synchronized void release() {
+            if (buf != null) {
+                pool.release(buf);
+                buf = null;
+            }
+            pos = 0;
+            count = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One column of a {@link NdpColumnarBatch}.
+ *
+ * INT64 and DOUBLE values are kept big endian as they came over the wire.
+ * Byte arrays are kept as one data buffer with the start of every row,
+ * fixed length byte arrays without them.
+ *
+ * Values may live off heap, see {@link NdpColumnarBatchReader#setDirect}.
+ * {@link #getData()} with {@link #getOffset(int)} and
+ * {@link #getLength(int)} reads byte arrays wherever they are,
+ * {@link #getBytes()} only when they are on the heap.
+ */
+public final class NdpColumnVector {
+    // Column types of the Lambda binary column format
+    public static final int TYPE_INT64 = 2;
+    public static final int TYPE_DOUBLE = 5;
+    public static final int TYPE_BYTE_ARRAY = 6;
+    public static final int TYPE_FIXED_LEN_BYTE_ARRAY = 7;
+
+    private final int type;
+    private int rowCount = 0;
+    private ByteBuffer values = null;
+    private ByteBuffer data = null;
+    private int dataStart = 0;
+    private IntBuffer offsets = null;
+    private int fixedLength = 0;
+
+    NdpColumnVector(int type) {
+        this.type = type;
+    }
+
+    void setValues(ByteBuffer values, int rowCount) {
+        this.values = values;
+        this.rowCount = rowCount;
+    }
+
+    void setFixedLength(byte[] data, int fixedLength, int rowCount) {
+        setFixedLength(ByteBuffer.wrap(data), 0, fixedLength, rowCount);
+    }
+
+    void setFixedLength(byte[] data, int dataStart, int fixedLength, int rowCount) {
+        setFixedLength(ByteBuffer.wrap(data), dataStart, fixedLength, rowCount);
+    }
+
+    // Index 0 of data is index 0 of its array when it has one
+    void setFixedLength(ByteBuffer data, int dataStart, int fixedLength, int rowCount) {
+        this.data = data;
+        this.dataStart = dataStart;
+        this.offsets = null;
+        this.fixedLength = fixedLength;
+        this.rowCount = rowCount;
+    }
+
+    // offsets holds rowCount + 1 entries, the last one ends the data
+    void setVariableLength(byte[] data, int[] offsets, int rowCount) {
+        setVariableLength(ByteBuffer.wrap(data), 0, IntBuffer.wrap(offsets), rowCount);
+    }
+
+    void setVariableLength(byte[] data, int dataStart, IntBuffer offsets, int rowCount) {
+        setVariableLength(ByteBuffer.wrap(data), dataStart, offsets, rowCount);
+    }
+
+    // offsets are relative to dataStart
+    void setVariableLength(ByteBuffer data, int dataStart, IntBuffer offsets, int rowCount) {
+        this.data = data;
+        this.dataStart = dataStart;
+        this.offsets = offsets;
+        this.fixedLength = 0;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Type of the column in the result header. Byte array columns may
+     * send a batch as {@link #TYPE_FIXED_LEN_BYTE_ARRAY} when all its
+     * values have the same length.
+     */
+    public int getType() {
+        return type;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public long getLong(int row) {
+        return values.getLong(row << 3);
+    }
+
+    public double getDouble(int row) {
+        return values.getDouble(row << 3);
+    }
+
+    /**
+     * Data array of a byte array column, see {@link #getOffset(int)}, or
+     * null when the data is off heap.
+     */
+    public byte[] getBytes() {
+        return data.hasArray() ? data.array() : null;
+    }
+
+    /**
+     * Data of a byte array column, see {@link #getOffset(int)}.
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public int getOffset(int row) {
+        return dataStart + (offsets != null ? offsets.get(row) : row * fixedLength);
+    }
+
+    public int getLength(int row) {
+        return offsets != null ? offsets.get(row + 1) - offsets.get(row) : fixedLength;
+    }
+
+    /**
+     * UTF-8 bytes of a row as a view of the data.
+     */
+    public ByteBuffer getUTF8(int row) {
+        ByteBuffer slice = data.duplicate();
+        int offset = getOffset(row);
+        ((Buffer) slice).limit(offset + getLength(row));
+        ((Buffer) slice).position(offset);
+        return slice.slice();
+    }
+
+    public String getString(int row) {
+        switch (type) {
+            case TYPE_INT64:
+                return String.valueOf(getLong(row));
+            case TYPE_DOUBLE:
+                return String.valueOf(getDouble(row));
+            default:
+                int offset = getOffset(row);
+                int length = getLength(row);
+                if (data.hasArray()) {
+                    return new String(data.array(), offset, length, StandardCharsets.UTF_8);
+                }
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = data.get(offset + i);
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
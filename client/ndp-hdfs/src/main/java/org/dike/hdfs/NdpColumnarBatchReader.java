@@ -0,0 +1,395 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdException;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Decodes binary column results into batches.
+ *
+ * Both formats start with the column count and the column types as big
+ * endian longs. {@link Format#LAMBDA} results of Lambda DAGs then send
+ * each column of a batch as chunks of a header of four big endian ints,
+ * type, type size, data length and compressed length, and the data, ZSTD
+ * compressed when the compressed length is not 0. Byte array columns send
+ * a chunk of one byte lengths followed by a chunk of the values, fixed
+ * length byte arrays only the values.
+ *
+ * {@link Format#DIKE_SQL} results of dikeSQL parquet queries send each
+ * column as a big endian long length and the data, byte arrays as the one
+ * byte lengths and then the length and data of the values. Their types
+ * are reported as the Lambda types.
+ *
+ * By default every batch has buffers of its own, so batches may be kept
+ * or handed to other threads. With {@link #setReuse(boolean)} the reader
+ * decodes every batch into the same batch and buffers, which are only
+ * valid until the next call of {@link #next()}.
+ *
+ * Compressed chunks are decompressed with one ZSTD context per reader,
+ * straight into the column buffers, off heap ones included.
+ */
+public class NdpColumnarBatchReader implements Closeable {
+    public enum Format {
+        LAMBDA,
+        DIKE_SQL
+    }
+
+    // Column types of dikeSQL results
+    private static final int SQL_TYPE_INT64 = 1;
+    private static final int SQL_TYPE_DOUBLE = 2;
+    private static final int SQL_TYPE_BYTE_ARRAY = 3;
+
+    private static final int HEADER_TYPE = 0;
+    private static final int HEADER_TYPE_SIZE = 4;
+    private static final int HEADER_DATA_LEN = 8;
+    private static final int HEADER_COMPRESSED_LEN = 12;
+
+    private final DataInputStream in;
+    private final Format format;
+    private final ByteBuffer header = ByteBuffer.allocate(16);
+    private boolean reuse = false;
+    private boolean direct = false;
+    private int[] types = null;
+    private byte[] compressed = new byte[0];
+    private byte[] scratch = new byte[0];
+    // Compressed chunks of direct columns
+    private ByteBuffer compressedDirect = null;
+    private ZstdDecompressCtx zstd = null;
+    // Last batch and the buffers of its columns, kept when reused
+    private NdpColumnarBatch batch = null;
+    private NdpColumnVector[] vectors = null;
+    private ByteBuffer[] values = null;
+    private ByteBuffer[] data = null;
+    private int[][] offsets = null;
+
+    public NdpColumnarBatchReader(InputStream in) {
+        this(in, Format.LAMBDA);
+    }
+
+    public NdpColumnarBatchReader(InputStream in, Format format) {
+        this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+        this.format = format;
+    }
+
+    /**
+     * Decode every batch into the same batch and buffers.
+     */
+    public void setReuse(boolean reuse) {
+        this.reuse = reuse;
+    }
+
+    /**
+     * Keep column values off heap.
+     */
+    public void setDirect(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * Column types of the result header.
+     */
+    public int[] getTypes() throws IOException {
+        readTypes();
+        return types.clone();
+    }
+
+    /**
+     * Next batch of the result, or null at its end.
+     */
+    public NdpColumnarBatch next() throws IOException {
+        readTypes();
+        if (!reuse || batch == null) {
+            vectors = new NdpColumnVector[types.length];
+            values = new ByteBuffer[types.length];
+            data = new ByteBuffer[types.length];
+            offsets = new int[types.length][];
+            batch = null;
+        }
+        int rowCount = -1;
+        for (int i = 0; i < types.length; i++) {
+            int rows = format == Format.LAMBDA ? readLambdaColumn(i) : readSqlColumn(i);
+            if (rows < 0) {
+                if (i == 0) {
+                    return null;
+                }
+                throw new EOFException("Result ends within a batch");
+            }
+            if (rowCount >= 0 && rows != rowCount) {
+                throw new IOException("Column " + i + " has " + rows
+                        + " rows in a batch of " + rowCount);
+            }
+            rowCount = rows;
+        }
+        if (batch == null) {
+            batch = new NdpColumnarBatch(vectors);
+        }
+        batch.setRowCount(Math.max(0, rowCount));
+        return batch;
+    }
+
+    private void readTypes() throws IOException {
+        if (types != null) {
+            return;
+        }
+        long count = in.readLong();
+        if (count < 0 || count > Integer.MAX_VALUE) {
+            throw new IOException("Invalid column count " + count);
+        }
+        int[] columnTypes = new int[(int) count];
+        for (int i = 0; i < columnTypes.length; i++) {
+            long type = in.readLong();
+            columnTypes[i] = format == Format.LAMBDA ? (int) type : sqlType(type);
+        }
+        types = columnTypes;
+    }
+
+    private static int sqlType(long type) throws IOException {
+        if (type == SQL_TYPE_INT64) {
+            return NdpColumnVector.TYPE_INT64;
+        } else if (type == SQL_TYPE_DOUBLE) {
+            return NdpColumnVector.TYPE_DOUBLE;
+        } else if (type == SQL_TYPE_BYTE_ARRAY) {
+            return NdpColumnVector.TYPE_BYTE_ARRAY;
+        }
+        throw new IOException("Unsupported column type " + type);
+    }
+
+    // Vector of a column, of the type the batch sends it as. A reused
+    // batch shares the vector array, so it sees replaced vectors
+    private NdpColumnVector vector(int column, int type) {
+        if (vectors[column] == null || vectors[column].getType() != type) {
+            vectors[column] = new NdpColumnVector(type);
+        }
+        return vectors[column];
+    }
+
+    // True at the start of a column, false at the end of the result
+    private boolean readFirstByte(byte[] bytes) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            return false;
+        }
+        bytes[0] = (byte) b;
+        return true;
+    }
+
+    // Rows of the column, -1 at the end of the result
+    private int readLambdaColumn(int column) throws IOException {
+        byte[] bytes = header.array();
+        if (!readFirstByte(bytes)) {
+            return -1;
+        }
+        in.readFully(bytes, 1, bytes.length - 1);
+        int type = header.getInt(HEADER_TYPE);
+        int typeSize = header.getInt(HEADER_TYPE_SIZE);
+        int length = header.getInt(HEADER_DATA_LEN);
+        int compressedLength = header.getInt(HEADER_COMPRESSED_LEN);
+        if (length < 0 || compressedLength < 0) {
+            throw new IOException("Invalid chunk of " + length + " bytes, "
+                    + compressedLength + " compressed");
+        }
+        switch (type) {
+            case NdpColumnVector.TYPE_INT64:
+            case NdpColumnVector.TYPE_DOUBLE:
+                values[column] = buffer(values[column], length);
+                readData(values[column], length, compressedLength);
+                vector(column, type).setValues(values[column], length >> 3);
+                return length >> 3;
+            case NdpColumnVector.TYPE_FIXED_LEN_BYTE_ARRAY:
+                if (typeSize <= 0) {
+                    throw new IOException("Invalid fixed length " + typeSize);
+                }
+                data[column] = buffer(data[column], length);
+                readData(data[column], length, compressedLength);
+                vector(column, type).setFixedLength(data[column], 0, typeSize, length / typeSize);
+                return length / typeSize;
+            case NdpColumnVector.TYPE_BYTE_ARRAY:
+                int[] rowOffsets = readOffsets(column, length, compressedLength);
+                in.readFully(bytes);
+                int textLength = header.getInt(HEADER_DATA_LEN);
+                if (header.getInt(HEADER_TYPE) != NdpColumnVector.TYPE_BYTE_ARRAY
+                        || textLength != rowOffsets[length]) {
+                    throw new IOException("Byte array values of " + textLength
+                            + " bytes do not match their lengths of " + rowOffsets[length]);
+                }
+                data[column] = buffer(data[column], textLength);
+                readData(data[column], textLength, header.getInt(HEADER_COMPRESSED_LEN));
+                vector(column, type).setVariableLength(data[column], 0,
+                        IntBuffer.wrap(rowOffsets), length);
+                return length;
+            default:
+                throw new IOException("Unsupported column type " + type);
+        }
+    }
+
+    // Rows of the column, -1 at the end of the result
+    private int readSqlColumn(int column) throws IOException {
+        byte[] bytes = header.array();
+        if (!readFirstByte(bytes)) {
+            return -1;
+        }
+        in.readFully(bytes, 1, 7);
+        int length = checkLength(header.getLong(0));
+        int type = types[column];
+        if (type != NdpColumnVector.TYPE_BYTE_ARRAY) {
+            values[column] = buffer(values[column], length);
+            readData(values[column], length, 0);
+            vector(column, type).setValues(values[column], length >> 3);
+            return length >> 3;
+        }
+        int[] rowOffsets = readOffsets(column, length, 0);
+        int textLength = checkLength(in.readLong());
+        if (textLength != rowOffsets[length]) {
+            throw new IOException("Byte array values of " + textLength
+                    + " bytes do not match their lengths of " + rowOffsets[length]);
+        }
+        data[column] = buffer(data[column], textLength);
+        readData(data[column], textLength, 0);
+        vector(column, type).setVariableLength(data[column], 0, IntBuffer.wrap(rowOffsets), length);
+        return length;
+    }
+
+    private static int checkLength(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid column of " + length + " bytes");
+        }
+        return (int) length;
+    }
+
+    // Offsets of the rows from their one byte lengths
+    private int[] readOffsets(int column, int rows, int compressedLength) throws IOException {
+        byte[] lengths = scratch(rows);
+        readData(lengths, rows, compressedLength);
+        int[] rowOffsets = offsets[column];
+        if (rowOffsets == null || rowOffsets.length < rows + 1) {
+            rowOffsets = new int[rows + 1];
+            offsets[column] = rowOffsets;
+        }
+        rowOffsets[0] = 0;
+        for (int i = 0; i < rows; i++) {
+            rowOffsets[i + 1] = rowOffsets[i] + (lengths[i] & 0xff);
+        }
+        return rowOffsets;
+    }
+
+    private ByteBuffer buffer(ByteBuffer current, int size) {
+        if (reuse && current != null && current.capacity() >= size) {
+            return current;
+        }
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private byte[] scratch(int size) {
+        if (scratch.length < size) {
+            scratch = new byte[size];
+        }
+        return scratch;
+    }
+
+    private void readData(ByteBuffer target, int length, int compressedLength) throws IOException {
+        if (target.hasArray()) {
+            readData(target.array(), length, compressedLength);
+            return;
+        }
+        if (compressedLength > 0) {
+            if (compressedDirect == null || compressedDirect.capacity() < compressedLength) {
+                compressedDirect = ByteBuffer.allocateDirect(compressedLength);
+            }
+            byte[] bytes = scratch(compressedLength);
+            in.readFully(bytes, 0, compressedLength);
+            ((Buffer) compressedDirect).clear();
+            compressedDirect.put(bytes, 0, compressedLength);
+            int n;
+            try {
+                n = zstd().decompressDirectByteBuffer(target, 0, length,
+                        compressedDirect, 0, compressedLength);
+            } catch (ZstdException e) {
+                throw new IOException("ZSTD decompression failed: " + e.getMessage(), e);
+            }
+            checkDecompressed(n, length);
+            return;
+        }
+        byte[] bytes = scratch(length);
+        readData(bytes, length, compressedLength);
+        ByteBuffer copy = target.duplicate();
+        ((Buffer) copy).position(0);
+        copy.put(bytes, 0, length);
+    }
+
+    private void readData(byte[] target, int length, int compressedLength) throws IOException {
+        if (length < 0 || compressedLength < 0) {
+            throw new IOException("Invalid chunk of " + length + " bytes, "
+                    + compressedLength + " compressed");
+        }
+        if (compressedLength == 0) {
+            in.readFully(target, 0, length);
+            return;
+        }
+        if (compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        in.readFully(compressed, 0, compressedLength);
+        checkDecompressed(decompress(target, 0, length, compressed, 0, compressedLength), length);
+    }
+
+    private static void checkDecompressed(int n, int length) throws IOException {
+        if (n != length) {
+            throw new EOFException("Chunk decompressed to " + n + " of " + length + " bytes");
+        }
+    }
+
+    private ZstdDecompressCtx zstd() {
+        if (zstd == null) {
+            zstd = new ZstdDecompressCtx();
+        }
+        return zstd;
+    }
+
+    // Decompressed size of a ZSTD frame
+    private int decompress(byte[] target, int offset, int length,
+                   byte[] source, int sourceOffset, int sourceLength) throws IOException {
+        try {
+            return zstd().decompressByteArray(target, offset, length,
+                    source, sourceOffset, sourceLength);
+        } catch (ZstdException e) {
+            throw new IOException("ZSTD decompression failed: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            if (zstd != null) {
+                zstd.close();
+                zstd = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+/**
+ * Client side configuration keys understood by {@link NdpHdfsFileSystem}.
+ */
+public final class NdpConfigKeys {
+    private NdpConfigKeys() {
+    }
+
+    // Maximum number of block pushdown requests kept in flight by openParallel
+    public static final String PARALLEL_OPEN_THREADS_KEY =
+            "dike.ndp.parallel.open.threads";
+    public static final int PARALLEL_OPEN_THREADS_DEFAULT = 4;
+
+    // Number of buffers each block may read ahead of the consumer
+    public static final String PARALLEL_OPEN_QUEUE_DEPTH_KEY =
+            "dike.ndp.parallel.open.queue.depth";
+    public static final int PARALLEL_OPEN_QUEUE_DEPTH_DEFAULT = 8;
+
+    // Number of buffers NdpHdfsInputStream reads ahead of the consumer,
+    // 0 disables read ahead
+    public static final String READAHEAD_DEPTH_KEY =
+            "dike.ndp.readahead.depth";
+    public static final int READAHEAD_DEPTH_DEFAULT = 0;
+
+    // Serve plain opens with NdpHdfsInputStream, whose positioned reads
+    // are ranged requests of their own. Plain opens get the WebHDFS
+    // stream when disabled, unless the adaptive pushdown policy is on
+    public static final String PLAIN_OPEN_ENABLED_KEY =
+            "dike.ndp.plain.open.enabled";
+    public static final boolean PLAIN_OPEN_ENABLED_DEFAULT = false;
+
+    // Reuse keep-alive HTTP connections across runners. Pooled connections
+    // take their timeouts from the WebHDFS connection factory, and are only
+    // used for http:// on clusters without Kerberos
+    public static final String CONNECTION_POOL_ENABLED_KEY =
+            "dike.ndp.connection.pool.enabled";
+    public static final boolean CONNECTION_POOL_ENABLED_DEFAULT = true;
+
+    // Maximum number of idle connections kept per host:port
+    public static final String CONNECTION_POOL_MAX_PER_HOST_KEY =
+            "dike.ndp.connection.pool.max.per.host";
+    public static final int CONNECTION_POOL_MAX_PER_HOST_DEFAULT = 16;
+
+    // Idle connections are closed after this long, kept below the
+    // server keep-alive timeout
+    public static final String CONNECTION_POOL_IDLE_TIMEOUT_KEY =
+            "dike.ndp.connection.pool.idle.timeout.ms";
+    public static final long CONNECTION_POOL_IDLE_TIMEOUT_DEFAULT = 8000;
+
+    // Bytes of unread response drained on close to keep a connection reusable
+    public static final String CONNECTION_POOL_DRAIN_LIMIT_KEY =
+            "dike.ndp.connection.pool.drain.limit";
+    public static final int CONNECTION_POOL_DRAIN_LIMIT_DEFAULT = 64 << 10;
+
+    // Maximum number of gateway redirects cached for pushdown opens,
+    // 0 disables the cache
+    public static final String REDIRECT_CACHE_SIZE_KEY =
+            "dike.ndp.redirect.cache.size";
+    public static final int REDIRECT_CACHE_SIZE_DEFAULT = 1024;
+
+    // Time a cached redirect stays valid
+    public static final String REDIRECT_CACHE_TTL_KEY =
+            "dike.ndp.redirect.cache.ttl.ms";
+    public static final long REDIRECT_CACHE_TTL_DEFAULT = 60000;
+
+    // Attempts repeated after a failed request, each through the gateway
+    // so a failed datanode is excluded
+    public static final String RETRY_MAX_KEY =
+            "dike.ndp.retry.max";
+    public static final int RETRY_MAX_DEFAULT = 3;
+
+    // First retry delay, doubled on every further attempt
+    public static final String RETRY_BACKOFF_BASE_KEY =
+            "dike.ndp.retry.backoff.base.ms";
+    public static final long RETRY_BACKOFF_BASE_DEFAULT = 200;
+
+    public static final String RETRY_BACKOFF_MAX_KEY =
+            "dike.ndp.retry.backoff.max.ms";
+    public static final long RETRY_BACKOFF_MAX_DEFAULT = 10000;
+
+    // Send a second copy of a pushdown request to another replica when the
+    // first batch is late
+    public static final String HEDGE_ENABLED_KEY =
+            "dike.ndp.hedge.enabled";
+    public static final boolean HEDGE_ENABLED_DEFAULT = false;
+
+    // First batch latency percentile after which the request is hedged
+    public static final String HEDGE_PERCENTILE_KEY =
+            "dike.ndp.hedge.percentile";
+    public static final float HEDGE_PERCENTILE_DEFAULT = 0.95f;
+
+    // Lower bound of the hedge delay
+    public static final String HEDGE_MIN_DELAY_KEY =
+            "dike.ndp.hedge.min.delay.ms";
+    public static final long HEDGE_MIN_DELAY_DEFAULT = 50;
+
+    // Hedge delay used until enough latencies were recorded
+    public static final String HEDGE_DEFAULT_DELAY_KEY =
+            "dike.ndp.hedge.default.delay.ms";
+    public static final long HEDGE_DEFAULT_DELAY_DEFAULT = 1000;
+
+    // Transport for pooled response bodies, "blocking" reads them on the
+    // consumer thread, "nio" on a few shared selector threads
+    public static final String TRANSPORT_KEY =
+            "dike.ndp.transport";
+    public static final String TRANSPORT_DEFAULT = "blocking";
+
+    // Number of selector threads of the nio transport
+    public static final String TRANSPORT_NIO_THREADS_KEY =
+            "dike.ndp.transport.nio.threads";
+    public static final int TRANSPORT_NIO_THREADS_DEFAULT = 2;
+
+    // Size of the buffers the nio transport reads into
+    public static final String TRANSPORT_NIO_BUFFER_SIZE_KEY =
+            "dike.ndp.transport.nio.buffer.size";
+    public static final int TRANSPORT_NIO_BUFFER_SIZE_DEFAULT = 64 << 10;
+
+    // Buffers each stream may fill ahead of its consumer
+    public static final String TRANSPORT_NIO_STREAM_BUFFERS_KEY =
+            "dike.ndp.transport.nio.stream.buffers";
+    public static final int TRANSPORT_NIO_STREAM_BUFFERS_DEFAULT = 4;
+
+    // Maximum number of pushdown tasks the scan scheduler runs at once
+    public static final String SCAN_MAX_CONCURRENCY_KEY =
+            "dike.ndp.scan.max.concurrency";
+    public static final int SCAN_MAX_CONCURRENCY_DEFAULT = 256;
+
+    // Number of ReadParam digests remembered per file system for datanodes
+    // that keep ReadParams, 0 always sends the full ReadParam
+    public static final String READPARAM_DIGEST_CACHE_SIZE_KEY =
+            "dike.ndp.readparam.digest.cache.size";
+    public static final int READPARAM_DIGEST_CACHE_SIZE_DEFAULT = 4096;
+
+    // How pushdown is chosen over plain reads by shouldPushdown, "always"
+    // or "adaptive" from observed costs
+    public static final String PUSHDOWN_POLICY_KEY =
+            "dike.ndp.pushdown.policy";
+    public static final String PUSHDOWN_POLICY_DEFAULT = "always";
+
+    // Every so many decisions per DAG the adaptive policy takes the other
+    // choice to refresh its estimates, 0 never does
+    public static final String PUSHDOWN_EXPLORE_INTERVAL_KEY =
+            "dike.ndp.pushdown.explore.interval";
+    public static final int PUSHDOWN_EXPLORE_INTERVAL_DEFAULT = 16;
+
+    // Weight of a new sample in the moving averages of the adaptive policy
+    public static final String PUSHDOWN_HISTORY_WEIGHT_KEY =
+            "dike.ndp.pushdown.history.weight";
+    public static final float PUSHDOWN_HISTORY_WEIGHT_DEFAULT = 0.2f;
+
+    // Limit open pushdown streams per storage node to what it advertises
+    // as free, so work is not redirected to compute nodes
+    public static final String ADMISSION_ENABLED_KEY =
+            "dike.ndp.admission.enabled";
+    public static final boolean ADMISSION_ENABLED_DEFAULT = true;
+
+    // Largest number of pushdown streams open on one storage node
+    public static final String ADMISSION_MAX_WINDOW_KEY =
+            "dike.ndp.admission.max.window";
+    public static final int ADMISSION_MAX_WINDOW_DEFAULT = 64;
+
+    // Longest a pushdown open waits for a slot on its storage node before
+    // it fails
+    public static final String ADMISSION_MAX_WAIT_KEY =
+            "dike.ndp.admission.max.wait.ms";
+    public static final long ADMISSION_MAX_WAIT_DEFAULT = 10000;
+
+    // Ask the datanode to stop a pushdown whose result is closed before
+    // it was read to the end
+    public static final String CANCEL_ENABLED_KEY =
+            "dike.ndp.cancel.enabled";
+    public static final boolean CANCEL_ENABLED_DEFAULT = true;
+
+    // Lease stream and socket buffers from one pool shared by the JVM
+    public static final String BUFFER_POOL_ENABLED_KEY =
+            "dike.ndp.buffer.pool.enabled";
+    public static final boolean BUFFER_POOL_ENABLED_DEFAULT = true;
+
+    // Socket buffers from direct memory, read from the socket channel.
+    // Stream buffers are always heap
+    public static final String BUFFER_POOL_DIRECT_KEY =
+            "dike.ndp.buffer.pool.direct";
+    public static final boolean BUFFER_POOL_DIRECT_DEFAULT = false;
+
+    // Hard cap of leased and idle buffer memory. The pool and its settings
+    // are those of the first file system of the JVM
+    public static final String BUFFER_POOL_MAX_BYTES_KEY =
+            "dike.ndp.buffer.pool.max.bytes";
+    public static final long BUFFER_POOL_MAX_BYTES_DEFAULT = 256L << 20;
+
+    // Longest a lease waits at the cap before the read needing it fails
+    public static final String BUFFER_POOL_MAX_WAIT_KEY =
+            "dike.ndp.buffer.pool.max.wait.ms";
+    public static final long BUFFER_POOL_MAX_WAIT_DEFAULT = 1000;
+
+    // Column batches a dataset scan holds ahead of the consumer
+    public static final String DATASET_SCAN_QUEUE_DEPTH_KEY =
+            "dike.ndp.dataset.scan.queue.depth";
+    public static final int DATASET_SCAN_QUEUE_DEPTH_DEFAULT = 16;
+}
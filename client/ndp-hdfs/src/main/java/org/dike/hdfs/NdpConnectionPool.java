@@ -0,0 +1,431 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.util.Time;
+
+/**
+ * Keep-alive connections to gateway and datanode ports, keyed by host:port.
+ *
+ * Idle connections are kept up to a per-host cap and evicted once they were
+ * idle longer than the pool timeout or the server keep-alive timeout.
+ */
+public class NdpConnectionPool implements Closeable {
+    private static final int SOCKET_BUFFER_SIZE = 64 << 10;
+
+    private final Map<String, ArrayDeque<PooledSocket>> idle =
+            new HashMap<String, ArrayDeque<PooledSocket>>();
+    private final int maxIdlePerHost;
+    private final long idleTimeout;
+    private final int drainLimit;
+    private final NdpBufferPool bufferPool;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private boolean closed = false;
+
+    /**
+     * Socket buffers are leased from the buffer pool, if one is given.
+     */
+    public NdpConnectionPool(int maxIdlePerHost, long idleTimeout, int drainLimit,
+                             NdpBufferPool bufferPool) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeout = idleTimeout;
+        this.drainLimit = drainLimit;
+        this.bufferPool = bufferPool;
+    }
+
+    static final class PooledSocket {
+        final String key;
+        final SocketChannel channel;
+        final ChannelInputStream in;
+        final OutputStream out;
+        boolean reused = false;
+        long expireTime;
+
+        PooledSocket(String key, SocketChannel channel, NdpBufferPool bufferPool)
+                throws IOException {
+            this.key = key;
+            this.channel = channel;
+            Socket socket = channel.socket();
+            out = new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER_SIZE);
+            in = new ChannelInputStream(channel, SOCKET_BUFFER_SIZE, bufferPool);
+        }
+
+        void close() {
+            in.detached();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing to do, the socket is gone either way
+            }
+            in.release();
+        }
+    }
+
+    /**
+     * Buffered stream over the socket of a blocking channel. Heap buffers
+     * are filled through the socket input stream, as blocking channel reads
+     * do not observe the socket read timeout. Direct buffers are filled
+     * from the channel, which is switched to non-blocking mode for them and
+     * waits on a selector of its own for the socket read timeout. Large
+     * reads into a ByteBuffer bypass the buffer the same way.
+     *
+     * While attached to a {@link NdpSelectorTransport} the stream serves
+     * the chunks read by the selector thread instead, and read timeouts
+     * apply.
+     *
+     * Reads are synchronized with the release of the buffer, as another
+     * thread may close the socket while a read is in progress.
+     */
+    static final class ChannelInputStream extends InputStream {
+        private static final ByteBuffer RELEASED = ByteBuffer.allocate(0);
+        private final SocketChannel channel;
+        private final InputStream socketIn;
+        private final NdpBufferPool bufferPool;
+        private ByteBuffer ownBuffer;
+        private ByteBuffer buffer;
+        private volatile NdpSelectorTransport.Stream async = null;
+        private int readTimeout = 0;
+        private Selector selector = null;
+
+        ChannelInputStream(SocketChannel channel, int bufferSize, NdpBufferPool bufferPool)
+                throws IOException {
+            this.channel = channel;
+            this.socketIn = channel.socket().getInputStream();
+            this.bufferPool = bufferPool;
+            this.ownBuffer = bufferPool != null ? bufferPool.leaseBuffer(bufferSize)
+                    : ByteBuffer.allocate(bufferSize);
+            this.ownBuffer.flip();
+            this.buffer = ownBuffer;
+        }
+
+        /**
+         * Return the buffer to the pool once the channel is closed, after
+         * any read in progress failed.
+         */
+        synchronized void release() {
+            if (bufferPool != null && ownBuffer != RELEASED) {
+                bufferPool.release(ownBuffer);
+            }
+            ownBuffer = RELEASED;
+            buffer = RELEASED;
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Nothing to do, the channel is closed already
+                }
+                selector = null;
+            }
+        }
+
+        /**
+         * Serve the rest of the current response from the transport.
+         */
+        synchronized void attach(NdpSelectorTransport transport, int timeout) {
+            readTimeout = timeout;
+            async = transport.attach(channel);
+        }
+
+        /**
+         * Take the channel back once the response was consumed.
+         */
+        synchronized void detach() throws IOException {
+            NdpSelectorTransport.Stream stream = async;
+            if (stream == null) {
+                return;
+            }
+            async = null;
+            stream.detach();
+            if (buffer != ownBuffer && ownBuffer != RELEASED) {
+                ownBuffer.clear();
+                ownBuffer.put(buffer);
+                ownBuffer.flip();
+                stream.recycle(buffer);
+                buffer = ownBuffer;
+            }
+        }
+
+        // The channel was closed, wake up a consumer waiting for chunks
+        void detached() {
+            NdpSelectorTransport.Stream stream = async;
+            if (stream != null) {
+                stream.close();
+            }
+        }
+
+        boolean isAttached() {
+            return async != null;
+        }
+
+        private boolean fill() throws IOException {
+            NdpSelectorTransport.Stream stream = async;
+            if (stream != null) {
+                if (buffer != ownBuffer) {
+                    stream.recycle(buffer);
+                    buffer = ownBuffer;
+                }
+                ByteBuffer chunk = stream.take(readTimeout);
+                if (chunk == null) {
+                    return false;
+                }
+                buffer = chunk;
+                return true;
+            }
+            if (ownBuffer == RELEASED) {
+                throw new IOException("Socket closed");
+            }
+            buffer.clear();
+            if (!buffer.hasArray()) {
+                int count = readChannel(buffer, buffer.capacity());
+                buffer.flip();
+                return count > 0;
+            }
+            int count = socketIn.read(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+            buffer.limit(Math.max(count, 0));
+            return count > 0;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte b[], int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        /**
+         * Read at most limit bytes into dst.
+         */
+        synchronized int read(ByteBuffer dst, int limit) throws IOException {
+            int len = Math.min(dst.remaining(), limit);
+            if (len == 0) {
+                return 0;
+            }
+            if (buffer.hasRemaining()) {
+                int count = Math.min(len, buffer.remaining());
+                int bufferLimit = buffer.limit();
+                buffer.limit(buffer.position() + count);
+                dst.put(buffer);
+                buffer.limit(bufferLimit);
+                return count;
+            }
+            if (len < ownBuffer.capacity() || async != null) {
+                if (!fill()) {
+                    return -1;
+                }
+                return read(dst, limit);
+            }
+            if (!dst.hasArray()) {
+                return readChannel(dst, len);
+            }
+            int count = socketIn.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+            if (count > 0) {
+                dst.position(dst.position() + count);
+            }
+            return count == 0 ? -1 : count;
+        }
+
+        // Read from the channel, as its socket stream only takes arrays.
+        // Returns -1 at the end of the stream
+        private int readChannel(ByteBuffer dst, int len) throws IOException {
+            if (ownBuffer == RELEASED) {
+                throw new IOException("Socket closed");
+            }
+            int dstLimit = dst.limit();
+            dst.limit(dst.position() + len);
+            SelectionKey key = null;
+            channel.configureBlocking(false);
+            try {
+                int count = channel.read(dst);
+                while (count == 0) {
+                    if (key == null) {
+                        if (selector == null) {
+                            selector = Selector.open();
+                        }
+                        key = channel.register(selector, SelectionKey.OP_READ);
+                    }
+                    if (selector.select(channel.socket().getSoTimeout()) == 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                    selector.selectedKeys().clear();
+                    count = channel.read(dst);
+                }
+                return count;
+            } finally {
+                dst.limit(dstLimit);
+                if (key != null) {
+                    key.cancel();
+                    // Deregister before the channel may block again
+                    selector.selectNow();
+                }
+                if (channel.isOpen()) {
+                    channel.configureBlocking(true);
+                }
+            }
+        }
+
+        @Override
+        public synchronized int available() {
+            return buffer.remaining();
+        }
+    }
+
+    PooledSocket lease(String host, int port, int connectTimeout) throws IOException {
+        String key = host + ":" + port;
+        long now = Time.monotonicNow();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Connection pool is closed");
+            }
+            ArrayDeque<PooledSocket> sockets = idle.get(key);
+            while (sockets != null && !sockets.isEmpty()) {
+                PooledSocket socket = sockets.pollFirst();
+                if (socket.expireTime > now && socket.channel.isOpen()) {
+                    hits.incrementAndGet();
+                    socket.reused = true;
+                    return socket;
+                }
+                evictions.incrementAndGet();
+                socket.close();
+            }
+        }
+
+        misses.incrementAndGet();
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeout);
+            return new PooledSocket(key, channel, bufferPool);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Return a socket whose last response was fully consumed
+    void release(PooledSocket socket, long keepAliveTimeout) {
+        long now = Time.monotonicNow();
+        long timeout = idleTimeout;
+        if (keepAliveTimeout > 0 && keepAliveTimeout < timeout) {
+            timeout = keepAliveTimeout;
+        }
+        synchronized (this) {
+            if (!closed) {
+                evictExpired(now);
+                ArrayDeque<PooledSocket> sockets = idle.get(socket.key);
+                if (sockets == null) {
+                    sockets = new ArrayDeque<PooledSocket>();
+                    idle.put(socket.key, sockets);
+                }
+                if (sockets.size() < maxIdlePerHost) {
+                    socket.expireTime = now + timeout;
+                    sockets.addFirst(socket);
+                    return;
+                }
+            }
+        }
+        socket.close();
+    }
+
+    void discard(PooledSocket socket) {
+        socket.close();
+    }
+
+    int getDrainLimit() {
+        return drainLimit;
+    }
+
+    // Most recently used sockets are at the head, expired ones at the tail
+    private void evictExpired(long now) {
+        Iterator<ArrayDeque<PooledSocket>> it = idle.values().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<PooledSocket> sockets = it.next();
+            while (!sockets.isEmpty() && sockets.peekLast().expireTime <= now) {
+                evictions.incrementAndGet();
+                sockets.pollLast().close();
+            }
+            if (sockets.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (ArrayDeque<PooledSocket> sockets : idle.values()) {
+            count += sockets.size();
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (ArrayDeque<PooledSocket> sockets : idle.values()) {
+            for (PooledSocket socket : sockets) {
+                socket.close();
+            }
+        }
+        idle.clear();
+    }
+}
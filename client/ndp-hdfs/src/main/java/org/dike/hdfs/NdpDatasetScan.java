@@ -0,0 +1,418 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.metadata.BlockMetaData;
+import org.apache.parquet.hadoop.util.HadoopInputFile;
+
+/**
+ * Pushdown scan of a dataset stored as a directory of part files, e.g.
+ * lineitem.parquet/part-00000-...snappy.parquet, partition subdirectories
+ * included. Hidden files like _SUCCESS are skipped.
+ *
+ * The ReadParam applies to every part file. Its DAG input names the file
+ * with {@code NdpReadParamTemplate.placeholder("File")}, if it names one.
+ * A ReadParam with a RowGroupIndex is run once per parquet row group, read
+ * from the footers, and its results are decoded as binary columns. One with
+ * a BlockSize is run once per HDFS block, and its text result comes back as
+ * a single byte array column of lines.
+ *
+ * Units of work are spread over the workers by file, so a worker stays on
+ * one file while it has work of its own. A worker out of work steals from
+ * the far end of another worker's queue. Batches are returned in the order
+ * they complete.
+ */
+public class NdpDatasetScan implements Closeable {
+    private static final Object END = new Object();
+    // Rows of a batch of text lines
+    private static final int LINE_BATCH_ROWS = 4096;
+
+    private final NdpHdfsFileSystem fs;
+    private final Path directory;
+    private final int bufferSize;
+    private final NdpReadParamTemplate template;
+    private final boolean rowGroups;
+    private final int parallelism;
+    private final List<Unit> units = new ArrayList<Unit>();
+    private final List<ConcurrentLinkedDeque<Unit>> queues =
+            new ArrayList<ConcurrentLinkedDeque<Unit>>();
+    private final BlockingQueue<Object> results;
+    private final AtomicInteger running = new AtomicInteger(0);
+    private final Set<InputStream> streams =
+            Collections.newSetFromMap(new ConcurrentHashMap<InputStream, Boolean>());
+    private NdpScanScheduler.Scope<Void> scope = null;
+    private volatile IOException error = null;
+    private volatile boolean closed = false;
+    private boolean done = false;
+
+    NdpDatasetScan(NdpHdfsFileSystem fs, Path directory, int bufferSize,
+                   String readParam, int parallelism, int queueDepth) {
+        this.fs = fs;
+        this.directory = directory;
+        this.bufferSize = bufferSize;
+        this.template = NdpReadParamTemplate.compile(readParam, "RowGroupIndex", "BlockSize");
+        List<String> names = template.getNames();
+        this.rowGroups = names.contains("RowGroupIndex");
+        if (!rowGroups && !names.contains("BlockSize")) {
+            throw new IllegalArgumentException(
+                    "Dataset ReadParam needs a RowGroupIndex or a BlockSize");
+        }
+        this.parallelism = Math.max(1, parallelism);
+        this.results = new ArrayBlockingQueue<Object>(Math.max(1, queueDepth));
+    }
+
+    /**
+     * Unit of work, a row group or a block of a part file.
+     */
+    public static final class Unit {
+        private final Path path;
+        private final int index;
+        private final long offset;
+        private final long length;
+
+        Unit(Path path, int index, long offset, long length) {
+            this.path = path;
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * Row group or block number within the file.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    // List the part files and their units, then start the workers
+    void start() throws IOException {
+        final List<FileStatus> files = new ArrayList<FileStatus>();
+        listFiles(directory, files);
+        NdpScanScheduler scheduler = fs.getScanScheduler();
+        List<List<Unit>> fileUnits;
+        try (NdpScanScheduler.Scope<List<Unit>> planning = scheduler.newScope()) {
+            for (final FileStatus file : files) {
+                planning.fork(new Callable<List<Unit>>() {
+                    @Override
+                    public List<Unit> call() throws IOException {
+                        return rowGroups ? listRowGroups(fs.getConf(), file) : listBlocks(file);
+                    }
+                });
+            }
+            fileUnits = planning.join();
+        }
+
+        for (List<Unit> list : fileUnits) {
+            units.addAll(list);
+        }
+        if (units.isEmpty()) {
+            results.add(END);
+            return;
+        }
+        int workers = Math.min(parallelism, units.size());
+        for (int i = 0; i < workers; i++) {
+            queues.add(new ConcurrentLinkedDeque<Unit>());
+        }
+        for (int i = 0; i < fileUnits.size(); i++) {
+            queues.get(i % workers).addAll(fileUnits.get(i));
+        }
+
+        running.set(workers);
+        scope = scheduler.newScope();
+        for (int i = 0; i < workers; i++) {
+            scope.fork(new Worker(i));
+        }
+    }
+
+    private void listFiles(Path dir, List<FileStatus> files) throws IOException {
+        for (FileStatus status : fs.listStatus(dir)) {
+            String name = status.getPath().getName();
+            if (name.startsWith("_") || name.startsWith(".")) {
+                continue;
+            }
+            if (status.isDirectory()) {
+                listFiles(status.getPath(), files);
+            } else if (status.getLen() > 0) {
+                files.add(status);
+            }
+        }
+    }
+
+    // Row groups of a parquet file from its footer
+    static List<Unit> listRowGroups(Configuration conf, FileStatus file) throws IOException {
+        List<Unit> fileUnits = new ArrayList<Unit>();
+        try (ParquetFileReader reader = ParquetFileReader.open(
+                HadoopInputFile.fromStatus(file, conf))) {
+            List<BlockMetaData> blocks = reader.getRowGroups();
+            for (int i = 0; i < blocks.size(); i++) {
+                BlockMetaData block = blocks.get(i);
+                fileUnits.add(new Unit(file.getPath(), i, block.getStartingPos(),
+                        block.getCompressedSize()));
+            }
+        }
+        return fileUnits;
+    }
+
+    private List<Unit> listBlocks(FileStatus file) throws IOException {
+        List<Unit> fileUnits = new ArrayList<Unit>();
+        BlockLocation[] locations = fs.getFileBlockLocations(file, 0, file.getLen());
+        for (int i = 0; i < locations.length; i++) {
+            fileUnits.add(new Unit(file.getPath(), i, locations[i].getOffset(),
+                    locations[i].getLength()));
+        }
+        return fileUnits;
+    }
+
+    /**
+     * Row groups or blocks the scan reads, in file order.
+     */
+    public List<Unit> getUnits() {
+        return Collections.unmodifiableList(units);
+    }
+
+    /**
+     * Next batch of any unit, or null once all units were read.
+     */
+    public NdpColumnarBatch next() throws IOException {
+        if (closed) {
+            throw new IOException("Scan closed");
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (done) {
+            return null;
+        }
+        Object result;
+        try {
+            result = results.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a batch");
+        }
+        if (result == END) {
+            done = true;
+            if (error != null) {
+                throw error;
+            }
+            return null;
+        }
+        return (NdpColumnarBatch) result;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (scope != null) {
+            scope.close();
+        }
+        // Unblock workers waiting on pushdown results
+        for (InputStream in : streams) {
+            IOUtils.closeStream(in);
+        }
+        results.clear();
+    }
+
+    // Own work first, then the tail of the other queues
+    private Unit nextUnit(int worker) {
+        Unit unit = queues.get(worker).pollFirst();
+        for (int i = 1; unit == null && i < queues.size(); i++) {
+            unit = queues.get((worker + i) % queues.size()).pollLast();
+        }
+        return unit;
+    }
+
+    private void scan(Unit unit) throws IOException {
+        FSDataInputStream in = fs.open(unit.getPath(), bufferSize,
+                bind(template, fs, unit));
+        streams.add(in);
+        NdpColumnarBatchReader reader = null;
+        try {
+            if (closed) {
+                return;
+            }
+            // The request goes to the datanode holding the unit
+            if (unit.getOffset() > 0) {
+                in.seek(unit.getOffset());
+            }
+            if (rowGroups) {
+                reader = new NdpColumnarBatchReader(in);
+                NdpColumnarBatch batch;
+                while (!closed && (batch = reader.next()) != null) {
+                    put(batch);
+                }
+            } else {
+                readLines(in);
+            }
+        } finally {
+            streams.remove(in);
+            // The reader closes the stream and frees its ZSTD context
+            if (reader != null) {
+                reader.close();
+            } else {
+                in.close();
+            }
+        }
+    }
+
+    // ReadParam of a unit
+    static String bind(NdpReadParamTemplate template, FileSystem fs, Unit unit) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("File", fs.makeQualified(unit.getPath()).toUri().getPath());
+        values.put("RowGroupIndex", unit.getIndex());
+        values.put("BlockSize", unit.getLength());
+        return template.bind(values);
+    }
+
+    // Text results as batches of one byte array column
+    private void readLines(InputStream in) throws IOException {
+        byte[] data = new byte[bufferSize];
+        int[] offsets = new int[LINE_BATCH_ROWS + 1];
+        int length = 0;
+        int rows = 0;
+        byte[] buffer = new byte[bufferSize];
+        int n;
+        while (!closed && (n = in.read(buffer)) >= 0) {
+            int start = 0;
+            while (start < n) {
+                int end = start;
+                while (end < n && buffer[end] != '\n') {
+                    end++;
+                }
+                if (length + end - start > data.length) {
+                    byte[] grown = new byte[Math.max(data.length * 2, length + end - start)];
+                    System.arraycopy(data, 0, grown, 0, length);
+                    data = grown;
+                }
+                System.arraycopy(buffer, start, data, length, end - start);
+                length += end - start;
+                start = end + 1;
+                if (end == n) {
+                    break;
+                }
+                offsets[++rows] = length;
+                if (rows == LINE_BATCH_ROWS) {
+                    put(lineBatch(data, offsets, rows));
+                    data = new byte[data.length];
+                    offsets = new int[LINE_BATCH_ROWS + 1];
+                    length = 0;
+                    rows = 0;
+                }
+            }
+        }
+        if (length > offsets[rows]) {
+            // Last line without a newline
+            offsets[++rows] = length;
+        }
+        if (rows > 0) {
+            put(lineBatch(data, offsets, rows));
+        }
+    }
+
+    private static NdpColumnarBatch lineBatch(byte[] data, int[] offsets, int rows) {
+        NdpColumnVector column = new NdpColumnVector(NdpColumnVector.TYPE_BYTE_ARRAY);
+        column.setVariableLength(data, offsets, rows);
+        NdpColumnarBatch batch = new NdpColumnarBatch(new NdpColumnVector[] {column});
+        batch.setRowCount(rows);
+        return batch;
+    }
+
+    private void put(NdpColumnarBatch batch) throws IOException {
+        try {
+            results.put(batch);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while handing over a batch");
+        }
+    }
+
+    private final class Worker implements Callable<Void> {
+        private final int id;
+
+        Worker(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public Void call() throws InterruptedException {
+            try {
+                Unit unit;
+                while (!closed && error == null && (unit = nextUnit(id)) != null) {
+                    scan(unit);
+                }
+            } catch (IOException e) {
+                if (!closed && error == null) {
+                    error = e;
+                }
+            } catch (RuntimeException e) {
+                if (!closed && error == null) {
+                    error = new IOException(e);
+                }
+            } finally {
+                if (running.decrementAndGet() == 0 && error == null) {
+                    if (!closed) {
+                        results.put(END);
+                    }
+                } else if (error != null) {
+                    // The consumer checks for errors before it waits
+                    results.offer(END);
+                }
+            }
+            return null;
+        }
+    }
+}
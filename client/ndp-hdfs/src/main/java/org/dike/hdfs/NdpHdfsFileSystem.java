@@ -19,18 +19,42 @@
 //package org.apache.hadoop.hdfs.web;
 package org.dike.hdfs;
 
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.BufferedInputStream;
 import java.net.URL;
 import java.net.URI;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.lang.reflect.InvocationTargetException;
 import java.security.PrivilegedExceptionAction;
 import javax.ws.rs.core.HttpHeaders;
@@ -38,9 +62,14 @@ import javax.ws.rs.core.MediaType;
 import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ByteBufferReadable;
 import org.apache.hadoop.fs.FSInputStream;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.GlobalStorageStatistics;
+import org.apache.hadoop.fs.GlobalStorageStatistics.StorageStatisticsProvider;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.StorageStatistics;
 import org.apache.hadoop.io.retry.RetryPolicy;
 import org.apache.hadoop.io.retry.RetryUtils;
 import org.apache.hadoop.hdfs.DFSOpsCountStatistics;
@@ -51,16 +80,69 @@ import org.apache.hadoop.hdfs.web.resources.HttpOpParam.Op;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.token.Token;
+import org.apache.hadoop.security.token.TokenIdentifier;
 import org.apache.hadoop.security.token.SecretManager.InvalidToken;
 import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.Time;
+import org.dike.hdfs.NdpStorageStatistics.Statistic;
 
 //import static org.apache.hadoop.fs.impl.PathCapabilitiesSupport.validatePathCapabilityArgs;
 
 public class NdpHdfsFileSystem extends WebHdfsFileSystem {
     public static final String NdpHDFS_SCHEME = "ndphdfs";
+    // Sent by servers that can resume a pushdown result after a given batch
+    static final String RESUME_HEADER = "NdpResume";
+    static final String RESUME_BATCH_HEADER = "ResumeBatch";
+    // Stands in for a ReadParam the datanode already keeps
+    static final String READ_PARAM_DIGEST_HEADER = "ReadParamDigest";
+    // Gateway request resolving the datanodes of many streams at once
+    static final String BULK_OPEN_HEADER = "NdpBulkOpen";
+    // Set on redirects the gateway did not place by its current load
+    static final String CACHEABLE_HEADER = "NdpCacheable";
+    // Sent to datanodes resolved from the redirect cache, which turn the
+    // request down once they are at their request cap
+    static final String CACHED_REDIRECT_HEADER = "NdpCachedRedirect";
+    // Input bytes a datanode is about to scan for a pushdown result
+    static final String SCANNED_BYTES_HEADER = "NdpScannedBytes";
+    // Row groups requested together, echoed by servers that frame them
+    static final String ROW_GROUPS_HEADER = "NdpRowGroups";
+    // Active over maximum pushdown requests of the datanode
+    static final String LOAD_HEADER = "NdpLoad";
+    // Free pushdown slots of a storage node
+    static final String CAPACITY_HEADER = "NdpCapacity";
+    // Id of a running pushdown, and the request header cancelling it
+    static final String REQUEST_ID_HEADER = "NdpRequestId";
+    static final String CANCEL_HEADER = "NdpCancel";
     private UserGroupInformation ugi;
     private URI uri = null;
     private boolean isInsecureCluster;
+    private volatile AuthQuery authQuery = null;
+    private ExecutorService ioExecutor = null;
+    private NdpConnectionPool connectionPool = null;
+    private NdpBufferPool bufferPool = null;
+    private NdpSelectorTransport selectorTransport = null;
+    private NdpScanScheduler scanScheduler = null;
+    private NdpRedirectCache redirectCache = null;
+    private NdpReadParamDigests readParamDigests = null;
+    private NdpStorageStatistics ndpStatistics;
+    private NdpPushdownPolicy pushdownPolicy;
+    private NdpAdmissionControl admissionControl = null;
+    private boolean cancelEnabled;
+    private boolean plainOpenEnabled;
+    private int maxRetries;
+    private long retryBackoffBase;
+    private long retryBackoffMax;
+    // Hedging of slow pushdown requests
+    private static final int HEDGE_MIN_SAMPLES = 20;
+    private static final int HEDGE_LATENCY_WINDOW = 256;
+    private boolean hedgeEnabled;
+    private float hedgePercentile;
+    private long hedgeMinDelay;
+    private long hedgeDefaultDelay;
+    private final NdpLatencyTracker firstBatchLatency =
+            new NdpLatencyTracker(HEDGE_LATENCY_WINDOW);
+    private final AtomicLong hedgedRequests = new AtomicLong(0);
+    private final AtomicLong hedgeWins = new AtomicLong(0);
 
     @Override
     public synchronized void initialize(URI uri, Configuration conf
@@ -68,16 +150,128 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
         this.ugi = UserGroupInformation.getCurrentUser();
         this.uri = uri;
         this.isInsecureCluster = !UserGroupInformation.isSecurityEnabled();
+        this.authQuery = null;
 
         super.initialize(uri, conf);
+
+        ndpStatistics = (NdpStorageStatistics) GlobalStorageStatistics.INSTANCE
+                .put(NdpStorageStatistics.NAME, new StorageStatisticsProvider() {
+                    @Override
+                    public StorageStatistics provide() {
+                        return new NdpStorageStatistics();
+                    }
+                });
+
+        if (conf.getBoolean(NdpConfigKeys.BUFFER_POOL_ENABLED_KEY,
+                NdpConfigKeys.BUFFER_POOL_ENABLED_DEFAULT)) {
+            bufferPool = NdpBufferPool.get(conf, ndpStatistics);
+        }
+
+        // Pooled connections speak plain HTTP without SPNEGO
+        if (isInsecureCluster && conf.getBoolean(NdpConfigKeys.CONNECTION_POOL_ENABLED_KEY,
+                NdpConfigKeys.CONNECTION_POOL_ENABLED_DEFAULT)) {
+            connectionPool = new NdpConnectionPool(
+                    conf.getInt(NdpConfigKeys.CONNECTION_POOL_MAX_PER_HOST_KEY,
+                            NdpConfigKeys.CONNECTION_POOL_MAX_PER_HOST_DEFAULT),
+                    conf.getLong(NdpConfigKeys.CONNECTION_POOL_IDLE_TIMEOUT_KEY,
+                            NdpConfigKeys.CONNECTION_POOL_IDLE_TIMEOUT_DEFAULT),
+                    conf.getInt(NdpConfigKeys.CONNECTION_POOL_DRAIN_LIMIT_KEY,
+                            NdpConfigKeys.CONNECTION_POOL_DRAIN_LIMIT_DEFAULT),
+                    bufferPool);
+
+            String transport = conf.getTrimmed(NdpConfigKeys.TRANSPORT_KEY,
+                    NdpConfigKeys.TRANSPORT_DEFAULT);
+            if ("nio".equalsIgnoreCase(transport)) {
+                selectorTransport = new NdpSelectorTransport(
+                        conf.getInt(NdpConfigKeys.TRANSPORT_NIO_THREADS_KEY,
+                                NdpConfigKeys.TRANSPORT_NIO_THREADS_DEFAULT),
+                        conf.getInt(NdpConfigKeys.TRANSPORT_NIO_BUFFER_SIZE_KEY,
+                                NdpConfigKeys.TRANSPORT_NIO_BUFFER_SIZE_DEFAULT),
+                        conf.getInt(NdpConfigKeys.TRANSPORT_NIO_STREAM_BUFFERS_KEY,
+                                NdpConfigKeys.TRANSPORT_NIO_STREAM_BUFFERS_DEFAULT));
+            } else if (!"blocking".equalsIgnoreCase(transport)) {
+                throw new IllegalArgumentException("Unknown " + NdpConfigKeys.TRANSPORT_KEY
+                        + ": " + transport);
+            }
+        }
+
+        maxRetries = conf.getInt(NdpConfigKeys.RETRY_MAX_KEY,
+                NdpConfigKeys.RETRY_MAX_DEFAULT);
+        retryBackoffBase = conf.getLong(NdpConfigKeys.RETRY_BACKOFF_BASE_KEY,
+                NdpConfigKeys.RETRY_BACKOFF_BASE_DEFAULT);
+        retryBackoffMax = conf.getLong(NdpConfigKeys.RETRY_BACKOFF_MAX_KEY,
+                NdpConfigKeys.RETRY_BACKOFF_MAX_DEFAULT);
+
+        hedgeEnabled = conf.getBoolean(NdpConfigKeys.HEDGE_ENABLED_KEY,
+                NdpConfigKeys.HEDGE_ENABLED_DEFAULT);
+        hedgePercentile = conf.getFloat(NdpConfigKeys.HEDGE_PERCENTILE_KEY,
+                NdpConfigKeys.HEDGE_PERCENTILE_DEFAULT);
+        hedgeMinDelay = conf.getLong(NdpConfigKeys.HEDGE_MIN_DELAY_KEY,
+                NdpConfigKeys.HEDGE_MIN_DELAY_DEFAULT);
+        hedgeDefaultDelay = conf.getLong(NdpConfigKeys.HEDGE_DEFAULT_DELAY_KEY,
+                NdpConfigKeys.HEDGE_DEFAULT_DELAY_DEFAULT);
+
+        String policy = conf.getTrimmed(NdpConfigKeys.PUSHDOWN_POLICY_KEY,
+                NdpConfigKeys.PUSHDOWN_POLICY_DEFAULT);
+        if (!"always".equalsIgnoreCase(policy) && !"adaptive".equalsIgnoreCase(policy)) {
+            throw new IllegalArgumentException("Unknown " + NdpConfigKeys.PUSHDOWN_POLICY_KEY
+                    + ": " + policy);
+        }
+        pushdownPolicy = new NdpPushdownPolicy("adaptive".equalsIgnoreCase(policy),
+                conf.getInt(NdpConfigKeys.PUSHDOWN_EXPLORE_INTERVAL_KEY,
+                        NdpConfigKeys.PUSHDOWN_EXPLORE_INTERVAL_DEFAULT),
+                conf.getFloat(NdpConfigKeys.PUSHDOWN_HISTORY_WEIGHT_KEY,
+                        NdpConfigKeys.PUSHDOWN_HISTORY_WEIGHT_DEFAULT));
+
+        if (conf.getBoolean(NdpConfigKeys.ADMISSION_ENABLED_KEY,
+                NdpConfigKeys.ADMISSION_ENABLED_DEFAULT)) {
+            admissionControl = new NdpAdmissionControl(
+                    conf.getInt(NdpConfigKeys.ADMISSION_MAX_WINDOW_KEY,
+                            NdpConfigKeys.ADMISSION_MAX_WINDOW_DEFAULT),
+                    conf.getLong(NdpConfigKeys.ADMISSION_MAX_WAIT_KEY,
+                            NdpConfigKeys.ADMISSION_MAX_WAIT_DEFAULT));
+        }
+
+        plainOpenEnabled = conf.getBoolean(NdpConfigKeys.PLAIN_OPEN_ENABLED_KEY,
+                NdpConfigKeys.PLAIN_OPEN_ENABLED_DEFAULT);
+
+        cancelEnabled = conf.getBoolean(NdpConfigKeys.CANCEL_ENABLED_KEY,
+                NdpConfigKeys.CANCEL_ENABLED_DEFAULT);
+
+        int digestCacheSize = conf.getInt(NdpConfigKeys.READPARAM_DIGEST_CACHE_SIZE_KEY,
+                NdpConfigKeys.READPARAM_DIGEST_CACHE_SIZE_DEFAULT);
+        if (digestCacheSize > 0) {
+            readParamDigests = new NdpReadParamDigests(digestCacheSize);
+        }
+
+        int redirectCacheSize = conf.getInt(NdpConfigKeys.REDIRECT_CACHE_SIZE_KEY,
+                NdpConfigKeys.REDIRECT_CACHE_SIZE_DEFAULT);
+        if (redirectCacheSize > 0) {
+            redirectCache = new NdpRedirectCache(redirectCacheSize,
+                    conf.getLong(NdpConfigKeys.REDIRECT_CACHE_TTL_KEY,
+                            NdpConfigKeys.REDIRECT_CACHE_TTL_DEFAULT));
+        }
     }
 
-    public FSDataInputStream open(final Path fspath, final int bufferSize,
-                                  final String readParam) throws IOException {
-        if(readParam == null) {
+    /**
+     * Plain read of the file, with the WebHDFS stream unless plain opens
+     * are enabled or the adaptive pushdown policy has to measure them.
+     * Their stream serves positioned reads with independent ranged
+     * requests, leaving its sequential connection in place. Like
+     * all streams of this file system it only contacts the cluster on the
+     * first read, so a missing file is reported there.
+     */
+    @Override
+    public FSDataInputStream open(final Path fspath, final int bufferSize)
+            throws IOException {
+        if (!plainOpenEnabled && !pushdownPolicy.isAdaptive()) {
             return super.open(fspath, bufferSize);
         }
+        return open(fspath, bufferSize, null);
+    }
 
+    public FSDataInputStream open(final Path fspath, final int bufferSize,
+                                  final String readParam) throws IOException {
         statistics.incrementReadOps(1);
         NdpHdfsInputStream NdpHdfsfsInputStream =
                 new NdpHdfsInputStream(fspath, bufferSize, readParam);
@@ -85,6 +279,450 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
         return new FSDataInputStream(NdpHdfsfsInputStream);
     }
 
+    /**
+     * A pushdown stream to open with {@link #openAll}.
+     */
+    public static final class OpenRequest {
+        private final Path path;
+        private final long offset;
+        private final String readParam;
+
+        public OpenRequest(Path path, long offset, String readParam) {
+            this.path = path;
+            this.offset = offset;
+            this.readParam = readParam;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public String getReadParam() {
+            return readParam;
+        }
+    }
+
+    /**
+     * Open pushdown streams for many files or row groups. Their datanodes
+     * are resolved together with a single gateway request, instead of one
+     * round trip per stream on its first read. Each stream is positioned
+     * at the offset of its request.
+     */
+    public List<FSDataInputStream> openAll(final List<OpenRequest> requests,
+                                           final int bufferSize) throws IOException {
+        try {
+            resolveRedirects(requests, bufferSize);
+        } catch (IOException e) {
+            // Gateway without bulk open support, streams resolve on their own
+            LOG.debug("Bulk open failed, resolving streams one by one", e);
+        }
+        List<FSDataInputStream> streams = new ArrayList<FSDataInputStream>(requests.size());
+        try {
+            for (OpenRequest request : requests) {
+                FSDataInputStream in = open(request.getPath(), bufferSize,
+                        request.getReadParam());
+                streams.add(in);
+                if (request.getOffset() > 0) {
+                    in.seek(request.getOffset());
+                }
+            }
+        } catch (IOException e) {
+            for (FSDataInputStream in : streams) {
+                IOUtils.closeQuietly(in);
+            }
+            throw e;
+        }
+        return streams;
+    }
+
+    // Put the datanodes of all uncached pushdown requests into the redirect cache
+    private void resolveRedirects(List<OpenRequest> requests, int bufferSize)
+            throws IOException {
+        if (redirectCache == null) {
+            return;
+        }
+        final Map<String, OpenRequest> pending = new LinkedHashMap<String, OpenRequest>();
+        for (OpenRequest request : requests) {
+            if (request.getReadParam() == null) {
+                continue;
+            }
+            String key = redirectCache.keyOf(makeQualified(request.getPath()).toString(),
+                    request.getOffset(), request.getReadParam());
+            if (!pending.containsKey(key) && !redirectCache.contains(key)) {
+                pending.put(key, request);
+            }
+        }
+        if (pending.size() < 2) {
+            return;
+        }
+
+        final StringBuilder body = new StringBuilder();
+        for (OpenRequest request : pending.values()) {
+            body.append(makeQualified(request.getPath()).toUri().getRawPath())
+                    .append(' ').append(request.getOffset()).append('\n');
+        }
+        final URL url = toUrl(GetOpParam.Op.OPEN, new Path("/"),
+                new BufferSizeParam(bufferSize));
+        List<String> locations;
+        long start = Time.monotonicNow();
+        try {
+            locations = ugi.doAs(new PrivilegedExceptionAction<List<String>>() {
+                @Override
+                public List<String> run() throws IOException {
+                    HttpURLConnection conn =
+                            (HttpURLConnection) connectionFactory.openConnection(url);
+                    try {
+                        conn.setRequestMethod("POST");
+                        conn.setInstanceFollowRedirects(false);
+                        conn.setRequestProperty(BULK_OPEN_HEADER,
+                                Integer.toString(pending.size()));
+                        conn.setRequestProperty(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN);
+                        conn.setDoOutput(true);
+                        conn.getOutputStream().write(
+                                body.toString().getBytes(StandardCharsets.UTF_8));
+                        if (conn.getResponseCode() != HttpURLConnection.HTTP_OK
+                                || conn.getHeaderField(BULK_OPEN_HEADER) == null) {
+                            throw new IOException("Bulk open not supported by " + uri
+                                    + ", response " + conn.getResponseCode());
+                        }
+                        return IOUtils.readLines(conn.getInputStream(), StandardCharsets.UTF_8);
+                    } finally {
+                        conn.disconnect();
+                    }
+                }
+            });
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while opening streams");
+        }
+        ndpStatistics.increment(Statistic.REDIRECTS, 1);
+        ndpStatistics.increment(Statistic.REDIRECT_TIME, Time.monotonicNow() - start);
+
+        // Lines are a location, followed by "cacheable" unless the
+        // gateway placed the stream by its current load
+        Iterator<String> keys = pending.keySet().iterator();
+        for (String line : locations) {
+            if (!keys.hasNext()) {
+                break;
+            }
+            String key = keys.next();
+            String[] fields = line.trim().split(" ");
+            if (fields[0].isEmpty()) {
+                continue;
+            }
+            URL location = removeOffsetParam(new URL(fields[0]));
+            if (fields.length > 1 && "cacheable".equals(fields[1])) {
+                redirectCache.put(key, location);
+            } else {
+                redirectCache.putOnce(key, location);
+            }
+        }
+    }
+
+    /**
+     * Block locations are kept by the redirect cache, which keys the
+     * pushdown redirects of a file by block.
+     */
+    @Override
+    public BlockLocation[] getFileBlockLocations(final Path p, final long offset,
+                                                 final long length) throws IOException {
+        BlockLocation[] locations = super.getFileBlockLocations(p, offset, length);
+        if (redirectCache != null) {
+            redirectCache.putBlocks(makeQualified(p).toString(), locations);
+        }
+        return locations;
+    }
+
+    /**
+     * Supplies the readParam of the pushdown request issued for one block.
+     */
+    public interface BlockReadParam {
+        String getReadParam(BlockLocation location) throws IOException;
+    }
+
+    /**
+     * Open the pushdown results of several row groups with a single request,
+     * like a vectored read. The ReadParam names one row group in its
+     * RowGroupIndex, which is replaced when the server needs a request per
+     * row group.
+     */
+    public NdpRowGroupStreams openRowGroups(final Path fspath, final int bufferSize,
+                                            final String readParam,
+                                            final List<Integer> rowGroups) throws IOException {
+        if (readParam == null) {
+            throw new IllegalArgumentException("Row groups need a pushdown ReadParam");
+        }
+        statistics.incrementReadOps(1);
+        return new NdpRowGroupStreams(this, fspath, bufferSize, readParam, rowGroups);
+    }
+
+    // Framed response for the given row groups, null if the server does
+    // not support them
+    HttpURLConnection openRowGroups(Path fspath, int bufferSize, String readParam,
+                                    String rowGroups) throws IOException {
+        NdpURLRunner runner = new NdpURLRunner(GetOpParam.Op.OPEN,
+                toUrl(GetOpParam.Op.OPEN, fspath, new BufferSizeParam(bufferSize),
+                        new OffsetParam(0L)), false, true, readParam);
+        runner.rowGroups = rowGroups;
+        HttpURLConnection conn = runner.run();
+        if (!rowGroups.equals(conn.getHeaderField(ROW_GROUPS_HEADER))) {
+            // Single row group result nobody reads, do not drain it
+            if (conn instanceof NdpPooledConnection) {
+                ((NdpPooledConnection) conn).abort();
+            } else {
+                conn.disconnect();
+            }
+            return null;
+        }
+        return conn;
+    }
+
+    void rowGroupBytesRead(int count) {
+        statistics.incrementBytesRead(count);
+        ndpStatistics.increment(Statistic.BYTES_RECEIVED, count);
+    }
+
+    /**
+     * Open a pushdown stream that reads all blocks of the file concurrently
+     * and returns their results merged in block order.
+     */
+    public FSDataInputStream openParallel(final Path fspath, final int bufferSize,
+                                          final BlockReadParam blockReadParam) throws IOException {
+        return new FSDataInputStream(openBlocks(fspath, bufferSize, blockReadParam));
+    }
+
+    /**
+     * Open a pushdown stream per block of the file. Requests are issued
+     * concurrently, bounded by {@link NdpConfigKeys#PARALLEL_OPEN_THREADS_KEY}.
+     */
+    public NdpParallelInputStream openBlocks(final Path fspath, final int bufferSize,
+                                             final BlockReadParam blockReadParam) throws IOException {
+        statistics.incrementReadOps(1);
+        Configuration conf = getConf();
+        return new NdpParallelInputStream(this, fspath, bufferSize, blockReadParam,
+                conf.getInt(NdpConfigKeys.PARALLEL_OPEN_THREADS_KEY,
+                        NdpConfigKeys.PARALLEL_OPEN_THREADS_DEFAULT),
+                conf.getInt(NdpConfigKeys.PARALLEL_OPEN_QUEUE_DEPTH_KEY,
+                        NdpConfigKeys.PARALLEL_OPEN_QUEUE_DEPTH_DEFAULT));
+    }
+
+    /**
+     * Scan all part files below the directory with the same pushdown
+     * ReadParam, one request per row group or block, run by the given
+     * number of workers. See {@link NdpDatasetScan}.
+     */
+    public NdpDatasetScan scanDataset(final Path dir, final int bufferSize,
+                                      final String readParam,
+                                      final int parallelism) throws IOException {
+        statistics.incrementReadOps(1);
+        NdpDatasetScan scan = new NdpDatasetScan(this, dir, bufferSize, readParam,
+                parallelism, getConf().getInt(NdpConfigKeys.DATASET_SCAN_QUEUE_DEPTH_KEY,
+                        NdpConfigKeys.DATASET_SCAN_QUEUE_DEPTH_DEFAULT));
+        try {
+            scan.start();
+        } catch (IOException e) {
+            scan.close();
+            throw e;
+        }
+        return scan;
+    }
+
+    synchronized ExecutorService getIoExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = Executors.newCachedThreadPool(
+                    daemonThreadFactory("ndp-io-"));
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Scheduler for running many blocking pushdown reads of this file
+     * system concurrently, bounded by
+     * {@link NdpConfigKeys#SCAN_MAX_CONCURRENCY_KEY}.
+     */
+    public synchronized NdpScanScheduler getScanScheduler() {
+        if (scanScheduler == null) {
+            scanScheduler = new NdpScanScheduler(getConf().getInt(
+                    NdpConfigKeys.SCAN_MAX_CONCURRENCY_KEY,
+                    NdpConfigKeys.SCAN_MAX_CONCURRENCY_DEFAULT));
+        }
+        return scanScheduler;
+    }
+
+    /**
+     * Keep-alive connection pool shared by all runners of this file system,
+     * null when disabled.
+     */
+    public NdpConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Buffer pool of the JVM, null when disabled for this file system.
+     */
+    public NdpBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Selector threads reading OPEN response bodies, null unless the nio
+     * transport is configured.
+     */
+    public NdpSelectorTransport getSelectorTransport() {
+        return selectorTransport;
+    }
+
+    /**
+     * ReadParams known to datanodes by digest, null when disabled.
+     */
+    public NdpReadParamDigests getReadParamDigests() {
+        return readParamDigests;
+    }
+
+    /**
+     * Cache of datanode URLs resolved for pushdown opens, null when disabled.
+     */
+    public NdpRedirectCache getRedirectCache() {
+        return redirectCache;
+    }
+
+    /**
+     * Time to the first batch of recent pushdown opens.
+     */
+    public NdpLatencyTracker getFirstBatchLatency() {
+        return firstBatchLatency;
+    }
+
+    /**
+     * Whether reading through a pushdown with the given ReadParam is
+     * expected to be faster than a plain read, see
+     * {@link NdpConfigKeys#PUSHDOWN_POLICY_KEY}. Callers that can process
+     * the raw data themselves use it to pick between the two opens.
+     */
+    public boolean shouldPushdown(String readParam) {
+        return pushdownPolicy.shouldPushdown(readParam);
+    }
+
+    public NdpPushdownPolicy getPushdownPolicy() {
+        return pushdownPolicy;
+    }
+
+    /**
+     * Per storage node limits of open pushdown streams, null when disabled.
+     */
+    public NdpAdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    // Free slots reported with a pushdown response, for the node at the
+    // authority that runs it. Redirects report the gateway's own load.
+    void updateCapacity(HttpURLConnection conn) {
+        String capacity = conn.getHeaderField(CAPACITY_HEADER);
+        if (admissionControl == null || capacity == null) {
+            return;
+        }
+        try {
+            admissionControl.update(conn.getURL().getAuthority(), Long.parseLong(capacity));
+        } catch (NumberFormatException e) {
+            LOG.debug("Ignoring " + CAPACITY_HEADER + ": " + capacity);
+        }
+    }
+
+    /**
+     * Ask the datanode to stop a pushdown whose result is no longer read.
+     * Sent in the background, a lost cancel only costs datanode time until
+     * its next write fails.
+     */
+    void cancelPushdown(final URL url, final String requestId) {
+        if (!cancelEnabled || requestId == null) {
+            return;
+        }
+        ndpStatistics.increment(Statistic.CANCELLED_REQUESTS, 1);
+        getIoExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ugi.doAs(new PrivilegedExceptionAction<Void>() {
+                        @Override
+                        public Void run() throws IOException {
+                            HttpURLConnection conn =
+                                    (HttpURLConnection) connectionFactory.openConnection(url);
+                            try {
+                                conn.setInstanceFollowRedirects(false);
+                                conn.setRequestProperty(CANCEL_HEADER, requestId);
+                                conn.getResponseCode();
+                            } finally {
+                                conn.disconnect();
+                            }
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                    LOG.debug("Failed to cancel pushdown " + requestId + " at " + url, e);
+                }
+            }
+        });
+    }
+
+    void cancelPushdown(HttpURLConnection conn) {
+        cancelPushdown(conn.getURL(), conn.getHeaderField(REQUEST_ID_HEADER));
+    }
+
+    /**
+     * Pushdown counters shared by all ndphdfs file systems.
+     */
+    public NdpStorageStatistics getNdpStatistics() {
+        return ndpStatistics;
+    }
+
+    /**
+     * Pushdown opens that were sent to a second replica.
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     * Hedged opens where the second replica answered first.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    static ThreadFactory daemonThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (ioExecutor != null) {
+            ioExecutor.shutdownNow();
+            ioExecutor = null;
+        }
+        if (scanScheduler != null) {
+            scanScheduler.close();
+            scanScheduler = null;
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+        if (selectorTransport != null) {
+            selectorTransport.close();
+        }
+        super.close();
+    }
+
     @Override
     public String getScheme() {
         return NdpHDFS_SCHEME;
@@ -98,10 +736,16 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
         return null;
     }
 
-    public class NdpHdfsInputStream extends FSInputStream {
+    public class NdpHdfsInputStream extends FSInputStream implements ByteBufferReadable {
         private NdpReadRunner readRunner = null;
+        private NdpReadAhead readAhead = null;
         NdpHdfsInputStream(Path path, int buffersize, String readParam ) throws IOException {
             readRunner = new NdpReadRunner(path, buffersize, readParam);
+            int depth = getConf().getInt(NdpConfigKeys.READAHEAD_DEPTH_KEY,
+                    NdpConfigKeys.READAHEAD_DEPTH_DEFAULT);
+            if (depth > 0) {
+                readAhead = new NdpReadAhead(readRunner, buffersize, depth);
+            }
         }
         @Override
         public int read() throws IOException {
@@ -111,16 +755,34 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
 
         @Override
         public int read(byte b[], int off, int len) throws IOException {
+            if (readAhead != null) {
+                return readAhead.read(b, off, len);
+            }
             return readRunner.read(b, off, len);
         }
 
+        @Override
+        public int read(ByteBuffer buf) throws IOException {
+            if (readAhead != null) {
+                return readAhead.read(buf);
+            }
+            return readRunner.read(buf);
+        }
+
         @Override
         public void seek(long newPos) throws IOException {
+            if (readAhead != null) {
+                readAhead.seek(newPos);
+                return;
+            }
             readRunner.seek(newPos);
         }
 
         @Override
         public long getPos() throws IOException {
+            if (readAhead != null) {
+                return readAhead.getPos();
+            }
             return readRunner.getPos();
         }
 
@@ -131,9 +793,35 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
 
         @Override
         public void close() throws IOException {
+            if (readAhead != null) {
+                readAhead.close();
+            }
             readRunner.close();
         }
 
+        /**
+         * Make a read in progress on another thread fail, unlike close()
+         * which must not run concurrently with reads. The stream still has
+         * to be closed by its reader.
+         */
+        public void abort() {
+            readRunner.abort();
+        }
+
+        @Override
+        public int read(long position, byte[] buffer, int offset, int length)
+                throws IOException {
+            if (!readRunner.isPlainRead()) {
+                // Pushdown results have no ranged form, go through seek
+                return super.read(position, buffer, offset, length);
+            }
+            validatePositionedReadArgs(position, buffer, offset, length);
+            if (length == 0) {
+                return 0;
+            }
+            return readRunner.pread(position, buffer, offset, length);
+        }
+
         public void setFileLength(long len) {
             readRunner.setFileLength(len);
         }
@@ -142,6 +830,231 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
         }
     }
 
+    private static final class ReadAheadBuffer {
+        static final ReadAheadBuffer EOF = new ReadAheadBuffer(0);
+
+        final byte[] data;
+        int offset;
+        int length;
+
+        ReadAheadBuffer(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * Keeps a bounded ring of buffers filled from the runner on a background
+     * thread, so network transfer overlaps with decoding of the previous
+     * buffer. The runner is only touched by the background task while it
+     * runs; seek waits for the task to stop before repositioning the runner.
+     */
+    class NdpReadAhead {
+        private final NdpReadRunner runner;
+        private final BlockingQueue<ReadAheadBuffer> filled;
+        private final BlockingQueue<ReadAheadBuffer> free;
+        private final ReentrantLock runnerLock = new ReentrantLock();
+        private ReadAheadBuffer current = null;
+        private Future<?> task = null;
+        private long pos;
+        private boolean eof = false;
+        private boolean closed = false;
+        private volatile int generation = 0;
+        private volatile IOException error = null;
+
+        NdpReadAhead(NdpReadRunner runner, int bufferSize, int depth) {
+            this.runner = runner;
+            this.pos = runner.getPos();
+            // Room for every buffer plus the EOF marker, so the producer
+            // never blocks on handing over the end of the stream
+            filled = new ArrayBlockingQueue<ReadAheadBuffer>(depth + 2);
+            free = new ArrayBlockingQueue<ReadAheadBuffer>(depth + 1);
+            // One buffer is held by the consumer, the rest can be in flight
+            for (int i = 0; i < depth + 1; i++) {
+                free.add(new ReadAheadBuffer(bufferSize));
+            }
+        }
+
+        private class Producer implements Runnable {
+            private final int id;
+
+            Producer(int id) {
+                this.id = id;
+            }
+
+            @Override
+            public void run() {
+                runnerLock.lock();
+                try {
+                    while (id == generation) {
+                        ReadAheadBuffer buffer = free.take();
+                        int count = runner.read(buffer.data, 0, buffer.data.length);
+                        if (count < 0) {
+                            filled.put(ReadAheadBuffer.EOF);
+                            return;
+                        }
+                        buffer.offset = 0;
+                        buffer.length = count;
+                        filled.put(buffer);
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped by seek or close
+                } catch (IOException e) {
+                    if (id == generation) {
+                        error = e;
+                        filled.offer(ReadAheadBuffer.EOF);
+                    }
+                } finally {
+                    runnerLock.unlock();
+                }
+            }
+        }
+
+        synchronized int read(byte b[], int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ReadAheadBuffer buffer = nextBuffer();
+            if (buffer == null) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.length - buffer.offset);
+            System.arraycopy(buffer.data, buffer.offset, b, off, count);
+            buffer.offset += count;
+            pos += count;
+            return count;
+        }
+
+        synchronized int read(ByteBuffer buf) throws IOException {
+            if (!buf.hasRemaining()) {
+                return 0;
+            }
+            ReadAheadBuffer buffer = nextBuffer();
+            if (buffer == null) {
+                return -1;
+            }
+            int count = Math.min(buf.remaining(), buffer.length - buffer.offset);
+            buf.put(buffer.data, buffer.offset, count);
+            buffer.offset += count;
+            pos += count;
+            return count;
+        }
+
+        // Buffer holding the next unread bytes, null at end of stream
+        private ReadAheadBuffer nextBuffer() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (eof) {
+                return null;
+            }
+            if (task == null) {
+                task = getIoExecutor().submit(new Producer(generation));
+            }
+            if (current == null || current.offset == current.length) {
+                if (current != null) {
+                    free.add(current);
+                    current = null;
+                }
+                ReadAheadBuffer next;
+                try {
+                    next = filled.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for read ahead");
+                }
+                if (next == ReadAheadBuffer.EOF) {
+                    eof = true;
+                    if (error != null) {
+                        throw error;
+                    }
+                    return null;
+                }
+                current = next;
+            }
+            return current;
+        }
+
+        synchronized void seek(long newPos) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (newPos == pos) {
+                return;
+            }
+            stop();
+            if (current != null) {
+                free.add(current);
+                current = null;
+            }
+            recycleFilled();
+            runner.seek(newPos);
+            pos = newPos;
+            eof = false;
+            error = null;
+        }
+
+        synchronized long getPos() {
+            return pos;
+        }
+
+        // The runner is closed next, so wait for the producer to leave it
+        // even when interrupted
+        synchronized void close() {
+            closed = true;
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    stop();
+                    break;
+                } catch (InterruptedIOException e) {
+                    interrupted = true;
+                    Thread.interrupted();
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Stop the background task and wait until it no longer uses the runner
+        private void stop() throws InterruptedIOException {
+            if (task != null) {
+                generation++;
+                task.cancel(true);
+                task = null;
+            }
+            try {
+                while (!runnerLock.tryLock(10, TimeUnit.MILLISECONDS)) {
+                    // Make room in case the producer is blocked handing over data
+                    recycleFilled();
+                }
+                runnerLock.unlock();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while stopping read ahead");
+            }
+        }
+
+        private void recycleFilled() {
+            ReadAheadBuffer buffer;
+            while ((buffer = filled.poll()) != null) {
+                if (buffer != ReadAheadBuffer.EOF) {
+                    free.add(buffer);
+                }
+            }
+        }
+    }
+
+    // Failure of a read cancelled by this client or short of buffers here
+    // rather than of the datanode, which stays eligible. Read timeouts do
+    // count
+    static boolean isClientFailure(IOException e) {
+        if (e instanceof SocketTimeoutException) {
+            return false;
+        }
+        return e instanceof InterruptedIOException || e instanceof ClosedByInterruptException
+                || e instanceof NdpBufferPool.ExhaustedException
+                || Thread.currentThread().isInterrupted();
+    }
+
     enum RunnerState {
         DISCONNECTED, // Connection is closed programmatically by ReadRunner
         OPEN,         // Connection has been established by ReadRunner
@@ -180,15 +1093,50 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
         return new URL(urlStr.substring(0, urlStr.indexOf('?')) + query);
     }
 
-    private synchronized Param<?, ?>[] getAuthParameters(final HttpOpParam.Op op)
-            throws IOException {
-        List<Param<?,?>> authParams = new ArrayList<Param<?,?>>(); //Lists.newArrayList();
-        // Skip adding delegation token for token operations because these
-        // operations require authentication.
-        Token<?> token = null;
-        if (!op.getRequireAuth()) {
-            token = getDelegationToken();
+    /**
+     * Authentication part of the query of an operation. It is built once
+     * and read without locking, so threads opening streams at the same time
+     * do not queue on the file system.
+     */
+    private String getAuthQuery(final HttpOpParam.Op op) throws IOException {
+        AuthQuery query = authQuery;
+        if (query == null || query.ugi != ugi) {
+            query = loadAuthQuery();
         }
+        return op.getRequireAuth() ? query.requireAuth : query.delegated;
+    }
+
+    private synchronized AuthQuery loadAuthQuery() throws IOException {
+        AuthQuery query = authQuery;
+        if (query != null && query.ugi == ugi) {
+            return query;
+        }
+        // Token operations require authentication, so they never carry
+        // the delegation token
+        String userQuery = Param.toSortedString("&", getAuthParameters(null));
+        Token<?> token = getDelegationToken();
+        query = new AuthQuery(ugi, userQuery, token == null ? userQuery
+                : Param.toSortedString("&", getAuthParameters(token)));
+        authQuery = query;
+        return query;
+    }
+
+    /**
+     * Build the authentication query again on next use, after the
+     * delegation token changed or was rejected.
+     */
+    synchronized void invalidateAuthQuery() {
+        authQuery = null;
+    }
+
+    @Override
+    public <T extends TokenIdentifier> void setDelegationToken(final Token<T> token) {
+        super.setDelegationToken(token);
+        invalidateAuthQuery();
+    }
+
+    private Param<?, ?>[] getAuthParameters(final Token<?> token) throws IOException {
+        List<Param<?,?>> authParams = new ArrayList<Param<?,?>>(); //Lists.newArrayList();
         if (token != null) {
             authParams.add(new DelegationParam(token.encodeToUrlString()));
         } else {
@@ -208,44 +1156,108 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
         return authParams.toArray(new Param<?,?>[0]);
     }
 
+    private static final class AuthQuery {
+        private final UserGroupInformation ugi;
+        private final String requireAuth;
+        private final String delegated;
+
+        AuthQuery(UserGroupInformation ugi, String requireAuth, String delegated) {
+            this.ugi = ugi;
+            this.requireAuth = requireAuth;
+            this.delegated = delegated;
+        }
+    }
+
     protected class NdpReadRunner extends NdpAbstractRunner<Integer> {
         private String readParam = null;
         private RunnerState runnerState = RunnerState.SEEK;
-        private HttpURLConnection cachedConnection = null;
+        private volatile HttpURLConnection cachedConnection = null;
+        // Set by abort(), a failed read is not retried
+        private volatile boolean aborted = false;
         private long fileLength = 0;
         private long pos = 0;
         private URL originalUrl = null;
-        private URL resolvedUrl = null;
+        private volatile URL resolvedUrl = null;
         private final Path path;
         private final int bufferSize;
         private InputStream in = null;
         private byte[] readBuffer;
         private int readOffset;
         private int readLength;
+        private ByteBuffer readByteBuffer;
+        // Heap copy of direct buffer reads from non-pooled connections
+        private byte[] scratch = null;
+        private volatile long preadLength = -1;
+        // Pushdown results are requested by their start offset and resumed
+        // from what was already delivered
+        private long streamStart = 0;
+        private NdpBatchTracker batchTracker = null;
+        private boolean batchResume = false;
+        private long resumeSkip = 0;
+        // Datanode is resolved on the first read, at the offset read from
+        private boolean redirectResolved = false;
+        private String redirectKey = null;
+        private boolean redirectCached = false;
+        // Bytes a hedged open read ahead of the consumer
+        private byte[] hedgePrefix = null;
+        private int hedgePrefixOffset = 0;
+        private int hedgePrefixLength = 0;
+        // Time to first byte and stall time of pushdown results
+        private long firstReadTime = 0;
+        private boolean awaitingFirstByte = false;
+        private long stallNanos = 0;
+        // Cost of the current stream for the pushdown policy
+        private long streamReadNanos = 0;
+        private long streamBytes = 0;
+        private long streamScanned = 0;
+        // Storage node holding an admission slot for this stream
+        private String admittedHost = null;
+        // Running pushdown to cancel if the stream is closed early
+        private URL requestUrl = null;
+        private String requestId = null;
 
         NdpReadRunner(Path fspath, int bs, String readParam) throws IOException {
-            super(GetOpParam.Op.OPEN, false);
+            super(GetOpParam.Op.OPEN, false, true, readParam);
             this.readParam = readParam;
             this.path = fspath;
             this.bufferSize = bs;
             super.UpdateParameters(fspath, new BufferSizeParam(bs));
-
-            getRedirectedUrl();
         }
 
         private void getRedirectedUrl() throws IOException {
+            String cacheKey = null;
+            if (redirectCache != null) {
+                cacheKey = redirectCache.keyOf(makeQualified(path).toString(), pos, readParam);
+                URL cached = redirectCache.get(cacheKey);
+                if (cached != null) {
+                    resolvedUrl = cached;
+                    // Placements for a single open are gone after the lookup
+                    redirectKey = cacheKey;
+                    redirectCached = redirectCache.contains(cacheKey);
+                    originalUrl = super.getUrl();
+                    return;
+                }
+            }
+
             NdpURLRunner urlRunner = new NdpURLRunner(GetOpParam.Op.OPEN, null, false,
                     false , readParam ) {
                 @Override
                 protected URL getUrl() throws IOException {
-                    return toUrl(op, path, new BufferSizeParam(bufferSize));
+                    return toUrl(op, path, new BufferSizeParam(bufferSize),
+                            new OffsetParam(pos));
                 }
             };
 
+            long start = Time.monotonicNow();
             HttpURLConnection conn = urlRunner.run();            
+            ndpStatistics.increment(Statistic.REDIRECTS, 1);
+            ndpStatistics.increment(Statistic.REDIRECT_TIME, Time.monotonicNow() - start);
             String location = conn.getHeaderField("Location");
             if (location != null) {
                 resolvedUrl = removeOffsetParam(new URL(location));
+                if (cacheKey != null && "true".equals(conn.getHeaderField(CACHEABLE_HEADER))) {
+                    redirectCache.put(cacheKey, resolvedUrl);
+                }
             } else {
                 cachedConnection = conn;
             }
@@ -259,35 +1271,215 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
             if (len == 0) {
                 return 0;
             }
+            readBuffer = b;
+            readOffset = off;
+            readLength = len;
+            readByteBuffer = null;
+            return doRead();
+        }
+
+        int read(ByteBuffer buf) throws IOException {
+            if (runnerState == RunnerState.CLOSED) {
+                throw new IOException("Stream closed");
+            }
+            if (!buf.hasRemaining()) {
+                return 0;
+            }
+            readBuffer = null;
+            readByteBuffer = buf;
+            try {
+                return doRead();
+            } finally {
+                readByteBuffer = null;
+            }
+        }
 
+        private int doRead() throws IOException {
+            long readStart = System.nanoTime();
             if (runnerState == RunnerState.SEEK) {
+                if (!isPlainRead()) {
+                    firstReadTime = readStart;
+                    awaitingFirstByte = true;
+                }
+                if (!redirectResolved) {
+                    redirectResolved = true;
+                    getRedirectedUrl();
+                }
+                if (!isPlainRead()) {
+                    try {
+                        admit();
+                    } catch (IOException e) {
+                        // Drop a pushdown the gateway already runs, the
+                        // next read resolves the redirect again
+                        HttpURLConnection conn = cachedConnection;
+                        cachedConnection = null;
+                        if (conn instanceof NdpPooledConnection) {
+                            ((NdpPooledConnection) conn).abort();
+                        } else if (conn != null) {
+                            conn.disconnect();
+                        }
+                        redirectResolved = false;
+                        throw e;
+                    }
+                }
+                streamStart = pos;
+                streamReadNanos = 0;
+                streamBytes = 0;
+                streamScanned = 0;
+                batchTracker = isPlainRead() ? null : new NdpBatchTracker();
+                resumeBatch = 0;
+                resumeSkip = 0;
+            }
+            if (runnerState == RunnerState.SEEK && resolvedUrl != null) {
                 try {
                     final URL rurl = new URL(resolvedUrl + "&" + new OffsetParam(pos));
-                    cachedConnection = new NdpURLRunner(GetOpParam.Op.OPEN, rurl, true,
-                            false , readParam ).run();
+                    if (hedgeEnabled && !isPlainRead()) {
+                        hedgedOpen(rurl);
+                    } else {
+                        HttpURLConnection conn = datanodeRunner(rurl).run();
+                        if (redirectCached && conn.getResponseCode()
+                                == HttpURLConnection.HTTP_UNAVAILABLE) {
+                            conn.disconnect();
+                            throw new IOException(rurl.getAuthority()
+                                    + " is at its pushdown request cap");
+                        }
+                        cachedConnection = conn;
+                    }
                 } catch (IOException ioe) {
+                    // A cached datanode may be at its request cap, the
+                    // next open asks the gateway again
+                    if (redirectCached) {
+                        redirectCache.remove(redirectKey);
+                        redirectCached = false;
+                    }
                     closeInputStream(RunnerState.DISCONNECTED);
                 }
             }
 
-            readBuffer = b;
-            readOffset = off;
-            readLength = len;
-
             int count = -1;
             count = this.run();
             if (count >= 0) {
                 statistics.incrementBytesRead(count);
                 pos += count;
             }
+            if (!isPlainRead()) {
+                updatePushdownStatistics(readStart, count);
+            }
+            updateStreamCost(readStart, count);
+            if (count < 0) {
+                releaseAdmission();
+                requestId = null;
+            }
 
             return count;
         }
 
+        private NdpURLRunner datanodeRunner(URL datanodeUrl) {
+            NdpURLRunner runner = new NdpURLRunner(GetOpParam.Op.OPEN, datanodeUrl, true,
+                    false, readParam);
+            runner.cachedRedirect = redirectCached;
+            return runner;
+        }
+
+        // Wait for a slot on the storage node the pushdown was redirected
+        // to, the gateway when it serves the pushdown itself
+        private void admit() throws IOException {
+            if (admissionControl == null) {
+                return;
+            }
+            String host = resolvedUrl != null ? resolvedUrl.getAuthority() : uri.getAuthority();
+            if (host.equals(admittedHost)) {
+                return;
+            }
+            releaseAdmission();
+            long waited = admissionControl.acquire(host);
+            if (waited >= 0) {
+                admittedHost = host;
+                if (waited > 0) {
+                    ndpStatistics.increment(Statistic.ADMISSION_WAIT_TIME, waited);
+                }
+            }
+        }
+
+        private void releaseAdmission() {
+            if (admittedHost != null) {
+                admissionControl.release(admittedHost);
+                admittedHost = null;
+            }
+        }
+
+        private void updateStreamCost(long readStart, int count) {
+            streamReadNanos += System.nanoTime() - readStart;
+            if (count > 0) {
+                streamBytes += count;
+                return;
+            }
+            if (count < 0 && streamBytes > 0) {
+                if (isPlainRead()) {
+                    pushdownPolicy.recordPlainRead(streamBytes, streamReadNanos);
+                } else {
+                    if (streamScanned == 0 && pushdownPolicy.isAdaptive()
+                            && NdpPushdownPolicy.scansToEnd(readParam)) {
+                        streamScanned = remainingLength();
+                    }
+                    pushdownPolicy.recordPushdown(readParam, streamScanned, streamBytes,
+                            streamReadNanos);
+                }
+                streamBytes = 0;
+            }
+        }
+
+        // Bytes from the start of the stream to the end of the file,
+        // 0 if unknown
+        private long remainingLength() {
+            try {
+                return Math.max(0, getFileStatus(path).getLen() - streamStart);
+            } catch (IOException e) {
+                LOG.debug("Cannot size the scan of " + path, e);
+                return 0;
+            }
+        }
+
+        private void updatePushdownStatistics(long readStart, int count) {
+            long now = System.nanoTime();
+            if (count > 0) {
+                ndpStatistics.increment(Statistic.BYTES_RECEIVED, count);
+            }
+            if (awaitingFirstByte) {
+                if (count > 0) {
+                    awaitingFirstByte = false;
+                    ndpStatistics.increment(Statistic.FIRST_BYTE_TIME,
+                            TimeUnit.NANOSECONDS.toMillis(now - firstReadTime));
+                }
+                return;
+            }
+            // Most reads are served from buffers, carry the sub millisecond rest
+            stallNanos += now - readStart;
+            long stallMillis = TimeUnit.NANOSECONDS.toMillis(stallNanos);
+            if (stallMillis > 0) {
+                ndpStatistics.increment(Statistic.STALL_TIME, stallMillis);
+                stallNanos -= TimeUnit.MILLISECONDS.toNanos(stallMillis);
+            }
+        }
+
         public void close() throws IOException {
             closeInputStream(RunnerState.CLOSED);
         }
 
+        /**
+         * Fail a read in progress on another thread. Only the connection is
+         * closed, the runner itself is closed by the reading thread.
+         */
+        void abort() {
+            aborted = true;
+            HttpURLConnection conn = cachedConnection;
+            if (conn instanceof NdpPooledConnection) {
+                ((NdpPooledConnection) conn).abort();
+            } else if (conn != null) {
+                conn.disconnect();
+            }
+        }
+
         void seek(long newPos) throws IOException {
             if (pos != newPos) {
                 pos = newPos;
@@ -304,7 +1496,7 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
                 // Update URL with current offset. BufferSize doesn't change, but it
                 // still must be included when creating the new URL.
                 updateURLParameters(new BufferSizeParam(bufferSize),
-                        new OffsetParam(pos));
+                        new OffsetParam(isPlainRead() ? pos : streamStart));
                 originalUrl = super.getUrl();
             }
             return originalUrl;
@@ -328,19 +1520,41 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
         Integer getResponse(final HttpURLConnection conn) throws IOException {
             try {
                 cachedConnection = conn;
+                // Checked after publishing the connection, abort() either
+                // sees it or the flag is seen here
+                if (aborted) {
+                    throw new IOException("Stream aborted");
+                }
                 if (in == null) {
                     in = initializeInputStream(conn);
                 }
 
-                int count = in.read(readBuffer, readOffset, readLength);
+                int count;
+                if (readByteBuffer != null) {
+                    int start = readByteBuffer.position();
+                    count = hedgePrefix != null ? readHedgePrefix(readByteBuffer)
+                            : readByteBuffer(readByteBuffer);
+                    if (count > 0 && batchTracker != null) {
+                        batchTracker.update(readByteBuffer, start, count);
+                    }
+                } else {
+                    count = hedgePrefix != null
+                            ? readHedgePrefix(readBuffer, readOffset, readLength)
+                            : in.read(readBuffer, readOffset, readLength);
+                    if (count > 0 && batchTracker != null) {
+                        batchTracker.update(readBuffer, readOffset, count);
+                    }
+                }
+                if (count < 0 && batchResume && !batchTracker.isComplete()) {
+                    // Result streams end with the response, a cut inside
+                    // a batch means the server went away
+                    throw new EOFException("Pushdown result of " + path
+                            + " ended inside a column batch");
+                }
                 return Integer.valueOf(count);
             } catch (IOException e) {
-                String redirectHost = resolvedUrl.getAuthority();
-                if (excludeDatanodes.getValue() != null) {
-                    excludeDatanodes = new ExcludeDatanodesParam(redirectHost + ","
-                            + excludeDatanodes.getValue());
-                } else {
-                    excludeDatanodes = new ExcludeDatanodesParam(redirectHost);
+                if (resolvedUrl != null && !aborted && !isClientFailure(e)) {
+                    excludeDatanode(resolvedUrl.getAuthority());
                 }
 
                 closeInputStream(RunnerState.DISCONNECTED);
@@ -348,11 +1562,230 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
             }
         }
 
+        // Pooled connections fill the buffer straight from the socket,
+        // other streams go through a heap copy
+        private int readByteBuffer(ByteBuffer buf) throws IOException {
+            if (in instanceof ByteBufferReadable) {
+                return ((ByteBufferReadable) in).read(buf);
+            }
+            if (buf.hasArray()) {
+                int count = in.read(buf.array(), buf.arrayOffset() + buf.position(),
+                        buf.remaining());
+                if (count > 0) {
+                    buf.position(buf.position() + count);
+                }
+                return count;
+            }
+            if (scratch == null) {
+                scratch = new byte[Math.max(bufferSize, 4096)];
+            }
+            int count = in.read(scratch, 0, Math.min(buf.remaining(), scratch.length));
+            if (count > 0) {
+                buf.put(scratch, 0, count);
+            }
+            return count;
+        }
+
+        private int readHedgePrefix(byte[] b, int off, int len) {
+            int count = Math.min(len, hedgePrefixLength - hedgePrefixOffset);
+            System.arraycopy(hedgePrefix, hedgePrefixOffset, b, off, count);
+            hedgePrefixConsumed(count);
+            return count;
+        }
+
+        private int readHedgePrefix(ByteBuffer buf) {
+            int count = Math.min(buf.remaining(), hedgePrefixLength - hedgePrefixOffset);
+            buf.put(hedgePrefix, hedgePrefixOffset, count);
+            hedgePrefixConsumed(count);
+            return count;
+        }
+
+        private void hedgePrefixConsumed(int count) {
+            hedgePrefixOffset += count;
+            if (hedgePrefixOffset == hedgePrefixLength) {
+                hedgePrefix = null;
+            }
+        }
+
+        /**
+         * Open the pushdown request on the resolved datanode. If its first
+         * batch is later than the recent first batch latencies suggest, the
+         * same request goes through the gateway to another replica and
+         * whichever delivers a batch first is kept.
+         */
+        private void hedgedOpen(URL datanodeUrl) throws IOException {
+            long delay = Math.max(hedgeMinDelay, firstBatchLatency.percentile(
+                    hedgePercentile, HEDGE_MIN_SAMPLES, hedgeDefaultDelay));
+            ExecutorCompletionService<HedgeAttempt> completion =
+                    new ExecutorCompletionService<HedgeAttempt>(getIoExecutor());
+            List<HedgeAttempt> attempts = new ArrayList<HedgeAttempt>(2);
+            attempts.add(new HedgeAttempt(datanodeRunner(datanodeUrl)));
+            attempts.get(0).submit(completion);
+
+            HedgeAttempt winner = null;
+            IOException failure = null;
+            try {
+                Future<HedgeAttempt> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    URL hedgeUrl = toUrl(op, path, new BufferSizeParam(bufferSize),
+                            new OffsetParam(pos),
+                            new ExcludeDatanodesParam(datanodeUrl.getAuthority()));
+                    HedgeAttempt hedge = new HedgeAttempt(new NdpURLRunner(
+                            GetOpParam.Op.OPEN, hedgeUrl, false, true, readParam));
+                    attempts.add(hedge);
+                    hedge.submit(completion);
+                    hedgedRequests.incrementAndGet();
+                    ndpStatistics.increment(Statistic.HEDGED_REQUESTS, 1);
+                    LOG.debug("Hedging pushdown open of " + path + " at " + pos
+                            + " after " + delay + " ms");
+                }
+                for (int pending = attempts.size(); pending > 0 && winner == null; pending--) {
+                    if (done == null) {
+                        done = completion.take();
+                    }
+                    try {
+                        winner = done.get();
+                    } catch (ExecutionException e) {
+                        if (failure == null) {
+                            failure = e.getCause() instanceof IOException
+                                    ? (IOException) e.getCause()
+                                    : new IOException(e.getCause());
+                        }
+                    }
+                    done = null;
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while opening " + path);
+            } finally {
+                for (HedgeAttempt attempt : attempts) {
+                    if (attempt != winner) {
+                        attempt.cancel();
+                    }
+                }
+            }
+            if (winner == null) {
+                throw failure;
+            }
+            if (winner != attempts.get(0)) {
+                hedgeWins.incrementAndGet();
+                ndpStatistics.increment(Statistic.HEDGE_WINS, 1);
+            }
+            cachedConnection = winner.conn;
+            hedgePrefix = winner.prefixLength > 0 ? winner.prefix : null;
+            hedgePrefixOffset = 0;
+            hedgePrefixLength = winner.prefixLength;
+        }
+
+        /**
+         * One copy of a hedged pushdown open. Completes once the first
+         * batch arrived, or the first data for servers that do not frame
+         * their results.
+         */
+        private final class HedgeAttempt implements Callable<HedgeAttempt> {
+            private final NdpURLRunner runner;
+            private Future<HedgeAttempt> future = null;
+            private HttpURLConnection conn = null;
+            private boolean cancelled = false;
+            private byte[] prefix = null;
+            private int prefixLength = 0;
+
+            HedgeAttempt(NdpURLRunner runner) {
+                this.runner = runner;
+            }
+
+            synchronized void submit(ExecutorCompletionService<HedgeAttempt> completion) {
+                future = completion.submit(this);
+            }
+
+            @Override
+            public HedgeAttempt call() throws IOException {
+                long start = Time.monotonicNow();
+                HttpURLConnection c = runner.run();
+                synchronized (this) {
+                    if (cancelled) {
+                        cancelPushdown(c);
+                        c.disconnect();
+                        throw new InterruptedIOException("Hedged open cancelled");
+                    }
+                    conn = c;
+                }
+                InputStream stream = c.getInputStream();
+                boolean framed = "batch".equals(c.getHeaderField(RESUME_HEADER));
+                NdpBatchTracker tracker = new NdpBatchTracker();
+                byte[] buffer = new byte[bufferSize];
+                int length = 0;
+                while (true) {
+                    if (length == buffer.length) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    }
+                    int n = stream.read(buffer, length, buffer.length - length);
+                    if (n < 0) {
+                        break;
+                    }
+                    tracker.update(buffer, length, n);
+                    length += n;
+                    if (!framed || tracker.getBatches() > 0) {
+                        break;
+                    }
+                }
+                prefix = buffer;
+                prefixLength = length;
+                firstBatchLatency.add(Time.monotonicNow() - start);
+                return this;
+            }
+
+            synchronized void cancel() {
+                cancelled = true;
+                if (future != null) {
+                    future.cancel(true);
+                }
+                if (conn != null) {
+                    cancelPushdown(conn);
+                }
+                if (conn instanceof NdpPooledConnection) {
+                    ((NdpPooledConnection) conn).abort();
+                } else if (conn != null) {
+                    conn.disconnect();
+                }
+            }
+        }
+
         InputStream initializeInputStream(HttpURLConnection conn)
                 throws IOException {
             resolvedUrl = removeOffsetParam(conn.getURL());
             final String cl = conn.getHeaderField(HttpHeaders.CONTENT_LENGTH);
             InputStream inStream = conn.getInputStream();
+            if (!isPlainRead()) {
+                updateCapacity(conn);
+                requestUrl = conn.getURL();
+                requestId = conn.getHeaderField(REQUEST_ID_HEADER);
+                String scanned = conn.getHeaderField(SCANNED_BYTES_HEADER);
+                String load = conn.getHeaderField(LOAD_HEADER);
+                try {
+                    if (scanned != null) {
+                        streamScanned += Long.parseLong(scanned);
+                    }
+                    if (load != null) {
+                        pushdownPolicy.recordLoad(Double.parseDouble(load));
+                    }
+                } catch (NumberFormatException e) {
+                    LOG.debug("Ignoring pushdown cost headers of " + path, e);
+                }
+                boolean resumed = "batch".equals(conn.getHeaderField(RESUME_HEADER));
+                long skip = resumeSkip;
+                if (resumeBatch > 0 && !resumed) {
+                    // Server ignored the resume request and starts over
+                    skip = pos - streamStart;
+                }
+                IOUtils.skipFully(inStream, skip);
+                batchResume = resumed;
+            }
+            if (inStream instanceof ByteBufferReadable) {
+                // Pooled response body is already bounded and buffered
+                fileLength = cl != null ? pos + Long.parseLong(cl) : -1;
+                runnerState = RunnerState.OPEN;
+                return inStream;
+            }
             if (cl != null) {
                 long streamLength = Long.parseLong(cl);
                 fileLength = pos + streamLength;
@@ -365,17 +1798,115 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
             // Wrapping in BufferedInputStream because it is more performant than
             // BoundedInputStream by itself.
             runnerState = RunnerState.OPEN;
+            if (bufferPool != null) {
+                return new NdpBufferPool.BufferedStream(bufferPool, inStream, bufferSize);
+            }
             return new BufferedInputStream(inStream, bufferSize);
         }
 
         // Close both the InputStream and the connection.
         void closeInputStream(RunnerState rs) throws IOException {
             if (in != null) {
+                // Closing the connection first fails any read in progress,
+                // which holds the buffer until then
                 IOUtils.close(cachedConnection);
+                if (in instanceof NdpBufferPool.BufferedStream) {
+                    ((NdpBufferPool.BufferedStream) in).release();
+                }
                 in = null;
             }
             cachedConnection = null;
+            hedgePrefix = null;
             runnerState = rs;
+            // Closed or failed before the end, a retry starts a new request
+            if (requestId != null) {
+                cancelPushdown(requestUrl, requestId);
+                requestId = null;
+            }
+            // A disconnected stream is retried and keeps its slot
+            if (rs != RunnerState.DISCONNECTED) {
+                releaseAdmission();
+            }
+        }
+
+        boolean isPlainRead() {
+            return readParam == null;
+        }
+
+        @Override
+        protected boolean isRetriable(IOException ioe) {
+            if (runnerState == RunnerState.CLOSED || aborted || !super.isRetriable(ioe)) {
+                return false;
+            }
+            if (!isPlainRead()) {
+                // Restart after the last complete batch when the server
+                // supports it, otherwise from the start and skip what
+                // the consumer already has
+                long delivered = pos - streamStart;
+                if (batchResume && batchTracker.getBatches() > 0) {
+                    resumeBatch = batchTracker.getBatches();
+                    resumeSkip = delivered - batchTracker.getBatchEnd();
+                } else {
+                    resumeBatch = 0;
+                    resumeSkip = delivered;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Read the given range with its own request, without touching
+         * the sequential stream. Reads up to len bytes unless the file
+         * ends first.
+         */
+        int pread(long position, byte[] b, int off, int len) throws IOException {
+            if (runnerState == RunnerState.CLOSED) {
+                throw new IOException("Stream closed");
+            }
+            if (preadLength < 0) {
+                preadLength = getFileStatus(path).getLen();
+            }
+            if (position >= preadLength) {
+                return -1;
+            }
+            len = (int) Math.min(len, preadLength - position);
+
+            final Param<?,?>[] range = {new OffsetParam(position), new LengthParam((long) len)};
+            HttpURLConnection conn = null;
+            URL datanodeUrl = resolvedUrl;
+            if (datanodeUrl != null) {
+                try {
+                    conn = new NdpURLRunner(GetOpParam.Op.OPEN,
+                            new URL(datanodeUrl + "&" + Param.toSortedString("&", range)),
+                            true, false, readParam).run();
+                } catch (IOException e) {
+                    // Let the gateway pick another datanode
+                    if (redirectCache != null) {
+                        redirectCache.invalidate(datanodeUrl.getAuthority());
+                    }
+                }
+            }
+            if (conn == null) {
+                conn = new NdpURLRunner(GetOpParam.Op.OPEN,
+                        toUrl(op, path, new BufferSizeParam(bufferSize), range[0], range[1]),
+                        false, true, readParam).run();
+            }
+
+            int count = 0;
+            try {
+                InputStream rangeIn = conn.getInputStream();
+                while (count < len) {
+                    int n = rangeIn.read(b, off + count, len - count);
+                    if (n < 0) {
+                        break;
+                    }
+                    count += n;
+                }
+            } finally {
+                conn.disconnect();
+            }
+            statistics.incrementBytesRead(count);
+            return count > 0 ? count : -1;
         }
 
         long getFileLength() {
@@ -417,7 +1948,7 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
 
         //HttpOpParam.Op op = GetOpParam.Op.OPEN;
         String query = "?" + op.toQueryString()
-                + Param.toSortedString("&", getAuthParameters(op))
+                + getAuthQuery(op)
                 + Param.toSortedString("&", parameters);
 
         return new URL(urlString + query);
@@ -432,7 +1963,11 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
         private boolean checkRetry;
         private String redirectHost;
         private String readParam;
+        private String readParamDigest = null;
         private boolean followRedirect = true;
+        protected long resumeBatch = 0;
+        protected String rowGroups = null;
+        protected boolean cachedRedirect = false;
 
         protected Path fspath;
         protected Param<?,?>[] parameters;
@@ -458,6 +1993,18 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
             }
         }
 
+        protected void excludeDatanode(String redirectHost) {
+            if (excludeDatanodes.getValue() != null) {
+                excludeDatanodes = new ExcludeDatanodesParam(redirectHost + ","
+                        + excludeDatanodes.getValue());
+            } else {
+                excludeDatanodes = new ExcludeDatanodesParam(redirectHost);
+            }
+            if (redirectCache != null) {
+                redirectCache.invalidate(redirectHost);
+            }
+        }
+
         protected NdpAbstractRunner(final HttpOpParam.Op op, boolean redirected) {
             this.op = op;
             this.redirected = redirected;
@@ -519,13 +2066,8 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
                 }
                 return conn;
             } catch (IOException ioe) {
-                if (redirectHost != null) {
-                    if (excludeDatanodes.getValue() != null) {
-                        excludeDatanodes = new ExcludeDatanodesParam(redirectHost + ","
-                                + excludeDatanodes.getValue());
-                    } else {
-                        excludeDatanodes = new ExcludeDatanodesParam(redirectHost);
-                    }
+                if (redirectHost != null && !isClientFailure(ioe)) {
+                    excludeDatanode(redirectHost);
                 }
                 throw ioe;
             }
@@ -533,19 +2075,75 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
 
         private HttpURLConnection connect(final HttpOpParam.Op op, final URL url)
                 throws IOException {
-            final HttpURLConnection conn =
-                    (HttpURLConnection)connectionFactory.openConnection(url);
+            HttpURLConnection conn = (HttpURLConnection)connectionFactory.openConnection(url);
+            if (connectionPool != null && "http".equals(url.getProtocol())) {
+                // Only data streams are worth handing to the selector threads
+                NdpPooledConnection pooled = new NdpPooledConnection(url, connectionPool,
+                        op == GetOpParam.Op.OPEN ? selectorTransport : null);
+                // Configured by the factory like its own connections
+                pooled.setConnectTimeout(conn.getConnectTimeout());
+                pooled.setReadTimeout(conn.getReadTimeout());
+                conn = pooled;
+            }
             final boolean doOutput = op.getDoOutput();
             conn.setRequestMethod(op.getType().toString());
             conn.setInstanceFollowRedirects(false);
             conn.setRequestProperty(EZ_HEADER, "true");
-            conn.setRequestProperty("ReadParam",readParam);
+            // Data requests go to datanodes, which may keep the ReadParam
+            String digest = null;
+            boolean digestOnly = false;
+            if (readParam != null && readParamDigests != null && op == GetOpParam.Op.OPEN) {
+                if (readParamDigest == null) {
+                    readParamDigest = NdpReadParamDigests.digest(readParam);
+                }
+                digest = readParamDigest;
+                digestOnly = readParamDigests.isKnown(url.getAuthority(), digest);
+            }
+            if (digest != null) {
+                conn.setRequestProperty(READ_PARAM_DIGEST_HEADER, digest);
+            }
+            if (readParam != null && !digestOnly) {
+                conn.setRequestProperty("ReadParam", readParam);
+            }
+            if (resumeBatch > 0) {
+                conn.setRequestProperty(RESUME_BATCH_HEADER, Long.toString(resumeBatch));
+            }
+            if (rowGroups != null) {
+                conn.setRequestProperty(ROW_GROUPS_HEADER, rowGroups);
+            }
+            if (cachedRedirect) {
+                conn.setRequestProperty(CACHED_REDIRECT_HEADER, "true");
+            }
             conn.setDoOutput(doOutput);
 
             conn.setConnectTimeout(60 * 60 * 1000);
             conn.setReadTimeout(60 * 60 * 1000);
 
             conn.connect();
+            if (digest != null) {
+                if (digestOnly) {
+                    readParamDigests.sentDigestOnly();
+                    if (conn.getResponseCode() == HttpURLConnection.HTTP_PRECON_FAILED) {
+                        conn.disconnect();
+                        readParamDigests.forget(url.getAuthority(), digest);
+                        return connect(op, url);
+                    }
+                } else if (digest.equals(conn.getHeaderField(READ_PARAM_DIGEST_HEADER))) {
+                    readParamDigests.add(url.getAuthority(), digest);
+                }
+            }
+            if (readParam != null && op == GetOpParam.Op.OPEN
+                    && conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                ndpStatistics.increment(Statistic.PUSHDOWN_REQUESTS, 1);
+                String scanned = conn.getHeaderField(SCANNED_BYTES_HEADER);
+                if (scanned != null) {
+                    try {
+                        ndpStatistics.increment(Statistic.BYTES_SCANNED, Long.parseLong(scanned));
+                    } catch (NumberFormatException e) {
+                        LOG.debug("Ignoring " + SCANNED_BYTES_HEADER + ": " + scanned);
+                    }
+                }
+            }
             return conn;
         }
 
@@ -559,13 +2157,42 @@ public class NdpHdfsFileSystem extends WebHdfsFileSystem {
                 } catch (AccessControlException ace) {
                     throw ace;
                 } catch (InvalidToken it) {
+                    invalidateAuthQuery();
                     throw it;
                 } catch (IOException ioe) {
-                    throw ioe;
+                    if (retry >= maxRetries || !isRetriable(ioe)) {
+                        throw ioe;
+                    }
+                    ndpStatistics.increment(Statistic.RETRIES, 1);
+                    backoff(retry, ioe);
                 }
             }
         }
 
+        /**
+         * Whether a failed attempt may be repeated. Only runners that go
+         * through the gateway retry, so another datanode can be picked.
+         */
+        protected boolean isRetriable(IOException ioe) {
+            return !redirected && !(ioe instanceof FileNotFoundException)
+                    && !(ioe instanceof InterruptedIOException)
+                    && !(ioe instanceof ClosedByInterruptException)
+                    && !(ioe instanceof NdpBufferPool.ExhaustedException)
+                    && !Thread.currentThread().isInterrupted();
+        }
+
+        private void backoff(int retry, IOException ioe) throws IOException {
+            long delay = Math.min(retryBackoffMax, retryBackoffBase << Math.min(retry, 20));
+            // Full jitter in the upper half keeps retrying clients apart
+            delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            LOG.info("Retrying " + op + " in " + delay + " ms after: " + ioe);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while retrying " + op);
+            }
+        }
+
         abstract T getResponse(HttpURLConnection conn) throws IOException;
     }
 }
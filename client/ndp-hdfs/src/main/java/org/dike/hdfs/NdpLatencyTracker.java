@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.util.Arrays;
+
+/**
+ * Sliding window of recent request latencies, used to derive hedging
+ * delays from what the cluster currently delivers.
+ */
+public class NdpLatencyTracker {
+    private final long[] samples;
+    private int count = 0;
+    private int next = 0;
+
+    public NdpLatencyTracker(int window) {
+        samples = new long[window];
+    }
+
+    public synchronized void add(long latency) {
+        samples[next] = latency;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    /**
+     * Latency below which the given fraction of the recorded samples fall,
+     * or defaultValue while fewer than minSamples were recorded.
+     */
+    public synchronized long percentile(double fraction, int minSamples, long defaultValue) {
+        if (count == 0 || count < minSamples) {
+            return defaultValue;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(fraction * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+}
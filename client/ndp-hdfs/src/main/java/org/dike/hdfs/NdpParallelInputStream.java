@@ -0,0 +1,404 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Pushdown read fanned out over the HDFS blocks of a file.
+ *
+ * Each block is served by its own pushdown request, issued on a thread pool
+ * bounded by the requested parallelism. Results can be consumed either as one
+ * stream in block order, or block by block through {@link #blocks()}.
+ * Blocks are scheduled in file order, so per-block consumers should read them
+ * in order or concurrently; a block read far ahead of its predecessors waits
+ * for them to drain.
+ *
+ * With the nio transport a pool thread only holds a block until its first
+ * data arrived and the rest of the result is read by the selector threads.
+ * A block keeps its slot until it was consumed or closed either way, so no
+ * more than parallelism pushdowns are in flight.
+ */
+public class NdpParallelInputStream extends FSInputStream {
+    private final List<BlockStream> blockStreams = new ArrayList<BlockStream>();
+    private final ExecutorService executor;
+    private int currentBlock = 0;
+    private long pos = 0;
+    private boolean closed = false;
+
+    NdpParallelInputStream(NdpHdfsFileSystem fs, Path path, int bufferSize,
+                           NdpHdfsFileSystem.BlockReadParam blockReadParam,
+                           int parallelism, int queueDepth) throws IOException {
+        BlockLocation[] locations = fs.getFileBlockLocations(path, 0, Long.MAX_VALUE);
+        int threads = Math.max(1, Math.min(parallelism, locations.length));
+        Slots slots = new Slots(threads);
+        for (BlockLocation location : locations) {
+            blockStreams.add(new BlockStream(fs, path, bufferSize,
+                    blockReadParam.getReadParam(location), location, queueDepth,
+                    slots, blockStreams.size()));
+        }
+
+        executor = Executors.newFixedThreadPool(threads,
+                NdpHdfsFileSystem.daemonThreadFactory("ndp-block-"));
+        for (BlockStream blockStream : blockStreams) {
+            executor.execute(blockStream);
+        }
+        // No more work will be submitted, let pool threads exit when done
+        executor.shutdown();
+    }
+
+    /**
+     * Per-block result streams in file order.
+     */
+    public Iterator<BlockStream> blocks() {
+        return Collections.unmodifiableList(blockStreams).iterator();
+    }
+
+    public int getBlockCount() {
+        return blockStreams.size();
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        final byte[] b = new byte[1];
+        return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+    }
+
+    @Override
+    public synchronized int read(byte b[], int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (currentBlock < blockStreams.size()) {
+            BlockStream blockStream = blockStreams.get(currentBlock);
+            int count = blockStream.read(b, off, len);
+            if (count >= 0) {
+                pos += count;
+                return count;
+            }
+            blockStream.close();
+            currentBlock++;
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized void seek(long newPos) throws IOException {
+        if (newPos != pos) {
+            throw new IOException("Seek is not supported on parallel pushdown stream");
+        }
+    }
+
+    @Override
+    public synchronized long getPos() throws IOException {
+        return pos;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+        return false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (BlockStream blockStream : blockStreams) {
+            blockStream.close();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Pushdowns in flight. Blocks start in file order, so the block the
+     * consumer waits for never waits for a slot held by a later one.
+     */
+    private static final class Slots {
+        private final int max;
+        private int next = 0;
+        private int inFlight = 0;
+
+        Slots(int max) {
+            this.max = max;
+        }
+
+        synchronized void acquire(int index) throws InterruptedException {
+            while (index != next || inFlight >= max) {
+                wait();
+            }
+            next++;
+            inFlight++;
+            notifyAll();
+        }
+
+        synchronized void release() {
+            inFlight--;
+            notifyAll();
+        }
+    }
+
+    private static final class Chunk {
+        static final Chunk EOF = new Chunk(0);
+        // Rest of the block is read straight from the stream
+        static final Chunk HANDOVER = new Chunk(0);
+
+        final byte[] data;
+        int offset;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * Result stream of a single block pushdown request. Data is read on a
+     * pool thread and handed over through a bounded queue of buffers, or
+     * read by the consumer once the selector transport serves it.
+     *
+     * Only the thread reading the pushdown stream closes it. Closing the
+     * block from another thread aborts the stream, which fails a read in
+     * progress, and leaves the close to its reader.
+     */
+    public static class BlockStream extends InputStream implements Runnable {
+        private final NdpHdfsFileSystem fs;
+        private final Path path;
+        private final int bufferSize;
+        private final String readParam;
+        private final BlockLocation location;
+        private final BlockingQueue<Chunk> filled;
+        private final BlockingQueue<Chunk> free = new LinkedBlockingQueue<Chunk>();
+        private final Slots slots;
+        private final int index;
+        private final AtomicBoolean holdsSlot = new AtomicBoolean(false);
+        private final AtomicBoolean streamClosed = new AtomicBoolean(false);
+        private volatile boolean handedOver = false;
+        private Chunk current = null;
+        private boolean eof = false;
+        private volatile FSDataInputStream in = null;
+        private InputStream direct = null;
+        private volatile IOException error = null;
+        private volatile boolean closed = false;
+
+        BlockStream(NdpHdfsFileSystem fs, Path path, int bufferSize,
+                    String readParam, BlockLocation location, int queueDepth,
+                    Slots slots, int index) {
+            this.fs = fs;
+            this.path = path;
+            this.bufferSize = bufferSize;
+            this.readParam = readParam;
+            this.location = location;
+            this.filled = new ArrayBlockingQueue<Chunk>(Math.max(1, queueDepth));
+            this.slots = slots;
+            this.index = index;
+        }
+
+        // Slot is given back by the pool thread, or after a handover by
+        // the consumer at the end of the block or on close
+        private void releaseSlot() {
+            if (holdsSlot.compareAndSet(true, false)) {
+                slots.release();
+            }
+        }
+
+        private void closeStream() {
+            FSDataInputStream stream = in;
+            if (stream != null && streamClosed.compareAndSet(false, true)) {
+                IOUtils.closeStream(stream);
+            }
+        }
+
+        public BlockLocation getLocation() {
+            return location;
+        }
+
+        @Override
+        public void run() {
+            FSDataInputStream stream = null;
+            boolean handover = false;
+            try {
+                slots.acquire(index);
+                holdsSlot.set(true);
+                if (closed) {
+                    return;
+                }
+                stream = fs.open(path, bufferSize, readParam);
+                in = stream;
+                stream.seek(location.getOffset());
+                boolean selector = fs.getSelectorTransport() != null;
+                while (!closed) {
+                    Chunk chunk = free.poll();
+                    if (chunk == null) {
+                        chunk = new Chunk(bufferSize);
+                    }
+                    int count = stream.read(chunk.data, 0, chunk.data.length);
+                    if (count < 0) {
+                        break;
+                    }
+                    chunk.offset = 0;
+                    chunk.length = count;
+                    filled.put(chunk);
+                    if (selector) {
+                        // Response is streaming, no need to keep this thread
+                        handedOver = true;
+                        if (closed) {
+                            // Close may have missed the handover
+                            break;
+                        }
+                        filled.put(Chunk.HANDOVER);
+                        handover = true;
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                if (!closed) {
+                    error = new InterruptedIOException("Interrupted while reading block at "
+                            + location.getOffset());
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    error = e;
+                }
+            } finally {
+                if (!handover) {
+                    closeStream();
+                    releaseSlot();
+                }
+            }
+
+            if (!closed) {
+                try {
+                    filled.put(Chunk.EOF);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public synchronized int read(byte b[], int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (eof) {
+                return -1;
+            }
+            if (direct != null) {
+                return readDirect(b, off, len);
+            }
+            if (current == null || current.offset == current.length) {
+                if (current != null) {
+                    free.offer(current);
+                    current = null;
+                }
+                Chunk next;
+                try {
+                    next = filled.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for block at "
+                            + location.getOffset());
+                }
+                if (next == Chunk.HANDOVER) {
+                    direct = in;
+                    if (direct == null) {
+                        throw new IOException("Stream closed");
+                    }
+                    return readDirect(b, off, len);
+                }
+                if (next == Chunk.EOF) {
+                    eof = true;
+                    if (error != null) {
+                        throw error;
+                    }
+                    return -1;
+                }
+                current = next;
+            }
+
+            int count = Math.min(len, current.length - current.offset);
+            System.arraycopy(current.data, current.offset, b, off, count);
+            current.offset += count;
+            return count;
+        }
+
+        private int readDirect(byte b[], int off, int len) throws IOException {
+            int count = direct.read(b, off, len);
+            if (count < 0) {
+                eof = true;
+                closeStream();
+                releaseSlot();
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // Unblock the reader thread whether it waits on the network or on us
+            FSDataInputStream stream = in;
+            if (stream != null && stream.getWrappedStream() instanceof
+                    NdpHdfsFileSystem.NdpHdfsInputStream) {
+                ((NdpHdfsFileSystem.NdpHdfsInputStream) stream.getWrappedStream()).abort();
+            }
+            filled.clear();
+            if (handedOver) {
+                // The consumer reads the stream now, wait for a read it
+                // may have in progress to fail
+                synchronized (this) {
+                    closeStream();
+                }
+                releaseSlot();
+            }
+        }
+    }
+}
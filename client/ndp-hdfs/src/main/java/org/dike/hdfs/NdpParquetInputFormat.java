@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/**
+ * Reads parquet files on ndphdfs through a pushdown per row group.
+ *
+ * Every row group is a split, located on the hosts of the block holding
+ * most of it, so the task runs next to the datanode running its DAG. The
+ * ReadParam set with {@link #setReadParam(Job, String)} is run for each row
+ * group with its RowGroupIndex replaced and, if the DAG input names its file
+ * with {@code NdpReadParamTemplate.placeholder("File")}, the file filled in.
+ * Records are the column batches of the results.
+ */
+public class NdpParquetInputFormat extends FileInputFormat<Void, NdpColumnarBatch> {
+    // ReadParam run for every row group
+    public static final String READ_PARAM = "dike.ndp.input.read.param";
+    // Buffer size of the pushdown streams
+    public static final String BUFFER_SIZE = "dike.ndp.input.buffer.size";
+    public static final int BUFFER_SIZE_DEFAULT = 128 << 10;
+
+    public static void setReadParam(Job job, String readParam) {
+        job.getConfiguration().set(READ_PARAM, readParam);
+    }
+
+    public static String getReadParam(Configuration conf) {
+        String readParam = conf.get(READ_PARAM);
+        if (readParam == null) {
+            throw new IllegalArgumentException(READ_PARAM + " is not set");
+        }
+        return readParam;
+    }
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path filename) {
+        return false;
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext job) throws IOException {
+        final Configuration conf = job.getConfiguration();
+        final List<FileStatus> files = new ArrayList<FileStatus>();
+        for (FileStatus file : listStatus(job)) {
+            if (file.isFile() && file.getLen() > 0) {
+                files.add(file);
+            }
+        }
+        if (files.isEmpty()) {
+            return new ArrayList<InputSplit>();
+        }
+
+        // Footers are read concurrently on the scheduler of the file system
+        NdpScanScheduler scheduler = ndpFileSystem(files.get(0).getPath(), conf)
+                .getScanScheduler();
+        List<List<InputSplit>> fileSplits;
+        try (NdpScanScheduler.Scope<List<InputSplit>> scope = scheduler.newScope()) {
+            for (final FileStatus file : files) {
+                scope.fork(new Callable<List<InputSplit>>() {
+                    @Override
+                    public List<InputSplit> call() throws IOException {
+                        return getSplits(conf, file);
+                    }
+                });
+            }
+            fileSplits = scope.join();
+        }
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        for (List<InputSplit> list : fileSplits) {
+            splits.addAll(list);
+        }
+        job.getConfiguration().setLong(NUM_INPUT_FILES, files.size());
+        return splits;
+    }
+
+    private List<InputSplit> getSplits(Configuration conf, FileStatus file) throws IOException {
+        BlockLocation[] locations;
+        if (file instanceof LocatedFileStatus) {
+            locations = ((LocatedFileStatus) file).getBlockLocations();
+        } else {
+            locations = ndpFileSystem(file.getPath(), conf)
+                    .getFileBlockLocations(file, 0, file.getLen());
+        }
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        for (NdpDatasetScan.Unit rowGroup : NdpDatasetScan.listRowGroups(conf, file)) {
+            BlockLocation location = getLocation(locations, rowGroup.getOffset(),
+                    rowGroup.getLength());
+            String[] hosts = location == null ? new String[0] : location.getHosts();
+            String[] cachedHosts = location == null ? new String[0] : location.getCachedHosts();
+            splits.add(new NdpRowGroupSplit(file.getPath(), rowGroup.getIndex(),
+                    rowGroup.getOffset(), rowGroup.getLength(), hosts, cachedHosts));
+        }
+        return splits;
+    }
+
+    // Block holding most of the range
+    static BlockLocation getLocation(BlockLocation[] locations, long offset, long length) {
+        BlockLocation best = null;
+        long bestOverlap = -1;
+        for (BlockLocation location : locations) {
+            long start = Math.max(offset, location.getOffset());
+            long end = Math.min(offset + length, location.getOffset() + location.getLength());
+            if (end - start > bestOverlap) {
+                best = location;
+                bestOverlap = end - start;
+            }
+        }
+        return best;
+    }
+
+    static NdpHdfsFileSystem ndpFileSystem(Path path, Configuration conf) throws IOException {
+        FileSystem fs = path.getFileSystem(conf);
+        if (!(fs instanceof NdpHdfsFileSystem)) {
+            throw new IOException("Pushdown needs an " + NdpHdfsFileSystem.NdpHDFS_SCHEME
+                    + " path, not " + path);
+        }
+        return (NdpHdfsFileSystem) fs;
+    }
+
+    @Override
+    public RecordReader<Void, NdpColumnarBatch> createRecordReader(InputSplit split,
+                                                                  TaskAttemptContext context) {
+        return new NdpParquetRecordReader();
+    }
+}
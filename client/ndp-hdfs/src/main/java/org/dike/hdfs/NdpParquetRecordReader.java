@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Column batches of the pushdown result of one {@link NdpRowGroupSplit}.
+ */
+public class NdpParquetRecordReader extends RecordReader<Void, NdpColumnarBatch> {
+    private NdpColumnarBatchReader reader = null;
+    private NdpColumnarBatch batch = null;
+    private boolean done = false;
+
+    @Override
+    public void initialize(InputSplit inputSplit, TaskAttemptContext context)
+            throws IOException {
+        NdpRowGroupSplit split = (NdpRowGroupSplit) inputSplit;
+        Configuration conf = context.getConfiguration();
+        NdpHdfsFileSystem fs = NdpParquetInputFormat.ndpFileSystem(split.getPath(), conf);
+        NdpReadParamTemplate template = NdpReadParamTemplate.compile(
+                NdpParquetInputFormat.getReadParam(conf), "RowGroupIndex");
+        NdpDatasetScan.Unit unit = new NdpDatasetScan.Unit(split.getPath(),
+                split.getRowGroup(), split.getStart(), split.getLength());
+        FSDataInputStream in = fs.open(split.getPath(),
+                conf.getInt(NdpParquetInputFormat.BUFFER_SIZE,
+                        NdpParquetInputFormat.BUFFER_SIZE_DEFAULT),
+                NdpDatasetScan.bind(template, fs, unit));
+        // The request goes to the datanode holding the row group
+        if (split.getStart() > 0) {
+            in.seek(split.getStart());
+        }
+        reader = new NdpColumnarBatchReader(in);
+        // Values are only valid until the next record, as usual
+        reader.setReuse(true);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+        if (done) {
+            return false;
+        }
+        batch = reader.next();
+        done = batch == null;
+        return !done;
+    }
+
+    @Override
+    public Void getCurrentKey() {
+        return null;
+    }
+
+    @Override
+    public NdpColumnarBatch getCurrentValue() {
+        return batch;
+    }
+
+    /**
+     * The size of a result is not known before its end.
+     */
+    @Override
+    public float getProgress() {
+        return done ? 1.0f : 0.0f;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+}
@@ -0,0 +1,513 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.fs.ByteBufferReadable;
+
+/**
+ * HttpURLConnection served from a {@link NdpConnectionPool} socket.
+ *
+ * Speaks plain HTTP/1.1 for the GET requests issued by the NDP runners.
+ * Once the response body has been consumed, or the leftover can be drained
+ * within the pool drain limit, the socket goes back to the pool instead of
+ * being closed.
+ */
+class NdpPooledConnection extends HttpURLConnection {
+    private final NdpConnectionPool pool;
+    private final NdpSelectorTransport transport;
+    private volatile NdpConnectionPool.PooledSocket socket = null;
+    private final List<String> headerKeys = new ArrayList<String>();
+    private final List<String> headerValues = new ArrayList<String>();
+    private String statusLine = null;
+    private ResponseBody body = null;
+    private boolean keepAlive = false;
+    private long keepAliveTimeout = 0;
+
+    NdpPooledConnection(URL url, NdpConnectionPool pool) {
+        this(url, pool, null);
+    }
+
+    /**
+     * Connection whose response body is read by the given selector
+     * transport, if not null.
+     */
+    NdpPooledConnection(URL url, NdpConnectionPool pool, NdpSelectorTransport transport) {
+        super(url);
+        this.pool = pool;
+        this.transport = transport;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        while (true) {
+            socket = pool.lease(host, port, getConnectTimeout());
+            boolean reused = socket.reused;
+            try {
+                socket.channel.socket().setSoTimeout(getReadTimeout());
+                writeRequest(host, port);
+                readResponseHead();
+                break;
+            } catch (IOException e) {
+                pool.discard(socket);
+                socket = null;
+                // Server may have closed an idle connection, retry on a fresh one
+                if (!reused) {
+                    throw e;
+                }
+            }
+        }
+        connected = true;
+    }
+
+    private void writeRequest(String host, int port) throws IOException {
+        StringBuilder request = new StringBuilder(1024);
+        String file = url.getFile();
+        request.append(method).append(' ')
+                .append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(host).append(':').append(port).append("\r\n");
+        for (Map.Entry<String, List<String>> e : getRequestProperties().entrySet()) {
+            if (e.getKey() == null) {
+                continue;
+            }
+            for (String value : e.getValue()) {
+                if (value == null) {
+                    continue;
+                }
+                if (value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+                    throw new IllegalArgumentException("Illegal character in header "
+                            + e.getKey());
+                }
+                request.append(e.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            request.append("Content-Length: 0\r\n");
+        }
+        request.append("Connection: keep-alive\r\n\r\n");
+
+        OutputStream out = socket.out;
+        out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private void readResponseHead() throws IOException {
+        do {
+            headerKeys.clear();
+            headerValues.clear();
+            statusLine = readLine(socket.in);
+            if (statusLine == null) {
+                throw new EOFException("Connection closed before response from " + url);
+            }
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new ProtocolException("Bad status line from " + url + ": " + statusLine);
+            }
+            responseCode = Integer.parseInt(status[1]);
+            responseMessage = status.length > 2 ? status[2] : "";
+            keepAlive = !status[0].equals("HTTP/1.0");
+
+            String line;
+            while ((line = readLine(socket.in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headerKeys.add(line.substring(0, colon).trim());
+                    headerValues.add(line.substring(colon + 1).trim());
+                }
+            }
+        } while (responseCode == 100); // Skip 100 Continue
+
+        String connection = getHeaderField("Connection");
+        if (connection != null) {
+            if (connection.equalsIgnoreCase("close")) {
+                keepAlive = false;
+            } else if (connection.equalsIgnoreCase("keep-alive")) {
+                keepAlive = true;
+            }
+        }
+        keepAliveTimeout = parseKeepAliveTimeout(getHeaderField("Keep-Alive"));
+
+        String transferEncoding = getHeaderField("Transfer-Encoding");
+        String contentLength = getHeaderField("Content-Length");
+        if ("HEAD".equals(method) || responseCode == HTTP_NO_CONTENT
+                || responseCode == HTTP_NOT_MODIFIED || responseCode / 100 == 1) {
+            body = new ResponseBody(0);
+        } else if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+            body = new ResponseBody(ResponseBody.CHUNKED);
+        } else if (contentLength != null) {
+            body = new ResponseBody(Long.parseLong(contentLength.trim()));
+        } else {
+            // Body ends with the connection
+            keepAlive = false;
+            body = new ResponseBody(ResponseBody.UNTIL_CLOSE);
+        }
+        if (body.isDone()) {
+            finish();
+        } else if (transport != null) {
+            socket.in.attach(transport, getReadTimeout());
+        }
+    }
+
+    private static long parseKeepAliveTimeout(String keepAliveHeader) {
+        if (keepAliveHeader == null) {
+            return 0;
+        }
+        for (String token : keepAliveHeader.split(",")) {
+            token = token.trim();
+            if (token.startsWith("timeout=")) {
+                try {
+                    return Long.parseLong(token.substring(8).trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    // Hand the socket back to the pool, or close it if it can not be reused
+    private synchronized void finish() {
+        if (socket == null) {
+            return;
+        }
+        boolean reusable = keepAlive && body.isDone();
+        if (reusable) {
+            try {
+                socket.in.detach();
+            } catch (IOException e) {
+                reusable = false;
+            }
+        }
+        if (reusable) {
+            pool.release(socket, keepAliveTimeout);
+        } else {
+            pool.discard(socket);
+        }
+        socket = null;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        connect();
+        if (responseCode >= HTTP_BAD_REQUEST) {
+            if (responseCode == HTTP_NOT_FOUND || responseCode == HTTP_GONE) {
+                throw new FileNotFoundException(url.toString());
+            }
+            throw new IOException("Server returned HTTP response code: "
+                    + responseCode + " for URL: " + url);
+        }
+        return body;
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        if (connected && responseCode >= HTTP_BAD_REQUEST) {
+            return body;
+        }
+        return null;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new ProtocolException("Request body is not supported by pooled connections");
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        connect();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        connect();
+        return responseMessage;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        if (!connected && statusLine == null) {
+            try {
+                connect();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        for (int i = headerKeys.size() - 1; i >= 0; i--) {
+            if (headerKeys.get(i).equalsIgnoreCase(name)) {
+                return headerValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        if (n <= 0 || n > headerKeys.size()) {
+            return null;
+        }
+        return headerKeys.get(n - 1);
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        if (n == 0) {
+            return statusLine;
+        }
+        if (n < 0 || n > headerValues.size()) {
+            return null;
+        }
+        return headerValues.get(n - 1);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        Map<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+        if (statusLine != null) {
+            fields.put(null, Collections.singletonList(statusLine));
+        }
+        for (int i = 0; i < headerKeys.size(); i++) {
+            List<String> values = fields.get(headerKeys.get(i));
+            if (values == null) {
+                values = new ArrayList<String>();
+                fields.put(headerKeys.get(i), values);
+            }
+            values.add(headerValues.get(i));
+        }
+        return fields;
+    }
+
+    @Override
+    public void disconnect() {
+        if (socket != null && body != null && !body.isDone()) {
+            body.drain(pool.getDrainLimit());
+        }
+        finish();
+    }
+
+    /**
+     * Close the connection right away, without draining what is left of
+     * the response. Safe to call while another thread reads the body.
+     */
+    void abort() {
+        keepAlive = false;
+        finish();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return false;
+    }
+
+    /**
+     * Response body framed by Content-Length, chunked encoding or
+     * connection close.
+     */
+    private class ResponseBody extends InputStream implements ByteBufferReadable {
+        static final long CHUNKED = -1;
+        static final long UNTIL_CLOSE = -2;
+
+        private final long mode;
+        private long remaining;
+        private boolean done = false;
+        private boolean closed = false;
+
+        ResponseBody(long length) {
+            mode = length;
+            remaining = length >= 0 ? length : 0;
+            done = length == 0;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte b[], int off, int len) throws IOException {
+            int limit = readable(len);
+            if (limit <= 0) {
+                return limit;
+            }
+            return consumed(socketIn().read(b, off, limit));
+        }
+
+        @Override
+        public int read(ByteBuffer buf) throws IOException {
+            int limit = readable(buf.remaining());
+            if (limit <= 0) {
+                return limit;
+            }
+            return consumed(socketIn().read(buf, limit));
+        }
+
+        // Number of bytes the next read may take from the socket, -1 at the end
+        private int readable(int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (done) {
+                return -1;
+            }
+            if (mode == UNTIL_CLOSE) {
+                return len;
+            }
+            InputStream in = socketIn();
+            if (mode == CHUNKED && remaining == 0) {
+                remaining = nextChunkSize(in);
+                if (remaining == 0) {
+                    // Skip trailers up to the terminating empty line
+                    String line;
+                    while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    }
+                    done = true;
+                    return -1;
+                }
+            }
+            return (int) Math.min(len, remaining);
+        }
+
+        private int consumed(int count) throws IOException {
+            if (mode == UNTIL_CLOSE) {
+                if (count < 0) {
+                    done = true;
+                }
+                return count;
+            }
+            if (count < 0) {
+                throw new EOFException("Connection closed with " + remaining
+                        + " bytes of response outstanding from " + url);
+            }
+            remaining -= count;
+            if (remaining == 0) {
+                if (mode == CHUNKED) {
+                    readLine(socketIn()); // CRLF after chunk data
+                } else {
+                    done = true;
+                }
+            }
+            return count;
+        }
+
+        // The socket goes away when another thread disconnects
+        private NdpConnectionPool.ChannelInputStream socketIn() throws IOException {
+            NdpConnectionPool.PooledSocket current = socket;
+            if (current == null) {
+                throw new IOException("Connection to " + url + " was closed");
+            }
+            return current.in;
+        }
+
+        private long nextChunkSize(InputStream in) throws IOException {
+            String line = readLine(in);
+            if (line == null) {
+                throw new EOFException("Connection closed inside chunked response from " + url);
+            }
+            int ext = line.indexOf(';');
+            if (ext >= 0) {
+                line = line.substring(0, ext);
+            }
+            return Long.parseLong(line.trim(), 16);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (closed || done || socket == null) {
+                return 0;
+            }
+            int available = socket.in.available();
+            return mode >= 0 ? (int) Math.min(available, remaining) : available;
+        }
+
+        // Read off what is left of the response so the socket can be reused
+        void drain(long limit) {
+            if (!keepAlive) {
+                // Connection is closed either way, do not wait for the server
+                return;
+            }
+            byte[] buffer = new byte[8192];
+            try {
+                while (!done && limit > 0) {
+                    int count = read(buffer, 0, (int) Math.min(buffer.length, limit));
+                    if (count < 0) {
+                        break;
+                    }
+                    limit -= count;
+                }
+            } catch (IOException e) {
+                keepAlive = false;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (socket != null && !done) {
+                drain(pool.getDrainLimit());
+            }
+            closed = true;
+            finish();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Chooses between a pushdown and a plain read of the same data from what
+ * recent reads cost.
+ *
+ * Per DAG, identified by its ReadParam without block and row group
+ * parameters, it keeps the selectivity (result bytes per scanned byte) and
+ * the datanode time per scanned byte at the load of that time. Plain reads
+ * give the network bandwidth, pushdown responses the current datanode load.
+ * A pushdown is chosen while its estimated time per scanned byte, result
+ * transfer plus datanode time scaled by load, is below that of a plain
+ * read. Every so often the other choice is taken, so the estimates follow
+ * changing conditions.
+ *
+ * All rates are moving averages. Until both sides were measured pushdown
+ * is chosen, except for the exploring reads. DAGs whose pushdowns report
+ * no scanned bytes cannot be compared and always push down.
+ */
+public class NdpPushdownPolicy {
+    // Parameters that change between the requests of one scan
+    private static final Pattern PER_REQUEST = Pattern.compile(
+            "<(BlockSize|RowGroupIndex|LastAccessTime)>[^<]*</\\1>");
+    // CSV requests without a block limit scan on to the end of the file
+    private static final Pattern TO_END = Pattern.compile("<BlockSize>\\s*0\\s*</BlockSize>");
+    private static final int MIN_SAMPLES = 3;
+    private static final int MAX_FINGERPRINTS = 1024;
+
+    private final boolean adaptive;
+    private final int exploreInterval;
+    private final double weight;
+    private final LinkedHashMap<String, DagCost> costs;
+    // Seconds per plain read byte, -1 until measured
+    private double plainCost = -1;
+    private double load = 0;
+
+    public NdpPushdownPolicy(boolean adaptive, int exploreInterval, double weight) {
+        this.adaptive = adaptive;
+        this.exploreInterval = exploreInterval;
+        this.weight = weight;
+        this.costs = new LinkedHashMap<String, DagCost>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DagCost> eldest) {
+                return size() > MAX_FINGERPRINTS;
+            }
+        };
+    }
+
+    static String fingerprint(String readParam) {
+        return NdpReadParamDigests.digest(PER_REQUEST.matcher(readParam).replaceAll(""));
+    }
+
+    /**
+     * Whether a pushdown with the given ReadParam scans from its offset to
+     * the end of the file. Datanodes report no scanned bytes for these.
+     */
+    static boolean scansToEnd(String readParam) {
+        return readParam != null && !readParam.contains("<RowGroupIndex>")
+                && TO_END.matcher(readParam).find();
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Whether the data should be read through a pushdown with the given
+     * ReadParam rather than plainly.
+     */
+    public boolean shouldPushdown(String readParam) {
+        if (!adaptive) {
+            return true;
+        }
+        String fingerprint = fingerprint(readParam);
+        synchronized (this) {
+            DagCost cost = costs.get(fingerprint);
+            if (cost == null) {
+                cost = new DagCost();
+                costs.put(fingerprint, cost);
+            }
+            if (cost.unmeasured && cost.samples == 0) {
+                return true;
+            }
+            boolean pushdown = cost.samples < MIN_SAMPLES || plainCost < 0
+                    || estimatePushdownCost(cost) <= plainCost;
+            if (exploreInterval > 0 && ++cost.decisions % exploreInterval == 0) {
+                pushdown = !pushdown;
+            }
+            return pushdown;
+        }
+    }
+
+    // Seconds per scanned byte, with the datanode share scaled to the
+    // current load
+    private double estimatePushdownCost(DagCost cost) {
+        double transfer = cost.selectivity * plainCost;
+        return transfer + cost.serverCost * (1 + load) / (1 + cost.load);
+    }
+
+    /**
+     * Record a completed pushdown result.
+     */
+    void recordPushdown(String readParam, long scanned, long received, long readNanos) {
+        String fingerprint = fingerprint(readParam);
+        double seconds = readNanos / 1e9;
+        synchronized (this) {
+            DagCost cost = costs.get(fingerprint);
+            if (cost == null) {
+                cost = new DagCost();
+                costs.put(fingerprint, cost);
+            }
+            if (scanned <= 0) {
+                // Costs are per scanned byte, nothing to learn from this one
+                cost.unmeasured = true;
+                return;
+            }
+            double selectivity = (double) received / scanned;
+            // Time not explained by moving the result over the network
+            double serverCost = seconds / scanned;
+            if (plainCost > 0) {
+                serverCost = Math.max(0, serverCost - selectivity * plainCost);
+            }
+            cost.selectivity = average(cost.selectivity, selectivity, cost.samples);
+            cost.serverCost = average(cost.serverCost, serverCost, cost.samples);
+            cost.load = average(cost.load, load, cost.samples);
+            cost.samples++;
+        }
+    }
+
+    /**
+     * Record a completed plain read.
+     */
+    synchronized void recordPlainRead(long bytes, long readNanos) {
+        if (bytes <= 0 || readNanos <= 0) {
+            return;
+        }
+        double cost = readNanos / 1e9 / bytes;
+        plainCost = plainCost < 0 ? cost : average(plainCost, cost, 1);
+    }
+
+    /**
+     * Record the load a datanode reported, as active over maximum
+     * pushdown requests.
+     */
+    synchronized void recordLoad(double reported) {
+        load = average(load, Math.max(0, reported), 1);
+    }
+
+    private double average(double current, double sample, int samples) {
+        return samples == 0 ? sample : current + weight * (sample - current);
+    }
+
+    /**
+     * Plain read bandwidth in bytes per second, 0 until measured.
+     */
+    public synchronized double getBandwidth() {
+        return plainCost > 0 ? 1 / plainCost : 0;
+    }
+
+    public synchronized double getLoad() {
+        return load;
+    }
+
+    /**
+     * Result bytes per scanned byte of the DAG, -1 until measured.
+     */
+    public double getSelectivity(String readParam) {
+        String fingerprint = fingerprint(readParam);
+        synchronized (this) {
+            DagCost cost = costs.get(fingerprint);
+            return cost == null || cost.samples == 0 ? -1 : cost.selectivity;
+        }
+    }
+
+    private static final class DagCost {
+        private double selectivity = 0;
+        // Datanode seconds per scanned byte
+        private double serverCost = 0;
+        // Load the costs were measured at
+        private double load = 0;
+        private int samples = 0;
+        private long decisions = 0;
+        // Pushdowns completed without scanned bytes
+        private boolean unmeasured = false;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * ReadParams each datanode has confirmed to keep, so later requests to it
+ * can send the digest of a ReadParam instead of the full document.
+ *
+ * A datanode confirms by echoing the ReadParamDigest header offered with a
+ * full ReadParam. Servers that never confirm always get the full ReadParam.
+ */
+public class NdpReadParamDigests {
+    private final LinkedHashMap<String, Boolean> known;
+    private final AtomicLong digestOnly = new AtomicLong(0);
+    private final AtomicLong resent = new AtomicLong(0);
+
+    public NdpReadParamDigests(final int maxSize) {
+        this.known = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    static String digest(String readParam) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return StringUtils.byteToHexString(
+                    md.digest(readParam.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    synchronized boolean isKnown(String authority, String digest) {
+        return known.get(authority + "#" + digest) != null;
+    }
+
+    synchronized void add(String authority, String digest) {
+        known.put(authority + "#" + digest, Boolean.TRUE);
+    }
+
+    // Datanode no longer has it, e.g. after a restart
+    synchronized void forget(String authority, String digest) {
+        known.remove(authority + "#" + digest);
+        resent.incrementAndGet();
+    }
+
+    void sentDigestOnly() {
+        digestOnly.incrementAndGet();
+    }
+
+    /**
+     * Requests that carried the digest instead of the ReadParam.
+     */
+    public long getDigestOnlyRequests() {
+        return digestOnly.get();
+    }
+
+    /**
+     * Digest only requests the datanode could not resolve.
+     */
+    public long getResent() {
+        return resent.get();
+    }
+
+    public synchronized int size() {
+        return known.size();
+    }
+}
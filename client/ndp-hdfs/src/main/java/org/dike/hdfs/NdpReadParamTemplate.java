@@ -0,0 +1,229 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ReadParam document serialized once, with slots for the values that
+ * change between requests.
+ *
+ * A template is compiled from a complete ReadParam in which the variable
+ * parts are marked, either by {@link #placeholder(String)} values, e.g. the
+ * File of a DAG input node, or by naming elements whose text is replaced,
+ * e.g. RowGroupIndex. Binding only concatenates the fixed text with the
+ * escaped values, the XML and JSON writers are not involved again.
+ *
+ * Placeholders written as JSON string values are escaped for JSON as well.
+ * Values are escaped for XML unless their slot is inside a CDATA section,
+ * which only has to keep its end marker out of the value.
+ */
+public final class NdpReadParamTemplate {
+    private static final String PLACEHOLDER_START = "${";
+    private static final String PLACEHOLDER_END = "}";
+    private static final String CDATA_START = "<![CDATA[";
+    private static final String CDATA_END = "]]>";
+
+    private final String[] segments;
+    private final String[] slots;
+    private final boolean[] jsonSlots;
+    private final boolean[] cdataSlots;
+    private final int fixedLength;
+
+    private NdpReadParamTemplate(List<String> segments, List<String> slots,
+                                 List<Boolean> jsonSlots, List<Boolean> cdataSlots) {
+        this.segments = segments.toArray(new String[segments.size()]);
+        this.slots = slots.toArray(new String[slots.size()]);
+        this.jsonSlots = new boolean[jsonSlots.size()];
+        this.cdataSlots = new boolean[cdataSlots.size()];
+        for (int i = 0; i < this.jsonSlots.length; i++) {
+            this.jsonSlots[i] = jsonSlots.get(i);
+            this.cdataSlots[i] = cdataSlots.get(i);
+        }
+        int length = 0;
+        for (String segment : this.segments) {
+            length += segment.length();
+        }
+        this.fixedLength = length;
+    }
+
+    /**
+     * Marker to write in place of a value bound later under the given name.
+     */
+    public static String placeholder(String name) {
+        return PLACEHOLDER_START + name + PLACEHOLDER_END;
+    }
+
+    /**
+     * Compile a ReadParam document. Besides its placeholders, the text of
+     * every listed element becomes a slot named after the element.
+     */
+    public static NdpReadParamTemplate compile(String readParam, String... elements) {
+        List<String> segments = new ArrayList<String>();
+        List<String> slots = new ArrayList<String>();
+        List<Boolean> jsonSlots = new ArrayList<Boolean>();
+        List<Boolean> cdataSlots = new ArrayList<Boolean>();
+        int pos = 0;
+        int segmentStart = 0;
+        while (true) {
+            int placeholder = readParam.indexOf(PLACEHOLDER_START, pos);
+            int element = -1;
+            String elementName = null;
+            for (String name : elements) {
+                int start = readParam.indexOf("<" + name + ">", pos);
+                if (start >= 0 && (element < 0 || start < element)) {
+                    element = start;
+                    elementName = name;
+                }
+            }
+            if (placeholder < 0 && element < 0) {
+                break;
+            }
+            if (element >= 0 && (placeholder < 0 || element < placeholder)) {
+                int textStart = element + elementName.length() + 2;
+                int textEnd = readParam.indexOf("</" + elementName + ">", textStart);
+                if (textEnd < 0) {
+                    throw new IllegalArgumentException("Element " + elementName
+                            + " is not closed in ReadParam");
+                }
+                segments.add(readParam.substring(segmentStart, textStart));
+                slots.add(elementName);
+                jsonSlots.add(Boolean.FALSE);
+                cdataSlots.add(Boolean.FALSE);
+                segmentStart = textEnd;
+                pos = textEnd;
+            } else {
+                int end = readParam.indexOf(PLACEHOLDER_END, placeholder);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated placeholder in ReadParam");
+                }
+                String prefix = readParam.substring(segmentStart, placeholder);
+                segments.add(prefix);
+                slots.add(readParam.substring(placeholder + PLACEHOLDER_START.length(), end));
+                jsonSlots.add(prefix.endsWith("\"") || prefix.endsWith("&quot;"));
+                cdataSlots.add(inCData(readParam, placeholder));
+                segmentStart = end + PLACEHOLDER_END.length();
+                pos = segmentStart;
+            }
+        }
+        segments.add(readParam.substring(segmentStart));
+        return new NdpReadParamTemplate(segments, slots, jsonSlots, cdataSlots);
+    }
+
+    private static boolean inCData(String readParam, int pos) {
+        int start = readParam.lastIndexOf(CDATA_START, pos);
+        return start >= 0 && readParam.lastIndexOf(CDATA_END, pos) < start;
+    }
+
+    /**
+     * Names of the slots in document order, a name may appear repeatedly.
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(Arrays.asList(slots));
+    }
+
+    /**
+     * Bind name and value pairs, e.g. {@code bind("File", name, "RowGroupIndex", 3)}.
+     */
+    public String bind(Object... namesAndValues) {
+        if (namesAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("Names and values must come in pairs");
+        }
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            values.put(String.valueOf(namesAndValues[i]), namesAndValues[i + 1]);
+        }
+        return bind(values);
+    }
+
+    /**
+     * ReadParam with every slot replaced by its escaped value.
+     */
+    public String bind(Map<String, ?> values) {
+        StringBuilder readParam = new StringBuilder(fixedLength + 32 * slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            readParam.append(segments[i]);
+            Object value = values.get(slots[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("No value for " + slots[i]);
+            }
+            String text = value.toString();
+            if (jsonSlots[i]) {
+                text = escapeJson(text);
+            }
+            if (cdataSlots[i]) {
+                // Split the section around an end marker in the value
+                readParam.append(text.replace(CDATA_END, "]]" + CDATA_END + CDATA_START + ">"));
+            } else {
+                escapeXml(text, readParam);
+            }
+        }
+        readParam.append(segments[slots.length]);
+        return readParam.toString();
+    }
+
+    private static String escapeJson(String text) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            String replacement = null;
+            if (c == '"' || c == '\\') {
+                replacement = "\\" + c;
+            } else if (c < 0x20) {
+                replacement = String.format("\\u%04x", (int) c);
+            }
+            if (replacement != null && escaped == null) {
+                escaped = new StringBuilder(text.length() + 16);
+                escaped.append(text, 0, i);
+            }
+            if (escaped != null) {
+                if (replacement != null) {
+                    escaped.append(replacement);
+                } else {
+                    escaped.append(c);
+                }
+            }
+        }
+        return escaped != null ? escaped.toString() : text;
+    }
+
+    private static void escapeXml(String text, StringBuilder out) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}
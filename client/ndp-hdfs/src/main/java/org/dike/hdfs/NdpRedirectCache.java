@@ -0,0 +1,222 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.util.Time;
+
+/**
+ * Datanode URLs resolved by the gateway for pushdown opens.
+ *
+ * Entries are keyed by path, block offset and processor name, as the
+ * node running a pushdown depends on the block but not on the query.
+ * The block of an offset is known once the block locations of the file
+ * were listed, until then the offset itself stands in for it. Entries
+ * expire after a fixed time and are dropped as soon as their datanode
+ * gets excluded. The least recently used entry is evicted once the cache
+ * is full. Only redirects the gateway marks as cacheable are kept for
+ * reuse, a storage node places every other pushdown by its current load.
+ * Those are kept for a single open, e.g. when resolved by a bulk open
+ * ahead of the streams.
+ */
+public class NdpRedirectCache {
+    private final int maxSize;
+    private final long ttl;
+    private final LinkedHashMap<String, Entry> entries;
+    private final LinkedHashMap<String, Blocks> blocks;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    private static final class Entry {
+        final URL url;
+        final long expireTime;
+        final boolean once;
+
+        Entry(URL url, long expireTime, boolean once) {
+            this.url = url;
+            this.expireTime = expireTime;
+            this.once = once;
+        }
+    }
+
+    // Sorted block extents of a file
+    private static final class Blocks {
+        final long[] starts;
+        final long[] ends;
+
+        Blocks(long[] starts, long[] ends) {
+            this.starts = starts;
+            this.ends = ends;
+        }
+    }
+
+    public NdpRedirectCache(final int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+        this.blocks = new LinkedHashMap<String, Blocks>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Blocks> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    static String key(String path, long blockOffset, String processor) {
+        return path + "@" + blockOffset + "#" + (processor == null ? "" : processor);
+    }
+
+    /**
+     * Key of a pushdown opened at the given offset of a file.
+     */
+    String keyOf(String path, long offset, String readParam) {
+        return key(path, blockOffset(path, offset), processor(readParam));
+    }
+
+    // Name of the processor a ReadParam runs, e.g. dikeSQL
+    static String processor(String readParam) {
+        if (readParam == null) {
+            return null;
+        }
+        int start = readParam.indexOf("<Name>");
+        int end = start < 0 ? -1 : readParam.indexOf("</Name>", start);
+        if (end < 0) {
+            return NdpReadParamDigests.digest(readParam);
+        }
+        return readParam.substring(start + "<Name>".length(), end).trim();
+    }
+
+    /**
+     * Remember the block extents of a file, as listed by the file system.
+     */
+    synchronized void putBlocks(String path, BlockLocation[] locations) {
+        if (locations == null || locations.length == 0) {
+            return;
+        }
+        BlockLocation[] sorted = locations.clone();
+        Arrays.sort(sorted, new Comparator<BlockLocation>() {
+            @Override
+            public int compare(BlockLocation a, BlockLocation b) {
+                return Long.compare(a.getOffset(), b.getOffset());
+            }
+        });
+        long[] starts = new long[sorted.length];
+        long[] ends = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            starts[i] = sorted[i].getOffset();
+            ends[i] = starts[i] + sorted[i].getLength();
+        }
+        blocks.put(path, new Blocks(starts, ends));
+    }
+
+    /**
+     * Start of the block holding the offset, or the offset itself if that
+     * block is not known.
+     */
+    synchronized long blockOffset(String path, long offset) {
+        Blocks extents = blocks.get(path);
+        if (extents == null) {
+            return offset;
+        }
+        int i = Arrays.binarySearch(extents.starts, offset);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        if (i < 0 || offset >= extents.ends[i]) {
+            return offset;
+        }
+        return extents.starts[i];
+    }
+
+    synchronized URL get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            if (entry.expireTime > Time.monotonicNow()) {
+                if (entry.once) {
+                    entries.remove(key);
+                }
+                hits.incrementAndGet();
+                return entry.url;
+            }
+            entries.remove(key);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // Lookup that leaves the hit and miss counts alone
+    synchronized boolean contains(String key) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.expireTime > Time.monotonicNow();
+    }
+
+    synchronized void put(String key, URL url) {
+        entries.put(key, new Entry(url, Time.monotonicNow() + ttl, false));
+    }
+
+    // Placement made for the next open only
+    synchronized void putOnce(String key, URL url) {
+        entries.put(key, new Entry(url, Time.monotonicNow() + ttl, true));
+    }
+
+    synchronized void remove(String key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Drop every entry that resolves to the given datanode host:port.
+     */
+    synchronized void invalidate(String authority) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().url.getAuthority().equals(authority)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        blocks.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
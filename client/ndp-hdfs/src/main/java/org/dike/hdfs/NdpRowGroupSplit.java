@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Split of a single parquet row group, spanning its column chunks.
+ */
+public class NdpRowGroupSplit extends FileSplit {
+    private int rowGroup;
+
+    public NdpRowGroupSplit() {
+    }
+
+    public NdpRowGroupSplit(Path file, int rowGroup, long start, long length,
+                            String[] hosts, String[] inMemoryHosts) {
+        super(file, start, length, hosts, inMemoryHosts);
+        this.rowGroup = rowGroup;
+    }
+
+    public int getRowGroup() {
+        return rowGroup;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        super.write(out);
+        out.writeInt(rowGroup);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        super.readFields(in);
+        rowGroup = in.readInt();
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " row group " + rowGroup;
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Pushdown results of several row groups of a file, requested at once.
+ *
+ * The request lists the row groups in the NdpRowGroups header. A server
+ * that supports it echoes the header and sends the results in request order
+ * as frames of a big endian int row group index, an int payload length and
+ * the payload. An empty frame ends a row group. Servers without support are
+ * asked once per row group instead, with the RowGroupIndex of the ReadParam
+ * replaced.
+ *
+ * Row groups are consumed in order through {@link #next()}; moving on skips
+ * whatever is left of the previous one.
+ */
+public class NdpRowGroupStreams implements Closeable {
+    private final NdpHdfsFileSystem fs;
+    private final Path path;
+    private final int bufferSize;
+    private final String readParam;
+    private final List<Integer> rowGroups;
+    private HttpURLConnection conn = null;
+    private DataInputStream in = null;
+    private boolean framed = false;
+    private boolean opened = false;
+    private NdpReadParamTemplate template = null;
+    private int next = 0;
+    private RowGroupStream current = null;
+    private boolean closed = false;
+
+    NdpRowGroupStreams(NdpHdfsFileSystem fs, Path path, int bufferSize,
+                       String readParam, List<Integer> rowGroups) {
+        this.fs = fs;
+        this.path = path;
+        this.bufferSize = bufferSize;
+        this.readParam = readParam;
+        this.rowGroups = Collections.unmodifiableList(new ArrayList<Integer>(rowGroups));
+    }
+
+    /**
+     * Header value naming the row groups, with consecutive indexes
+     * written as ranges, e.g. "0-3,7".
+     */
+    static String toRowGroupsHeader(List<Integer> rowGroups) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < rowGroups.size()) {
+            int first = rowGroups.get(i);
+            int last = first;
+            while (i + 1 < rowGroups.size() && rowGroups.get(i + 1) == last + 1) {
+                last = rowGroups.get(++i);
+            }
+            i++;
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(first);
+            if (last > first) {
+                sb.append('-').append(last);
+            }
+        }
+        return sb.toString();
+    }
+
+    public List<Integer> getRowGroups() {
+        return rowGroups;
+    }
+
+    /**
+     * Whether the row groups came in a single framed response. Only known
+     * once the first row group was opened.
+     */
+    public boolean isFramed() {
+        return framed;
+    }
+
+    /**
+     * Result of the next row group, or null after the last one.
+     */
+    public synchronized RowGroupStream next() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        if (next == rowGroups.size()) {
+            return null;
+        }
+        if (!opened) {
+            opened = true;
+            if (rowGroups.size() > 1) {
+                conn = fs.openRowGroups(path, bufferSize, readParam,
+                        toRowGroupsHeader(rowGroups));
+            }
+            if (conn != null) {
+                framed = true;
+                in = new DataInputStream(new BufferedInputStream(conn.getInputStream(),
+                        bufferSize));
+            } else {
+                template = NdpReadParamTemplate.compile(readParam, "RowGroupIndex");
+            }
+        }
+        int rowGroup = rowGroups.get(next++);
+        if (framed) {
+            current = new RowGroupStream(rowGroup, null);
+        } else {
+            current = new RowGroupStream(rowGroup, fs.open(path, bufferSize,
+                    template.bind("RowGroupIndex", rowGroup)));
+        }
+        return current;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        boolean complete = next == rowGroups.size() && (current == null || current.eof);
+        try {
+            if (current != null) {
+                current.abort();
+                current = null;
+            }
+        } finally {
+            if (conn != null) {
+                if (!complete) {
+                    fs.cancelPushdown(conn);
+                }
+                conn.disconnect();
+                conn = null;
+            }
+            in = null;
+        }
+    }
+
+    /**
+     * Result stream of one row group.
+     */
+    public final class RowGroupStream extends InputStream {
+        private final int rowGroup;
+        private final InputStream single;
+        private int remaining = 0;
+        private boolean eof = false;
+        private boolean closed = false;
+
+        private RowGroupStream(int rowGroup, InputStream single) {
+            this.rowGroup = rowGroup;
+            this.single = single;
+        }
+
+        public int getRowGroup() {
+            return rowGroup;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (single != null) {
+                return single.read(b, off, len);
+            }
+            while (remaining == 0 && !eof) {
+                nextFrame();
+            }
+            if (eof) {
+                return -1;
+            }
+            int count = in.read(b, off, Math.min(len, remaining));
+            if (count < 0) {
+                throw new EOFException("Pushdown result of " + path
+                        + " ended inside row group " + rowGroup);
+            }
+            remaining -= count;
+            fs.rowGroupBytesRead(count);
+            return count;
+        }
+
+        private void nextFrame() throws IOException {
+            int index = in.readInt();
+            int length = in.readInt();
+            if (index != rowGroup || length < 0) {
+                throw new IOException("Unexpected frame of row group " + index
+                        + " with " + length + " bytes in result of row group " + rowGroup);
+            }
+            if (length == 0) {
+                eof = true;
+            }
+            remaining = length;
+        }
+
+        /**
+         * Skips the rest of the row group, so the next one can be read.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (single != null) {
+                closed = true;
+                single.close();
+                return;
+            }
+            while (!eof) {
+                if (remaining > 0) {
+                    long n = in.skip(remaining);
+                    if (n <= 0) {
+                        if (in.read() < 0) {
+                            throw new EOFException("Pushdown result of " + path
+                                    + " ended inside row group " + rowGroup);
+                        }
+                        n = 1;
+                    }
+                    remaining -= n;
+                } else {
+                    nextFrame();
+                }
+            }
+            closed = true;
+        }
+
+        // Give up on the row group without reading to its end
+        private void abort() throws IOException {
+            closed = true;
+            if (single != null) {
+                single.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs blocking block or row group pushdowns with high fan-out.
+ *
+ * On a JVM with virtual threads every task gets its own virtual thread and
+ * a semaphore bounds how many run at once. Older JVMs fall back to a pool
+ * of daemon threads sized to the same limit, so callers never size thread
+ * pools themselves.
+ *
+ * Tasks are forked within a {@link Scope}: a failed task cancels its
+ * siblings as soon as it fails, and closing the scope cancels whatever is
+ * still running.
+ */
+public class NdpScanScheduler implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(NdpScanScheduler.class);
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxConcurrency;
+    private final AtomicInteger running = new AtomicInteger(0);
+
+    public NdpScanScheduler(int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null) {
+            executor = virtual;
+            permits = new Semaphore(this.maxConcurrency);
+        } else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(this.maxConcurrency,
+                    this.maxConcurrency, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    NdpHdfsFileSystem.daemonThreadFactory("ndp-scan-"));
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+            permits = null;
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() when the JVM has it
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            LOG.debug("Virtual threads not available", e);
+            return null;
+        }
+    }
+
+    /**
+     * Whether tasks run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return permits != null;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Number of tasks currently running.
+     */
+    public int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * Open a scope to fork tasks into.
+     */
+    public <T> Scope<T> newScope() {
+        return new Scope<T>();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private <T> T runTask(Callable<T> task) throws Exception {
+        if (permits != null) {
+            permits.acquire();
+        }
+        running.incrementAndGet();
+        try {
+            return task.call();
+        } finally {
+            running.decrementAndGet();
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Group of tasks that finish together. Use from a single thread,
+     * typically in a try-with-resources block around fork and join.
+     */
+    public final class Scope<T> implements Closeable {
+        // Cancelled from the thread of a failed task
+        private final List<FutureTask<T>> tasks =
+                Collections.synchronizedList(new ArrayList<FutureTask<T>>());
+        private final LinkedBlockingQueue<FutureTask<T>> done =
+                new LinkedBlockingQueue<FutureTask<T>>();
+        private volatile ExecutionException failure = null;
+        private int joined = 0;
+        private boolean closed = false;
+
+        private Scope() {
+        }
+
+        /**
+         * Start the task, subject to the scheduler concurrency limit.
+         */
+        public Future<T> fork(final Callable<T> task) {
+            if (closed) {
+                throw new IllegalStateException("Scope is closed");
+            }
+            FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return runTask(task);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    if (!isCancelled()) {
+                        try {
+                            get();
+                        } catch (ExecutionException e) {
+                            failed(e);
+                        } catch (InterruptedException e) {
+                            // Not reached, the task is done
+                        }
+                    }
+                    Scope.this.done.add(this);
+                }
+            };
+            tasks.add(future);
+            if (failure != null) {
+                future.cancel(false);
+            }
+            executor.execute(future);
+            return future;
+        }
+
+        // Keep the first failure and cancel the siblings right away
+        private void failed(ExecutionException e) {
+            synchronized (this) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            cancel();
+        }
+
+        /**
+         * Wait for all forked tasks and return their results in fork order.
+         * The first failure cancels the remaining tasks and is rethrown.
+         */
+        public List<T> join() throws IOException {
+            try {
+                while (joined < tasks.size()) {
+                    done.take();
+                    joined++;
+                    ExecutionException first = failure;
+                    if (first != null) {
+                        throw first;
+                    }
+                }
+                List<T> results = new ArrayList<T>(tasks.size());
+                for (FutureTask<T> future : tasks) {
+                    results.add(future.get());
+                }
+                return results;
+            } catch (InterruptedException e) {
+                cancel();
+                throw new InterruptedIOException("Interrupted while joining scan tasks");
+            } catch (CancellationException e) {
+                throw new InterruptedIOException("Scan tasks were cancelled");
+            } catch (ExecutionException e) {
+                cancel();
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+
+        /**
+         * Cancel and interrupt all tasks that did not finish yet.
+         */
+        public void cancel() {
+            synchronized (tasks) {
+                for (FutureTask<T> future : tasks) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            cancel();
+        }
+    }
+}
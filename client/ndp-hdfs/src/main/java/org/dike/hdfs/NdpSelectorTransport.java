@@ -0,0 +1,351 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads response bodies of many pooled connections on a few selector
+ * threads.
+ *
+ * A response body handed to the transport is read into a small set of
+ * direct buffers per stream, which the consumer takes as ByteBuffer chunks.
+ * Reading stops while all buffers of a stream wait to be consumed, so a
+ * slow consumer holds back its own connection only.
+ */
+public class NdpSelectorTransport implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(NdpSelectorTransport.class);
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final SelectorLoop[] loops;
+    private final int chunkSize;
+    private final int maxChunks;
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final AtomicInteger activeStreams = new AtomicInteger(0);
+
+    public NdpSelectorTransport(int threads, int chunkSize, int maxChunks) throws IOException {
+        this.chunkSize = chunkSize;
+        this.maxChunks = Math.max(1, maxChunks);
+        loops = new SelectorLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(Selector.open());
+            Thread thread = NdpHdfsFileSystem.daemonThreadFactory("ndp-selector-" + i + "-")
+                    .newThread(loops[i]);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hand the channel over to a selector thread. The channel stays in non
+     * blocking mode until the stream is detached or the channel is closed.
+     */
+    Stream attach(SocketChannel channel) {
+        SelectorLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+        Stream stream = new Stream(loop, channel);
+        loop.register(stream);
+        return stream;
+    }
+
+    /**
+     * Number of response bodies currently read by the selector threads.
+     */
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    public int getThreads() {
+        return loops.length;
+    }
+
+    @Override
+    public void close() {
+        for (SelectorLoop loop : loops) {
+            loop.close();
+        }
+    }
+
+    /**
+     * Chunks of one response body, filled by a selector thread and taken by
+     * the consumer.
+     */
+    final class Stream {
+        private final SelectorLoop loop;
+        private final SocketChannel channel;
+        private final LinkedBlockingQueue<ByteBuffer> filled =
+                new LinkedBlockingQueue<ByteBuffer>();
+        private final ConcurrentLinkedQueue<ByteBuffer> free =
+                new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicBoolean paused = new AtomicBoolean(false);
+        private final AtomicBoolean ended = new AtomicBoolean(false);
+        private SelectionKey key = null;
+        private int allocated = 0;
+        private volatile IOException error = null;
+
+        Stream(SelectorLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        /**
+         * Next chunk of the body, or null at its end.
+         */
+        ByteBuffer take(int timeout) throws IOException {
+            ByteBuffer chunk;
+            try {
+                if (timeout > 0) {
+                    chunk = filled.poll(timeout, TimeUnit.MILLISECONDS);
+                    if (chunk == null) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                } else {
+                    chunk = filled.take();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while reading response");
+            }
+            if (chunk == END) {
+                // Leave the marker for later reads
+                filled.offer(END);
+                if (error != null) {
+                    throw error;
+                }
+                return null;
+            }
+            return chunk;
+        }
+
+        // Give a consumed chunk back and resume reading if it was waiting
+        void recycle(ByteBuffer chunk) {
+            chunk.clear();
+            free.offer(chunk);
+            if (paused.compareAndSet(true, false)) {
+                loop.resume(this);
+            }
+        }
+
+        /**
+         * Take the channel back from the selector thread and make it
+         * blocking again. Must only be called once the body is consumed.
+         */
+        void detach() throws IOException {
+            loop.detach(this);
+        }
+
+        /**
+         * Wake up the consumer of a channel closed by another thread.
+         */
+        void close() {
+            end(new IOException("Connection closed"));
+        }
+
+        private void end(IOException e) {
+            if (ended.compareAndSet(false, true)) {
+                error = e;
+                activeStreams.decrementAndGet();
+                filled.offer(END);
+            }
+        }
+
+        // Called on the selector thread
+        private void readReady() {
+            ByteBuffer chunk = free.poll();
+            if (chunk == null) {
+                if (allocated < maxChunks) {
+                    allocated++;
+                    chunk = ByteBuffer.allocateDirect(chunkSize);
+                } else {
+                    key.interestOps(0);
+                    paused.set(true);
+                    // The consumer may have returned a chunk before seeing the flag
+                    if (!free.isEmpty() && paused.compareAndSet(true, false)) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    return;
+                }
+            }
+            int count;
+            try {
+                count = channel.read(chunk);
+            } catch (IOException e) {
+                key.cancel();
+                end(e);
+                return;
+            }
+            if (count < 0) {
+                key.cancel();
+                end(null);
+                return;
+            }
+            if (count == 0) {
+                free.offer(chunk);
+                return;
+            }
+            chunk.flip();
+            filled.offer(chunk);
+        }
+    }
+
+    private final class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks =
+                new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean closed = false;
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(final Stream stream) {
+            activeStreams.incrementAndGet();
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stream.channel.configureBlocking(false);
+                        stream.key = stream.channel.register(selector,
+                                SelectionKey.OP_READ, stream);
+                    } catch (IOException e) {
+                        stream.end(e);
+                    } catch (ClosedSelectorException e) {
+                        stream.end(new IOException("Transport is closed"));
+                    }
+                }
+            });
+        }
+
+        void resume(final Stream stream) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (stream.key != null && stream.key.isValid()) {
+                        stream.key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            });
+        }
+
+        void detach(final Stream stream) throws IOException {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final IOException[] failure = new IOException[1];
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (stream.key != null) {
+                            stream.key.cancel();
+                            // Deregister before the channel may block again
+                            selector.selectNow();
+                        }
+                        stream.channel.configureBlocking(true);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    } catch (ClosedSelectorException e) {
+                        failure[0] = new IOException("Transport is closed");
+                    } finally {
+                        stream.end(null);
+                        latch.countDown();
+                    }
+                }
+            });
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while detaching connection");
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+
+        private void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+            if (closed) {
+                // Loop is gone or about to go, nobody else runs the task
+                runTasks();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    runTasks();
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Stream stream = (Stream) key.attachment();
+                        if (!key.isValid()) {
+                            // Channel closed under us
+                            stream.close();
+                        } else if (key.isReadable()) {
+                            stream.readReady();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("Selector loop failed", e);
+            } catch (ClosedSelectorException e) {
+                // Transport closed
+            } finally {
+                closed = true;
+                for (SelectionKey key : selector.keys()) {
+                    ((Stream) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Nothing left to clean up
+                }
+                runTasks();
+            }
+        }
+
+        void close() {
+            closed = true;
+            selector.wakeup();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.hadoop.fs.StorageStatistics;
+
+/**
+ * Pushdown counters of all ndphdfs file systems in the JVM, registered
+ * with the global storage statistics under {@link #NAME}.
+ *
+ * Times are totals in milliseconds. Divide them by the matching count,
+ * e.g. redirect time by redirects, to get an average.
+ */
+public class NdpStorageStatistics extends StorageStatistics {
+    public static final String NAME = "NdpStorageStatistics";
+
+    public enum Statistic {
+        // Pushdown results opened on a datanode, including retries and hedges
+        PUSHDOWN_REQUESTS("ndpPushdownRequests"),
+        // Input the datanodes scanned, as far as they report it
+        BYTES_SCANNED("ndpBytesScanned"),
+        // Pushdown result bytes delivered to readers
+        BYTES_RECEIVED("ndpBytesReceived"),
+        // Gateway requests resolving a datanode
+        REDIRECTS("ndpRedirects"),
+        REDIRECT_TIME("ndpRedirectTimeMs"),
+        // From the first read of a pushdown stream to its first data
+        FIRST_BYTE_TIME("ndpFirstByteTimeMs"),
+        // Readers waiting on pushdown results once they started arriving
+        STALL_TIME("ndpStallTimeMs"),
+        RETRIES("ndpRetries"),
+        HEDGED_REQUESTS("ndpHedgedRequests"),
+        HEDGE_WINS("ndpHedgeWins"),
+        // Pushdown opens waiting for a slot on a saturated storage node
+        ADMISSION_WAIT_TIME("ndpAdmissionWaitTimeMs"),
+        // Pushdowns closed early and cancelled on the datanode
+        CANCELLED_REQUESTS("ndpCancelledRequests"),
+        // Current bytes of the buffer pool, kept across resets
+        BUFFER_POOL_LEASED_BYTES("ndpBufferPoolLeasedBytes", true),
+        BUFFER_POOL_IDLE_BYTES("ndpBufferPoolIdleBytes", true),
+        BUFFER_POOL_ALLOCATIONS("ndpBufferPoolAllocations"),
+        // Leases waiting for a return with the pool at its cap, and leases
+        // that failed as none came back in time
+        BUFFER_POOL_WAIT_TIME("ndpBufferPoolWaitTimeMs"),
+        BUFFER_POOL_TIMEOUTS("ndpBufferPoolTimeouts");
+
+        private static final Map<String, Statistic> SYMBOL_MAP =
+                new HashMap<String, Statistic>();
+        static {
+            for (Statistic statistic : values()) {
+                SYMBOL_MAP.put(statistic.getSymbol(), statistic);
+            }
+        }
+
+        private final String symbol;
+        private final boolean gauge;
+
+        Statistic(String symbol) {
+            this(symbol, false);
+        }
+
+        Statistic(String symbol, boolean gauge) {
+            this.symbol = symbol;
+            this.gauge = gauge;
+        }
+
+        public String getSymbol() {
+            return symbol;
+        }
+
+        public boolean isGauge() {
+            return gauge;
+        }
+
+        public static Statistic fromSymbol(String symbol) {
+            return SYMBOL_MAP.get(symbol);
+        }
+    }
+
+    private final Map<Statistic, AtomicLong> counters =
+            new EnumMap<Statistic, AtomicLong>(Statistic.class);
+
+    public NdpStorageStatistics() {
+        super(NAME);
+        for (Statistic statistic : Statistic.values()) {
+            counters.put(statistic, new AtomicLong(0));
+        }
+    }
+
+    public void increment(Statistic statistic, long value) {
+        counters.get(statistic).addAndGet(value);
+    }
+
+    void set(Statistic statistic, long value) {
+        counters.get(statistic).set(value);
+    }
+
+    public long get(Statistic statistic) {
+        return counters.get(statistic).get();
+    }
+
+    @Override
+    public String getScheme() {
+        return NdpHdfsFileSystem.NdpHDFS_SCHEME;
+    }
+
+    @Override
+    public Iterator<LongStatistic> getLongStatistics() {
+        return new Iterator<LongStatistic>() {
+            private final Iterator<Map.Entry<Statistic, AtomicLong>> it =
+                    counters.entrySet().iterator();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public LongStatistic next() {
+                if (!it.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<Statistic, AtomicLong> entry = it.next();
+                return new LongStatistic(entry.getKey().getSymbol(), entry.getValue().get());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Long getLong(String key) {
+        Statistic statistic = Statistic.fromSymbol(key);
+        return statistic == null ? null : Long.valueOf(get(statistic));
+    }
+
+    @Override
+    public boolean isTracked(String key) {
+        return Statistic.fromSymbol(key) != null;
+    }
+
+    @Override
+    public void reset() {
+        for (Map.Entry<Statistic, AtomicLong> entry : counters.entrySet()) {
+            if (!entry.getKey().isGauge()) {
+                entry.getValue().set(0);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Statistic, AtomicLong> entry : counters.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey().getSymbol()).append('=').append(entry.getValue().get());
+        }
+        return sb.toString();
+    }
+}
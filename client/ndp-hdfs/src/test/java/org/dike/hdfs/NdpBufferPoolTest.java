@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.dike.hdfs.NdpStorageStatistics.Statistic;
+import org.junit.Test;
+
+public class NdpBufferPoolTest {
+    private static final int SIZE = 64 << 10;
+
+    private final NdpStorageStatistics statistics = new NdpStorageStatistics();
+
+    private NdpBufferPool pool(boolean direct, long maxBytes, long maxWait) {
+        return new NdpBufferPool(direct, maxBytes, maxWait, statistics);
+    }
+
+    @Test
+    public void testSizeClasses() {
+        assertEquals(4 << 10, NdpBufferPool.sizeClass(1));
+        assertEquals(SIZE, NdpBufferPool.sizeClass(SIZE));
+        assertEquals(2 * SIZE, NdpBufferPool.sizeClass(SIZE + 1));
+    }
+
+    @Test
+    public void testReleasedBuffersAreReused() throws IOException {
+        NdpBufferPool pool = pool(false, 4 * SIZE, 0);
+        byte[] array = pool.leaseArray(SIZE - 10);
+        assertEquals(SIZE, array.length);
+        assertEquals(SIZE, pool.getLeasedBytes());
+        pool.release(array);
+        assertEquals(0, pool.getLeasedBytes());
+        assertEquals(SIZE, pool.getIdleBytes());
+        assertSame(array, pool.leaseArray(SIZE));
+        assertEquals(1, statistics.get(Statistic.BUFFER_POOL_ALLOCATIONS));
+        assertEquals(SIZE, statistics.get(Statistic.BUFFER_POOL_LEASED_BYTES));
+    }
+
+    @Test
+    public void testIdleBuffersAreEvictedForOtherClasses() throws IOException {
+        NdpBufferPool pool = pool(false, 2 * SIZE, 0);
+        pool.release(pool.leaseArray(SIZE));
+        pool.release(pool.leaseArray(SIZE / 2));
+        byte[] large = pool.leaseArray(2 * SIZE);
+        assertEquals(2 * SIZE, large.length);
+        assertEquals(0, pool.getIdleBytes());
+        assertEquals(2 * SIZE, pool.getLeasedBytes());
+    }
+
+    @Test
+    public void testLeasesFailAtTheCap() throws IOException {
+        NdpBufferPool pool = pool(false, 2 * SIZE, 50);
+        pool.leaseArray(SIZE);
+        pool.leaseArray(SIZE);
+        try {
+            pool.leaseArray(SIZE);
+            fail("Lease went over the cap");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("cap"));
+        }
+        assertEquals(2 * SIZE, pool.getLeasedBytes());
+        assertEquals(1, statistics.get(Statistic.BUFFER_POOL_TIMEOUTS));
+    }
+
+    @Test
+    public void testLeasesWaitForReturns() throws Exception {
+        final NdpBufferPool pool = pool(false, SIZE, 10000);
+        final byte[] leased = pool.leaseArray(SIZE);
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                pool.release(leased);
+            }
+        };
+        releaser.start();
+        assertSame(leased, pool.leaseArray(SIZE));
+        releaser.join();
+        assertTrue(statistics.get(Statistic.BUFFER_POOL_WAIT_TIME) > 0);
+        assertEquals(0, statistics.get(Statistic.BUFFER_POOL_TIMEOUTS));
+    }
+
+    @Test
+    public void testDirectSocketBuffers() throws IOException {
+        NdpBufferPool pool = pool(true, 4 * SIZE, 0);
+        assertTrue(pool.isDirect());
+        ByteBuffer buffer = pool.leaseBuffer(SIZE);
+        assertTrue(buffer.isDirect());
+        assertEquals(SIZE, buffer.capacity());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        ByteBuffer again = pool.leaseBuffer(SIZE);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+
+        assertFalse(pool(false, 4 * SIZE, 0).leaseBuffer(SIZE).isDirect());
+    }
+
+    @Test
+    public void testBufferedStreamReturnsItsBufferAtTheEnd() throws IOException {
+        NdpBufferPool pool = pool(false, 4 * SIZE, 0);
+        byte[] data = new byte[3 * SIZE / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        NdpBufferPool.BufferedStream in = new NdpBufferPool.BufferedStream(pool,
+                new ByteArrayInputStream(data), SIZE);
+        assertEquals(SIZE, pool.getLeasedBytes());
+        byte[] read = new byte[data.length];
+        int total = 0;
+        int n;
+        while ((n = in.read(read, total, Math.min(1000, read.length - total))) > 0) {
+            total += n;
+        }
+        assertEquals(data.length, total);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], read[i]);
+        }
+        assertEquals(-1, in.read());
+        assertEquals(0, pool.getLeasedBytes());
+        assertEquals(SIZE, pool.getIdleBytes());
+        in.close();
+    }
+}
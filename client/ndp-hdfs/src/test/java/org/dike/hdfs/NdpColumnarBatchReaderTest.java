@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.github.luben.zstd.Zstd;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class NdpColumnarBatchReaderTest {
+    private static final int[] TYPES = {
+        NdpColumnVector.TYPE_INT64,
+        NdpColumnVector.TYPE_DOUBLE,
+        NdpColumnVector.TYPE_BYTE_ARRAY
+    };
+
+    // Lambda result of the given batch sizes, chunks ZSTD compressed if asked
+    private static class LambdaResult {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final boolean compress;
+
+        LambdaResult(int[] types, boolean compress) throws IOException {
+            this.compress = compress;
+            out.writeLong(types.length);
+            for (int type : types) {
+                out.writeLong(type);
+            }
+        }
+
+        void chunk(int type, int typeSize, byte[] data) throws IOException {
+            out.writeInt(type);
+            out.writeInt(typeSize);
+            out.writeInt(data.length);
+            if (compress) {
+                byte[] compressed = Zstd.compress(data);
+                out.writeInt(compressed.length);
+                out.write(compressed);
+            } else {
+                out.writeInt(0);
+                out.write(data);
+            }
+        }
+
+        void batch(int first, int rows) throws IOException {
+            ByteBuffer longs = ByteBuffer.allocate(rows << 3);
+            ByteBuffer doubles = ByteBuffer.allocate(rows << 3);
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] lengths = new byte[rows];
+            for (int i = 0; i < rows; i++) {
+                longs.putLong(longValue(first + i));
+                doubles.putDouble(doubleValue(first + i));
+                byte[] value = stringValue(first + i).getBytes(StandardCharsets.UTF_8);
+                lengths[i] = (byte) value.length;
+                text.write(value);
+            }
+            chunk(NdpColumnVector.TYPE_INT64, 8, longs.array());
+            chunk(NdpColumnVector.TYPE_DOUBLE, 8, doubles.array());
+            chunk(NdpColumnVector.TYPE_BYTE_ARRAY, 0, lengths);
+            chunk(NdpColumnVector.TYPE_BYTE_ARRAY, 0, text.toByteArray());
+        }
+
+        NdpColumnarBatchReader reader() throws IOException {
+            out.flush();
+            return new NdpColumnarBatchReader(new ByteArrayInputStream(bytes.toByteArray()));
+        }
+    }
+
+    private static long longValue(int row) {
+        return row * 1000003L - 7;
+    }
+
+    private static double doubleValue(int row) {
+        return row / 4.0;
+    }
+
+    private static String stringValue(int row) {
+        StringBuilder value = new StringBuilder("row").append(row);
+        for (int i = 0; i < row % 5; i++) {
+            value.append('-');
+        }
+        return value.toString();
+    }
+
+    private static void check(NdpColumnarBatch batch, int first, int rows) {
+        assertEquals(rows, batch.getRowCount());
+        assertEquals(3, batch.getColumnCount());
+        for (int i = 0; i < rows; i++) {
+            assertEquals(longValue(first + i), batch.getColumn(0).getLong(i));
+            assertEquals(doubleValue(first + i), batch.getColumn(1).getDouble(i), 0);
+            assertEquals(stringValue(first + i), batch.getColumn(2).getString(i));
+        }
+    }
+
+    private static void readBack(boolean compress, boolean direct, boolean reuse) throws IOException {
+        LambdaResult result = new LambdaResult(TYPES, compress);
+        result.batch(0, 1000);
+        result.batch(1000, 10);
+        result.batch(1010, 500);
+        NdpColumnarBatchReader reader = result.reader();
+        reader.setDirect(direct);
+        reader.setReuse(reuse);
+        assertArrayEquals(TYPES, reader.getTypes());
+
+        NdpColumnarBatch first = reader.next();
+        check(first, 0, 1000);
+        assertEquals(direct, first.getColumn(2).getData().isDirect());
+        if (direct) {
+            assertNull(first.getColumn(2).getBytes());
+        }
+        NdpColumnarBatch second = reader.next();
+        check(second, 1000, 10);
+        NdpColumnarBatch third = reader.next();
+        check(third, 1010, 500);
+        if (reuse) {
+            assertSame(first, second);
+            assertSame(second, third);
+        } else {
+            assertNotSame(first, second);
+            // Batches that are not reused keep their values
+            check(first, 0, 1000);
+            check(second, 1000, 10);
+        }
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testUncompressedResults() throws IOException {
+        readBack(false, false, false);
+        readBack(false, true, false);
+    }
+
+    @Test
+    public void testCompressedResults() throws IOException {
+        readBack(true, false, false);
+        readBack(true, true, false);
+    }
+
+    @Test
+    public void testReusedBatches() throws IOException {
+        readBack(false, false, true);
+        readBack(true, false, true);
+        readBack(false, true, true);
+        readBack(true, true, true);
+    }
+
+    @Test
+    public void testFixedLengthBatchesOfByteArrayColumns() throws IOException {
+        LambdaResult result = new LambdaResult(new int[] {NdpColumnVector.TYPE_BYTE_ARRAY}, true);
+        result.chunk(NdpColumnVector.TYPE_FIXED_LEN_BYTE_ARRAY, 3,
+                "abcdefghi".getBytes(StandardCharsets.UTF_8));
+        NdpColumnarBatchReader reader = result.reader();
+        reader.setDirect(true);
+        NdpColumnarBatch batch = reader.next();
+        assertEquals(3, batch.getRowCount());
+        assertEquals(NdpColumnVector.TYPE_FIXED_LEN_BYTE_ARRAY, batch.getColumn(0).getType());
+        assertEquals("def", batch.getColumn(0).getString(1));
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testDikeSqlResults() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(2);
+        out.writeLong(1); // INT64
+        out.writeLong(3); // BYTE_ARRAY
+        out.writeLong(16);
+        out.writeLong(5);
+        out.writeLong(-6);
+        out.writeLong(2);
+        out.write(new byte[] {2, 1});
+        out.writeLong(3);
+        out.write("abc".getBytes(StandardCharsets.UTF_8));
+        NdpColumnarBatchReader reader = new NdpColumnarBatchReader(
+                new ByteArrayInputStream(bytes.toByteArray()), NdpColumnarBatchReader.Format.DIKE_SQL);
+        NdpColumnarBatch batch = reader.next();
+        assertEquals(2, batch.getRowCount());
+        assertEquals(NdpColumnVector.TYPE_INT64, batch.getColumn(0).getType());
+        assertEquals(-6, batch.getColumn(0).getLong(1));
+        assertEquals("ab", batch.getColumn(1).getString(0));
+        assertEquals("c", batch.getColumn(1).getString(1));
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void testTruncatedResultsFail() throws IOException {
+        LambdaResult result = new LambdaResult(TYPES, true);
+        result.batch(0, 100);
+        result.chunk(NdpColumnVector.TYPE_INT64, 8, new byte[8]);
+        NdpColumnarBatchReader reader = result.reader();
+        check(reader.next(), 0, 100);
+        try {
+            reader.next();
+            fail("Batch without all its columns was read");
+        } catch (EOFException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("within a batch"));
+        }
+    }
+}
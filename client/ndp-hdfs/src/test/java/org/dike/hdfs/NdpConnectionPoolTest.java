@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NdpConnectionPoolTest {
+    private static final int LENGTH = 300 << 10;
+
+    private ServerSocket server;
+    private NdpConnectionPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        pool = new NdpConnectionPool(2, 60000, 1 << 20, null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pool.close();
+        server.close();
+    }
+
+    private static byte data(int i) {
+        return (byte) (i * 31 + 7);
+    }
+
+    private NdpConnectionPool.PooledSocket connect() throws IOException {
+        return pool.lease(server.getInetAddress().getHostAddress(), server.getLocalPort(), 5000);
+    }
+
+    @Test
+    public void testDirectReadsGoStraightFromTheChannel() throws IOException {
+        NdpConnectionPool.PooledSocket socket = connect();
+        Socket peer = server.accept();
+        try {
+            byte[] sent = new byte[LENGTH];
+            for (int i = 0; i < LENGTH; i++) {
+                sent[i] = data(i);
+            }
+            OutputStream out = peer.getOutputStream();
+            out.write(sent);
+            out.flush();
+
+            ByteBuffer dst = ByteBuffer.allocateDirect(LENGTH + 100);
+            while (dst.position() < LENGTH) {
+                assertTrue(socket.in.read(dst, LENGTH - dst.position()) > 0);
+            }
+            assertEquals(LENGTH, dst.position());
+            for (int i = 0; i < LENGTH; i++) {
+                assertEquals(data(i), dst.get(i));
+            }
+
+            // The channel blocks again for the socket stream
+            out.write(42);
+            out.flush();
+            assertEquals(42, socket.in.read());
+        } finally {
+            peer.close();
+            pool.discard(socket);
+        }
+    }
+
+    @Test
+    public void testDirectSocketBuffersFillFromTheChannel() throws IOException {
+        pool.close();
+        pool = new NdpConnectionPool(2, 60000, 1 << 20,
+                new NdpBufferPool(true, 1 << 20, 0, new NdpStorageStatistics()));
+        NdpConnectionPool.PooledSocket socket = connect();
+        Socket peer = server.accept();
+        try {
+            socket.channel.socket().setSoTimeout(100);
+            OutputStream out = peer.getOutputStream();
+            byte[] sent = new byte[LENGTH];
+            for (int i = 0; i < LENGTH; i++) {
+                sent[i] = data(i);
+            }
+            out.write(sent);
+            out.flush();
+
+            byte[] b = new byte[1000];
+            int total = 0;
+            while (total < LENGTH) {
+                int n = socket.in.read(b, 0, Math.min(b.length, LENGTH - total));
+                assertTrue(n > 0);
+                for (int i = 0; i < n; i++) {
+                    assertEquals(data(total + i), b[i]);
+                }
+                total += n;
+            }
+            try {
+                socket.in.read();
+                fail("Read did not time out");
+            } catch (SocketTimeoutException e) {
+                // Expected, the peer sends nothing more
+            }
+        } finally {
+            peer.close();
+            pool.discard(socket);
+        }
+    }
+
+    @Test
+    public void testDirectReadsTimeOut() throws IOException {
+        NdpConnectionPool.PooledSocket socket = connect();
+        Socket peer = server.accept();
+        try {
+            socket.channel.socket().setSoTimeout(100);
+            try {
+                socket.in.read(ByteBuffer.allocateDirect(LENGTH), LENGTH);
+                fail("Read did not time out");
+            } catch (SocketTimeoutException e) {
+                // Expected, the peer sends nothing
+            }
+            peer.getOutputStream().write(7);
+            assertEquals(7, socket.in.read());
+        } finally {
+            peer.close();
+            pool.discard(socket);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NdpPooledConnectionTest {
+    private static final String BODY = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    private ServerSocket server;
+    private NdpConnectionPool pool;
+    private final BlockingQueue<Response> responses = new LinkedBlockingQueue<Response>();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private Thread acceptor;
+
+    // Response the server sends for the next request, and whether it then closes
+    private static class Response {
+        final byte[] bytes;
+        final boolean close;
+
+        Response(String text, boolean close) {
+            this.bytes = text.getBytes(StandardCharsets.UTF_8);
+            this.close = close;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+        pool = new NdpConnectionPool(2, 60000, 1 << 20, null);
+        acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket peer = server.accept();
+                        accepted.incrementAndGet();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                serve(peer);
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                    // Server closed
+                }
+            }
+        };
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.close();
+        acceptor.join();
+    }
+
+    private void serve(Socket peer) {
+        try {
+            InputStream in = peer.getInputStream();
+            OutputStream out = peer.getOutputStream();
+            while (readRequestHead(in)) {
+                Response response = responses.poll(10, TimeUnit.SECONDS);
+                if (response == null) {
+                    break;
+                }
+                out.write(response.bytes);
+                out.flush();
+                if (response.close) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            // Client went away
+        } finally {
+            try {
+                peer.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static boolean readRequestHead(InputStream in) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == (matched % 2 == 0 ? '\r' : '\n')) {
+                if (++matched == 4) {
+                    return true;
+                }
+            } else {
+                matched = c == '\r' ? 1 : 0;
+            }
+        }
+        return false;
+    }
+
+    private NdpPooledConnection open() throws IOException {
+        URL url = new URL("http://" + server.getInetAddress().getHostAddress() + ":"
+                + server.getLocalPort() + "/webhdfs/v1/test?op=OPEN");
+        NdpPooledConnection connection = new NdpPooledConnection(url, pool);
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+        return connection;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Small reads so bodies end in the middle of a read as well
+        byte[] b = new byte[7];
+        int n;
+        while ((n = in.read(b, 0, b.length)) != -1) {
+            out.write(b, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String lengthResponse(String body) {
+        return "HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    @Test
+    public void testContentLengthBodyKeepsTheConnection() throws IOException {
+        responses.add(new Response(lengthResponse(BODY), false));
+        responses.add(new Response(lengthResponse("next"), false));
+        NdpPooledConnection connection = open();
+        assertEquals(200, connection.getResponseCode());
+        InputStream in = connection.getInputStream();
+        assertEquals(BODY, readAll(in));
+        in.close();
+
+        // The second request goes out on the pooled socket
+        connection = open();
+        in = connection.getInputStream();
+        assertEquals("next", readAll(in));
+        in.close();
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void testChunkedBodyKeepsTheConnection() throws IOException {
+        responses.add(new Response("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "a;name=value\r\n" + BODY.substring(0, 10) + "\r\n"
+                + Integer.toHexString(BODY.length() - 10) + "\r\n" + BODY.substring(10) + "\r\n"
+                + "0\r\nTrailer: value\r\n\r\n", false));
+        responses.add(new Response(lengthResponse("next"), false));
+        NdpPooledConnection connection = open();
+        InputStream in = connection.getInputStream();
+        assertEquals(BODY, readAll(in));
+        in.close();
+
+        connection = open();
+        in = connection.getInputStream();
+        assertEquals("next", readAll(in));
+        in.close();
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void testCloseDelimitedBodyEndsWithTheConnection() throws IOException {
+        responses.add(new Response("HTTP/1.1 200 OK\r\n\r\n" + BODY, true));
+        responses.add(new Response(lengthResponse("next"), false));
+        NdpPooledConnection connection = open();
+        InputStream in = connection.getInputStream();
+        assertEquals(BODY, readAll(in));
+        in.close();
+
+        // The socket was not pooled, the next request connects again
+        connection = open();
+        in = connection.getInputStream();
+        assertEquals("next", readAll(in));
+        in.close();
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void testConnectionCloseHeaderIsHonoured() throws IOException {
+        responses.add(new Response("HTTP/1.1 200 OK\r\nConnection: close\r\n"
+                + "Content-Length: " + BODY.length() + "\r\n\r\n" + BODY, true));
+        responses.add(new Response(lengthResponse("next"), false));
+        NdpPooledConnection connection = open();
+        InputStream in = connection.getInputStream();
+        assertEquals(BODY, readAll(in));
+        in.close();
+
+        connection = open();
+        in = connection.getInputStream();
+        assertEquals("next", readAll(in));
+        in.close();
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void testShortContentLengthBodyFails() throws IOException {
+        responses.add(new Response("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n" + BODY, true));
+        NdpPooledConnection connection = open();
+        InputStream in = connection.getInputStream();
+        try {
+            readAll(in);
+            fail("Truncated body was read as complete");
+        } catch (EOFException e) {
+            // Expected, the server closed with bytes outstanding
+        }
+        connection.abort();
+    }
+
+    @Test
+    public void testDisconnectDrainsTheRestOfTheBody() throws IOException {
+        responses.add(new Response(lengthResponse(BODY), false));
+        responses.add(new Response(lengthResponse("next"), false));
+        NdpPooledConnection connection = open();
+        InputStream in = connection.getInputStream();
+        byte[] b = new byte[5];
+        assertEquals(5, in.read(b, 0, b.length));
+        connection.disconnect();
+
+        connection = open();
+        in = connection.getInputStream();
+        assertEquals("next", readAll(in));
+        in.close();
+        assertEquals(1, accepted.get());
+    }
+}
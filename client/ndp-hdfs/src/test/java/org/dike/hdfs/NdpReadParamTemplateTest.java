@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+public class NdpReadParamTemplateTest {
+    private static final String FILE = NdpReadParamTemplate.placeholder("File");
+
+    private static String text(String readParam, String element) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new InputSource(new StringReader(readParam)));
+        return document.getElementsByTagName(element).item(0).getTextContent();
+    }
+
+    @Test
+    public void testElementSlots() throws Exception {
+        NdpReadParamTemplate template = NdpReadParamTemplate.compile(
+                "<Processor><Name>dikeSQL</Name><Configuration>"
+                + "<BlockSize>0</BlockSize><RowGroupIndex>0</RowGroupIndex>"
+                + "</Configuration></Processor>", "RowGroupIndex", "BlockSize");
+        assertEquals(Arrays.asList("BlockSize", "RowGroupIndex"), template.getNames());
+        String readParam = template.bind("BlockSize", 1 << 20, "RowGroupIndex", 7);
+        assertEquals("1048576", text(readParam, "BlockSize"));
+        assertEquals("7", text(readParam, "RowGroupIndex"));
+    }
+
+    @Test
+    public void testValuesAreEscapedForXml() throws Exception {
+        NdpReadParamTemplate template = NdpReadParamTemplate.compile(
+                "<Processor><Query>" + FILE + "</Query></Processor>");
+        String readParam = template.bind("File", "a < b && c > d");
+        assertEquals("<Processor><Query>a &lt; b &amp;&amp; c &gt; d</Query></Processor>",
+                readParam);
+        assertEquals("a < b && c > d", text(readParam, "Query"));
+    }
+
+    @Test
+    public void testJsonStringsInXmlText() throws Exception {
+        NdpReadParamTemplate template = NdpReadParamTemplate.compile(
+                "<Processor><DAG>{\"File\":\"" + FILE + "\"}</DAG></Processor>");
+        String readParam = template.bind("File", "/a \"b\"<c>.parquet");
+        assertEquals("{\"File\":\"/a \\\"b\\\"<c>.parquet\"}", text(readParam, "DAG"));
+    }
+
+    @Test
+    public void testJsonStringsInCData() throws Exception {
+        NdpReadParamTemplate template = NdpReadParamTemplate.compile(
+                "<Processor><DAG><![CDATA[{\"File\":\"" + FILE + "\"}]]></DAG>"
+                + "<Query>" + FILE + "</Query></Processor>");
+        String readParam = template.bind("File", "/x<y&z\".parquet");
+        assertEquals("{\"File\":\"/x<y&z\\\".parquet\"}", text(readParam, "DAG"));
+        assertEquals("/x<y&z\".parquet", text(readParam, "Query"));
+        assertEquals(-1, readParam.indexOf("&lt;y&amp;z\\\""));
+    }
+
+    @Test
+    public void testCDataEndMarkerInValue() throws Exception {
+        NdpReadParamTemplate template = NdpReadParamTemplate.compile(
+                "<Processor><Query><![CDATA[SELECT '" + FILE + "']]></Query></Processor>");
+        String readParam = template.bind("File", "a]]>b");
+        assertEquals("SELECT 'a]]>b'", text(readParam, "Query"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingValue() {
+        NdpReadParamTemplate.compile("<Processor>" + FILE + "</Processor>").bind("Other", 1);
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.dike.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import org.apache.hadoop.fs.BlockLocation;
+import org.junit.Test;
+
+public class NdpRedirectCacheTest {
+    private static final String PATH = "ndphdfs://gateway:9860/data/lineitem.parquet";
+    private static final String SQL = "<Processor><Name>dikeSQL</Name><Query>SELECT 1</Query></Processor>";
+
+    private static URL datanode(String authority) throws Exception {
+        return new URL("http://" + authority + "/webhdfs/v1/data/lineitem.parquet?op=OPEN");
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        NdpRedirectCache cache = new NdpRedirectCache(4, 60000);
+        String key = cache.keyOf(PATH, 0, SQL);
+        assertNull(cache.get(key));
+        cache.put(key, datanode("dn1:9860"));
+        assertEquals(datanode("dn1:9860"), cache.get(key));
+        assertEquals(datanode("dn1:9860"), cache.get(key));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testPutOnceServesOneOpen() throws Exception {
+        NdpRedirectCache cache = new NdpRedirectCache(4, 60000);
+        String key = cache.keyOf(PATH, 0, SQL);
+        cache.putOnce(key, datanode("dn1:9860"));
+        assertTrue(cache.contains(key));
+        assertEquals(datanode("dn1:9860"), cache.get(key));
+        assertFalse(cache.contains(key));
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        NdpRedirectCache cache = new NdpRedirectCache(4, 20);
+        String key = cache.keyOf(PATH, 0, SQL);
+        cache.put(key, datanode("dn1:9860"));
+        Thread.sleep(50);
+        assertFalse(cache.contains(key));
+        assertNull(cache.get(key));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        NdpRedirectCache cache = new NdpRedirectCache(2, 60000);
+        String first = cache.keyOf(PATH, 0, SQL);
+        String second = cache.keyOf(PATH, 1000, SQL);
+        String third = cache.keyOf(PATH, 2000, SQL);
+        cache.put(first, datanode("dn1:9860"));
+        cache.put(second, datanode("dn2:9860"));
+        cache.get(first);
+        cache.put(third, datanode("dn3:9860"));
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(first));
+        assertFalse(cache.contains(second));
+        assertTrue(cache.contains(third));
+    }
+
+    @Test
+    public void testInvalidateDatanode() throws Exception {
+        NdpRedirectCache cache = new NdpRedirectCache(4, 60000);
+        String first = cache.keyOf(PATH, 0, SQL);
+        String second = cache.keyOf(PATH, 1000, SQL);
+        cache.put(first, datanode("dn1:9860"));
+        cache.put(second, datanode("dn2:9860"));
+        cache.invalidate("dn1:9860");
+        assertFalse(cache.contains(first));
+        assertTrue(cache.contains(second));
+    }
+
+    @Test
+    public void testKeyedByBlockAndProcessor() throws Exception {
+        NdpRedirectCache cache = new NdpRedirectCache(4, 60000);
+        cache.putBlocks(PATH, new BlockLocation[] {
+                new BlockLocation(new String[] {"dn2:9866"}, new String[] {"dn2"}, 1000, 1000),
+                new BlockLocation(new String[] {"dn1:9866"}, new String[] {"dn1"}, 0, 1000)});
+        String tpch = "<Processor><Name>TpchQ1</Name></Processor>";
+        assertEquals(cache.keyOf(PATH, 10, SQL),
+                cache.keyOf(PATH, 900, "<Processor><Name>dikeSQL</Name><Query>SELECT 2</Query></Processor>"));
+        assertEquals(NdpRedirectCache.key(PATH, 1000, "dikeSQL"), cache.keyOf(PATH, 1500, SQL));
+        assertFalse(cache.keyOf(PATH, 10, SQL).equals(cache.keyOf(PATH, 10, tpch)));
+        // Past the known blocks the offset stands for itself
+        assertEquals(NdpRedirectCache.key(PATH, 2500, "dikeSQL"), cache.keyOf(PATH, 2500, SQL));
+        assertEquals(NdpRedirectCache.key(PATH + ".1", 10, "dikeSQL"),
+                cache.keyOf(PATH + ".1", 10, SQL));
+    }
+}
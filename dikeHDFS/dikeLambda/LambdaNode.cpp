@@ -104,6 +104,63 @@ InputNode::InputNode(Poco::JSON::Object::Ptr pObject, DikeProcessorConfig & dike
     columnTypes = new Column::DataType[columnCount];    
 }
 
+int64_t InputNode::RowGroupBytes(DikeProcessorConfig & dikeProcessorConfig, const std::vector<int> & rowGroups)
+{
+    try {
+        std::stringstream ss;
+        ss.str(dikeProcessorConfig["Request"]);
+        Poco::Net::HTTPRequest hdfs_req;
+        hdfs_req.read(ss);
+
+        Poco::URI uri = Poco::URI(hdfs_req.getURI());
+        Poco::URI::QueryParameters uriParams = uri.getQueryParameters();
+        std::string rpcAddress;
+        for(int i = 0; i < uriParams.size(); i++){
+            if(uriParams[i].first.compare("namenoderpcaddress") == 0){
+                rpcAddress = uriParams[i].second;
+            }
+        }
+        std::string path = uri.getPath();
+        std::string fileName = path.substr(11, path.length()); // skip "/webhdfs/v1"
+        std::string fullPath = "hdfs://" + rpcAddress + fileName;
+
+        // Same cache as the constructor, the input node reuses the footer read here
+        std::shared_ptr<parquet::FileMetaData> fileMetaData;
+        inputFileMutex.lock();
+        if (fileMetaDataMap.count(fileName) &&
+            0 == fileLastAccessTimeMap[fileName].compare(dikeProcessorConfig["Configuration.LastAccessTime"])) {
+            fileMetaData = fileMetaDataMap[fileName];
+        } else {
+            try {
+                std::shared_ptr<ReadableFile> inputFile = std::shared_ptr<ReadableFile>(new ReadableFile(fullPath));
+                fileMetaData = parquet::ReadMetaData(inputFile);
+                inputFileMap[fileName] = inputFile;
+                fileMetaDataMap[fileName] = fileMetaData;
+                fileLastAccessTimeMap[fileName] = dikeProcessorConfig["Configuration.LastAccessTime"];
+            } catch (...) {
+                inputFileMutex.unlock();
+                throw;
+            }
+        }
+        inputFileMutex.unlock();
+
+        int64_t bytes = 0;
+        for(int rg : rowGroups) {
+            if(rg < 0 || rg >= fileMetaData->num_row_groups()) {
+                continue;
+            }
+            std::unique_ptr<parquet::RowGroupMetaData> rowGroup = fileMetaData->RowGroup(rg);
+            for(int c = 0; c < rowGroup->num_columns(); c++) {
+                bytes += rowGroup->ColumnChunk(c)->total_compressed_size();
+            }
+        }
+        return bytes;
+    } catch (std::exception & e) {
+        std::cout << "RowGroupBytes : " << e.what() << std::endl;
+    }
+    return 0;
+}
+
 void InputNode::Init() 
 {    
     std::chrono::high_resolution_clock::time_point t1;
@@ -170,6 +227,9 @@ bool InputNode::Step()
     stepCount++;
 
     int size = std::min((int)Column::MAX_SIZE, numRows - rowCount);    
+    if(cancelled) {
+        size = 0;
+    }
     Frame * frame = allocFrame();
 
     std::chrono::high_resolution_clock::time_point t1;
@@ -187,7 +247,7 @@ bool InputNode::Step()
     }
 
     rowCount += size;
-    if(rowCount >= numRows){
+    if(rowCount >= numRows || cancelled){
         frame->lastFrame = true;
         done = true;
     }
@@ -295,11 +355,14 @@ bool ProjectionNode::Step()
 void OutputNode::UpdateColumnMap(Frame * frame) 
 {
     // This is our first write, so buffer should have enough space
-    int64_t be_value = htobe64(frame->columns.size());
-    output->write((const char *)&be_value, (uint32_t)sizeof(int64_t));
-    for( int i  = 0; i < frame->columns.size(); i++){
-        be_value = htobe64(frame->columns[i]->data_type);
+    // A resumed stream continues after a batch, the client has the header
+    if(resumeBatch == 0) {
+        int64_t be_value = htobe64(frame->columns.size());
         output->write((const char *)&be_value, (uint32_t)sizeof(int64_t));
+        for( int i  = 0; i < frame->columns.size(); i++){
+            be_value = htobe64(frame->columns[i]->data_type);
+            output->write((const char *)&be_value, (uint32_t)sizeof(int64_t));
+        }
     }
     if(compressionEnabled) {
         ZSTD_Context.resize(frame->columns.size());            
@@ -322,6 +385,16 @@ bool OutputNode::Step()
     //std::cout << "OutputNode::Step " << stepCount << " Rows " << inFrame->columns[0]->row_count << std::endl;
     stepCount++;
     recordsOut += inFrame->columns[0]->row_count;
+
+    // Nothing is sent once the client went away. Empty frames are not
+    // sent, so they do not count as batches
+    if(failed || (inFrame->columns[0]->row_count > 0 && batchCount++ < resumeBatch)) {
+        if(inFrame->lastFrame){
+            done = true;
+        }
+        inFrame->Free();
+        return done;
+    }
     
     std::chrono::high_resolution_clock::time_point t1;
     if(verbose){
@@ -408,11 +481,15 @@ void OutputNode::Send(int id, Column::DataType data_type, int type_size, void *
         //CompressLZ4((uint8_t *)data, len);
         CompressZSTD(id, (uint8_t *)data, len);
         header[3] = htobe32(compressedLen); // COMPRESSED LEN
-        output->write((const char *)header, (uint32_t)(4*sizeof(uint32_t)));
-        output->write((const char *)compressedBuffer, compressedLen);
+        if(output->write((const char *)header, (uint32_t)(4*sizeof(uint32_t))) != 4*sizeof(uint32_t) ||
+           output->write((const char *)compressedBuffer, compressedLen) != compressedLen) {
+            failed = true;
+        }
     } else {        
-        output->write((const char *)header, (uint32_t)(4*sizeof(uint32_t)));
-        output->write((const char *)data, len);
+        if(output->write((const char *)header, (uint32_t)(4*sizeof(uint32_t))) != 4*sizeof(uint32_t) ||
+           output->write((const char *)data, len) != len) {
+            failed = true;
+        }
     }
 }
 
@@ -1,6 +1,7 @@
 #ifndef LAMBDA_NODE_HPP
 #define LAMBDA_NODE_HPP
 
+#include <atomic>
 #include <string>
 #include <queue>
 #include <mutex>
@@ -45,6 +46,7 @@ class Node {
     sem_t framePoolSem;
 
     bool done = false;
+    std::atomic<bool> cancelled{false}; // Input nodes stop reading and send a last frame
     int verbose = 0;
 
     // Statistics
@@ -175,6 +177,9 @@ class InputNode : public Node {
 
     virtual void Init() override;
     virtual bool Step() override;
+
+    // Compressed size of the given row groups of the requested file, 0 if unknown
+    static int64_t RowGroupBytes(DikeProcessorConfig & dikeProcessorConfig, const std::vector<int> & rowGroups);
 };
 
 class ProjectionNode : public Node {
@@ -214,11 +219,16 @@ class OutputNode : public Node {
     std::vector<ZSTD_CCtx *> ZSTD_Context;
     int compressionLevel = 3;
     int dikeNodeType = 0;
+    int64_t resumeBatch = 0; // Batches the client already has
+    int64_t batchCount = 0;
+    std::atomic<bool> failed; // Client went away, nothing more is sent
+
 
     OutputNode(Poco::JSON::Object::Ptr pObject, DikeProcessorConfig & dikeProcessorConfig, DikeIO * output) 
         : Node(pObject, dikeProcessorConfig, output) 
     {        
         this->output = output;
+        failed = false;
 
         if(dikeProcessorConfig.count("dike.node.type") > 0) {            
             dikeNodeType = std::stoi(dikeProcessorConfig["dike.node.type"]);
@@ -240,6 +250,14 @@ class OutputNode : public Node {
             }
         }
 
+
+        if(dikeProcessorConfig.count("ResumeBatch") > 0) {
+            resumeBatch = std::stoll(dikeProcessorConfig["ResumeBatch"]);
+            if(verbose){
+                std::cout << "ResumeBatch " << resumeBatch << std::endl;
+            }
+        }
+
         lenBuffer = new uint8_t [Column::MAX_SIZE];
         dataBuffer = new uint8_t [Column::MAX_TEXT_SIZE]; // Max text lenght        
     }
@@ -265,6 +283,7 @@ class OutputNode : public Node {
     void CompressLZ4(uint8_t * data, uint32_t len);
     void CompressZSTD(int id, uint8_t * data, uint32_t len);
 
+
     void TranslateBE64(void * in_data, uint8_t * out_data, uint32_t len);
     void Send(void * data, uint32_t len, bool is_binary);
     // New format
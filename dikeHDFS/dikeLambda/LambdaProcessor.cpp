@@ -70,6 +70,11 @@ int LambdaProcessor::Run(DikeProcessorConfig & dikeProcessorConfig, DikeIO * out
     bool done = false;
     while(!done)     
     {
+        // The input node ends the stream early, the other nodes then
+        // drain and finish as usual
+        if(isCancelled() || outputNode->failed) {
+            nodeVector[0]->cancelled = true;
+        }
         for(int i = 0; i < nodeVector.size() - 1 ; i++) {
             done = nodeVector[i]->Step();
         }        
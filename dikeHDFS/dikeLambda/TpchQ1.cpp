@@ -172,7 +172,7 @@ int TpchQ1::Run(DikeProcessorConfig & dikeProcessorConfig, DikeIO * output)
         lambdaBinaryColumnWriter->buffer->write(&be_value, sizeof(int64_t));
     }
 
-    while (isRunning  && lambdaParquetReader->readFully()) {
+    while (isRunning && !isCancelled() && lambdaBinaryColumnWriter->isRunning && lambdaParquetReader->readFully()) {
         int out_rows = 0;
         memset(res, 0, LambdaColumnReader::BATCH_SIZE);
         int in_rows = lambdaParquetReader->lambdaColumnReader[filterCol]->values_size;
@@ -78,6 +78,9 @@ int DikeSQL::Run(DikeProcessorConfig & dikeSQLConfig, DikeIO * output)
         return 1;
     }         
     
+    // Interrupt long running statements of a cancelled request
+    sqlite3_progress_handler(db, 10000, DikeSQL::ProgressHandler, this);
+
     isRunning = true;
     workerThread = startWorker();
 
@@ -107,6 +110,11 @@ int DikeSQL::Run(DikeProcessorConfig & dikeSQLConfig, DikeIO * output)
     return(0);
 }
 
+int DikeSQL::ProgressHandler(void * dikeSQL)
+{
+    return ((DikeSQL *)dikeSQL)->isCancelled() ? 1 : 0;
+}
+
 void DikeSQL::Worker()
 {
     int sqlite3_rc;
@@ -116,7 +124,7 @@ void DikeSQL::Worker()
     //std::cout << "DikeSQL::Worker " << std::endl;
 
     try {    
-        while (isRunning && SQLITE_ROW == sqlite3_step(sqlRes) && writer_rc) {
+        while (isRunning && !isCancelled() && SQLITE_ROW == sqlite3_step(sqlRes) && writer_rc) {
             record_counter++;
             writer_rc = dikeWriter->write(sqlRes);            
         }
@@ -17,6 +17,7 @@ class DikeSQL : public DikeProcessor {
 
     virtual int Run(DikeProcessorConfig & dikeSQLConfig, DikeIO * output) override;
     virtual void Worker() override;
+    static int ProgressHandler(void * dikeSQL);
 };
 
 #endif /* DIKE_SQL_HPP */
\ No newline at end of file
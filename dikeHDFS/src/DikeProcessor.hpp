@@ -1,6 +1,8 @@
 #ifndef DIKE_PROCESSOR_HPP
 #define DIKE_PROCESSOR_HPP
 
+#include <atomic>
+#include <functional>
 #include <map>
 #include <thread>
 
@@ -24,6 +26,21 @@ class DikeProcessor {
     std::thread workerThread;    
     uint64_t record_counter = 0;
     bool isRunning;
+    // Set by the request handler when the client cancelled the request or
+    // went away, processors stop at their next batch
+    std::atomic<bool> * cancelled = NULL;
+    // Checked along with cancelled, true once the client connection is gone
+    std::function<bool()> clientClosed;
+
+    bool isCancelled() {
+        if(cancelled == NULL) {
+            return false;
+        }
+        if(!cancelled->load() && clientClosed && clientClosed()) {
+            *cancelled = true;
+        }
+        return cancelled->load();
+    }
 
     std::thread startWorker() {
         return std::thread([this] { this->Worker(); });
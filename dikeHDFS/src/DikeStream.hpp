@@ -13,6 +13,7 @@
 #include "Poco/BinaryWriter.h"
 
 #include <iostream>
+#include <vector>
 
 #include "DikeIO.hpp"
 
@@ -118,7 +119,10 @@ class DikeOut : public DikeIO {
             return n; 
         } 
         if(outStream) {
-            outStream->write(buf, size);
+            // The stream keeps write errors in its state
+            if(!outStream->write(buf, size)) {
+                return -1;
+            }
             return size;
         }
     } catch (...) {
@@ -129,4 +133,68 @@ class DikeOut : public DikeIO {
   }
 };
 
+// Output of one row group in a request for several row groups. Data goes out
+// in frames of big endian row group index and length, an empty frame ends
+// the row group.
+class DikeFramedOut : public DikeIO {
+  public:
+  static const uint32_t FRAME_SIZE = 64 << 10;
+  DikeIO * output = NULL;
+  int32_t rowGroup;
+  std::vector<char> buffer;
+
+  DikeFramedOut(DikeIO * output, int32_t rowGroup) {
+    this->output = output;
+    this->rowGroup = rowGroup;
+    buffer.reserve(FRAME_SIZE);
+  }
+
+  ~DikeFramedOut(){ }
+  virtual int read(char * buf, uint32_t size) {
+    return -1;
+  }
+
+  virtual int write(const char * buf, uint32_t size) {
+    buffer.insert(buffer.end(), buf, buf + size);
+    if(buffer.size() >= FRAME_SIZE && flush() < 0) {
+      return -1;
+    }
+    writeBytes += size;
+    return size;
+  }
+
+  int flush() {
+    int n = 0;
+    if(!buffer.empty()) {
+      n = writeFrame(buffer.data(), buffer.size());
+      buffer.clear();
+    }
+    return n;
+  }
+
+  // Flush and mark the end of the row group
+  int end() {
+    if(flush() < 0) {
+      return -1;
+    }
+    return writeFrame(NULL, 0);
+  }
+
+  private:
+  int writeFrame(const char * data, uint32_t len) {
+    char header[8];
+    for(int i = 0; i < 4; i++) {
+      header[i] = (char)((uint32_t)rowGroup >> (24 - 8 * i));
+      header[4 + i] = (char)(len >> (24 - 8 * i));
+    }
+    if(output->write(header, sizeof(header)) != sizeof(header)) {
+      return -1;
+    }
+    if(len > 0 && output->write(data, len) != (int)len) {
+      return -1;
+    }
+    return len;
+  }
+};
+
 #endif /* DIKE_STREAM_H */
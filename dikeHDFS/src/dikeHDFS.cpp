@@ -21,15 +21,23 @@
 #include <Poco/Util/XMLConfiguration.h>
 
 #include <Poco/AutoPtr.h>
+#include <Poco/SHA2Engine.h>
 
 #include <Poco/StreamCopier.h>
 #include <Poco/URI.h>
+#include <Poco/UUIDGenerator.h>
 
 #include <iostream>
 #include <algorithm>
+#include <chrono>
+#include <functional>
+#include <limits>
+#include <list>
 #include <map>
 #include <mutex>
 #include <sstream>
+#include <thread>
+#include <vector>
 #include <omp.h>
 
 //#include "S3Handlers.hpp"
@@ -41,6 +49,7 @@
 
 #include "dikeLambda/TpchQ1.hpp"
 #include "dikeLambda/LambdaProcessor.hpp"
+#include "dikeLambda/LambdaNode.hpp"
 
 using namespace Poco::Net;
 using namespace Poco::Util;
@@ -69,6 +78,11 @@ class NameNodeHandler : public DikeHTTPRequestHandler {
       cout << DikeUtil().Yellow() << DikeUtil().Now() << " NN Start " << DikeUtil().Reset() << endl;      
     }
 
+    if(req.has("NdpBulkOpen")) {
+        bulkOpen(req, resp);
+        return;
+    }
+
     std::string reqUri = req.getURI();
     //cout << "URI " << uri << endl;
 
@@ -120,25 +134,13 @@ class NameNodeHandler : public DikeHTTPRequestHandler {
     
     if(req.has("ReadParam") && resp.has("Location")) {        
         //cout << DikeUtil().Blue() << resp.get("Location") << DikeUtil().Reset() << endl;      
-        Poco::URI uri = Poco::URI(resp.get("Location"));
-        int ndpPort = std::stoi(dikeConfig["dike.dfs.ndp.http-port"]);
-        string host = req.getHost();
-        host = host.substr(0, host.find(':'));
-        // On a storage node perform NDP if we have compute capacity
-        if(dikeNodeType == STORAGE_NODE && dataNodeReqCount < dikeStorageMaxRequests) {
-            uri.setHost(host); // Client should be redirected back to our address
-            uri.setPort(ndpPort);
-            resp.set("Location", uri.toString());
-        }
-
-        // On a compute node perform NDP if storage is not doing it
-        if(dikeNodeType == COMPUTE_NODE && ndpPort != uri.getPort()) {
-            uri.setHost(host); // Client should be redirected back to our address
-            uri.setPort(ndpPort);
-            resp.set("Location", uri.toString());            
+        bool cacheable = false;
+        resp.set("Location", ndpLocation(req, resp.get("Location"), cacheable));
+        if(cacheable) {
+            resp.set("NdpCacheable", "true");
         }
-      
       //cout << DikeUtil().Blue() << resp.get("Location") << DikeUtil().Reset() << endl;
+        setCapacity(resp);
     }
 
     if(verbose) {
@@ -150,19 +152,273 @@ class NameNodeHandler : public DikeHTTPRequestHandler {
     //Poco::StreamCopier::copyStream(fromHDFS, toClient, 8192);
     toClient.flush();
   }   
+
+  // Free pushdown slots of this storage node, clients hold back new
+  // pushdowns at 0 rather than have them redirected to compute nodes
+  static void setCapacity(Poco::Net::HTTPServerResponse &resp)
+  {
+    if(dikeNodeType == STORAGE_NODE) {
+        resp.set("NdpCapacity", std::to_string(std::max(0, dikeStorageMaxRequests - dataNodeReqCount)));
+    }
+  }
+
+  // Redirect a pushdown request to the node that should perform NDP.
+  // Redirects back to a storage node are cacheable, it holds the block and
+  // turns cached pushdowns down once it is at its request cap. Placements
+  // away from it are made by load and not cacheable, clients have to come
+  // back for every pushdown. Placed counts the pushdowns sent here that
+  // did not arrive yet.
+  std::string ndpLocation(Poco::Net::HTTPServerRequest &req, const std::string & location, bool & cacheable, int placed = 0)
+  {
+    cacheable = false;
+    Poco::URI uri = Poco::URI(location);
+    int ndpPort = std::stoi(dikeConfig["dike.dfs.ndp.http-port"]);
+    string host = req.getHost();
+    host = host.substr(0, host.find(':'));
+    // On a storage node perform NDP if we have compute capacity
+    if(dikeNodeType == STORAGE_NODE && dataNodeReqCount + placed < dikeStorageMaxRequests) {
+        uri.setHost(host); // Client should be redirected back to our address
+        uri.setPort(ndpPort);
+        cacheable = true;
+        return uri.toString();
+    }
+
+    // On a compute node perform NDP if storage is not doing it
+    if(dikeNodeType == COMPUTE_NODE && ndpPort != uri.getPort()) {
+        uri.setHost(host); // Client should be redirected back to our address
+        uri.setPort(ndpPort);
+        cacheable = true;
+        return uri.toString();
+    }
+    return location;
+  }
+
+  // Resolve the pushdown redirects of many streams in one client request.
+  // The body holds a "path offset" line per stream, the response a
+  // Location line per stream in the same order, empty where it failed.
+  // Cacheable locations are followed by " cacheable".
+  // Streams placed on this storage node count against its request cap.
+  void bulkOpen(Poco::Net::HTTPServerRequest &req, Poco::Net::HTTPServerResponse &resp)
+  {
+    // Query parameters shared by all streams, e.g. user.name
+    std::string query;
+    Poco::URI reqUri = Poco::URI(req.getURI());
+    std::istringstream params(reqUri.getRawQuery());
+    std::string param;
+    while(std::getline(params, param, '&')) {
+        if(param.empty() || param.compare(0, 3, "op=") == 0 || param.compare(0, 7, "offset=") == 0) {
+            continue;
+        }
+        query += "&" + param;
+    }
+
+    SocketAddress namenodeSocketAddress = SocketAddress(dikeConfig["dfs.namenode.http-address"]);
+    HTTPClientSession session(namenodeSocketAddress);
+    session.setKeepAlive(true);
+
+    std::istream& fromClient = req.stream();
+    std::ostringstream locations;
+    std::string line;
+    int count = 0;
+    int placed = 0;
+    int ndpPort = std::stoi(dikeConfig["dike.dfs.ndp.http-port"]);
+    while(std::getline(fromClient, line)) {
+        std::string location;
+        size_t sep = line.rfind(' ');
+        if(sep == std::string::npos) {
+            locations << "\n";
+            count++;
+            continue;
+        }
+        HTTPRequest hdfs_req(HTTPRequest::HTTP_GET,
+                             "/webhdfs/v1" + line.substr(0, sep) + "?op=OPEN" + query + "&offset=" + line.substr(sep + 1),
+                             HTTPMessage::HTTP_1_1);
+        hdfs_req.setHost(dikeConfig["dfs.namenode.http-address"]);
+        hdfs_req.setKeepAlive(true);
+        try {
+            session.sendRequest(hdfs_req);
+            HTTPResponse hdfs_resp;
+            std::istream& fromHDFS = session.receiveResponse(hdfs_resp);
+            fromHDFS.ignore(std::numeric_limits<std::streamsize>::max());
+            if(hdfs_resp.has("Location")) {
+                bool cacheable;
+                location = ndpLocation(req, hdfs_resp.get("Location"), cacheable, placed);
+                if(dikeNodeType == STORAGE_NODE && Poco::URI(location).getPort() == ndpPort) {
+                    placed++;
+                }
+                if(cacheable) {
+                    location += " cacheable";
+                }
+            }
+        } catch (Poco::Exception & e) {
+            session.reset();
+        }
+        locations << location << "\n";
+        count++;
+    }
+
+    std::string body = locations.str();
+    resp.setStatus(Poco::Net::HTTPResponse::HTTP_OK);
+    resp.setContentType("text/plain");
+    resp.setContentLength(body.length());
+    resp.set("NdpBulkOpen", std::to_string(count));
+    ostream& toClient = resp.send();
+    toClient << body;
+    toClient.flush();
+  }
 };
 
 class DataNodeHandler : public DikeHTTPRequestHandler {
 public:
+  // ReadParams seen by this datanode, keyed by their SHA-256 digest, so
+  // clients can send the digest alone on later requests
+  static std::mutex readParamLock;
+  static std::map<std::string, std::string> readParamCache;
+  static std::list<std::string> readParamOrder;
+  static const size_t readParamCacheSize = 1024;
+  // Running pushdowns by the request id they were answered with
+  static std::mutex requestLock;
+  static std::map<std::string, std::atomic<bool> *> requestMap;
+
   DataNodeHandler(int verbose, DikeConfig & dikeConfig): DikeHTTPRequestHandler(verbose, dikeConfig){}
 
+  // Running pushdown that can be cancelled by its id while registered
+  class Request {
+    public:
+    std::string id;
+    std::atomic<bool> cancelled;
+
+    Request() : id(Poco::UUIDGenerator::defaultGenerator().createRandom().toString()), cancelled(false) {
+        std::lock_guard<std::mutex> guard(requestLock);
+        requestMap[id] = &cancelled;
+    }
+
+    ~Request() {
+        std::lock_guard<std::mutex> guard(requestLock);
+        requestMap.erase(id);
+    }
+  };
+
+  // Tells processors that the client closed the connection, also while
+  // they have nothing to write that could fail. Polled from their loops at
+  // most every 100 ms, nothing is read from the socket.
+  class ClientCheck {
+    public:
+    Poco::Net::StreamSocket socket;
+    std::atomic<int64_t> nextPoll;
+
+    ClientCheck(Poco::Net::StreamSocket & socket) : socket(socket), nextPoll(0) {}
+
+    bool operator()() {
+        int64_t now = std::chrono::duration_cast<std::chrono::milliseconds>(
+            std::chrono::steady_clock::now().time_since_epoch()).count();
+        int64_t next = nextPoll.load();
+        if(now < next || !nextPoll.compare_exchange_strong(next, now + 100)) {
+            return false;
+        }
+        try {
+            // Clients send nothing after the request, so the socket only
+            // turns readable with nothing to read once it is closed
+            return socket.poll(Poco::Timespan(0), Poco::Net::Socket::SELECT_READ | Poco::Net::Socket::SELECT_ERROR) &&
+                   socket.available() <= 0;
+        } catch (...) {
+            return true;
+        }
+    }
+  };
+
+  static bool cancelRequest(const std::string & id) {
+    std::lock_guard<std::mutex> guard(requestLock);
+    auto it = requestMap.find(id);
+    if(it == requestMap.end()) {
+        return false;
+    }
+    *it->second = true;
+    return true;
+  }
+
+  static std::string readParamDigest(const std::string & readParam) {
+    Poco::SHA2Engine engine(Poco::SHA2Engine::SHA_256);
+    engine.update(readParam);
+    return Poco::DigestEngine::digestToHex(engine.digest());
+  }
+
+  static bool getReadParam(const std::string & digest, std::string & readParam) {
+    std::lock_guard<std::mutex> guard(readParamLock);
+    auto it = readParamCache.find(digest);
+    if(it == readParamCache.end()) {
+        return false;
+    }
+    readParam = it->second;
+    return true;
+  }
+
+  static void putReadParam(const std::string & digest, const std::string & readParam) {
+    std::lock_guard<std::mutex> guard(readParamLock);
+    if(readParamCache.count(digest)) {
+        return;
+    }
+    readParamCache[digest] = readParam;
+    readParamOrder.push_back(digest);
+    if(readParamOrder.size() > readParamCacheSize) {
+        readParamCache.erase(readParamOrder.front());
+        readParamOrder.pop_front();
+    }
+  }
+
+  // Row group list such as "0-3,7"
+  static std::vector<int> parseRowGroups(const std::string & spec) {
+    std::vector<int> rowGroups;
+    std::istringstream specStream(spec);
+    std::string item;
+    while(std::getline(specStream, item, ',')) {
+        auto dash = item.find('-');
+        int first = std::stoi(item.substr(0, dash));
+        int last = dash == std::string::npos ? first : std::stoi(item.substr(dash + 1));
+        for(int rowGroup = first; rowGroup <= last; rowGroup++) {
+            rowGroups.push_back(rowGroup);
+        }
+    }
+    return rowGroups;
+  }
+
   virtual void handleRequest(Poco::Net::HTTPServerRequest &req, Poco::Net::HTTPServerResponse &resp)
   {
     if(verbose) {
       cout << DikeUtil().Yellow() << DikeUtil().Now() << " DN Start " << DikeUtil().Reset() << endl;
     }
 
-    if(!req.has("ReadParam")) {
+    // Client gave up on a running pushdown
+    if(req.has("NdpCancel")) {
+        if(cancelRequest(req.get("NdpCancel"))) {
+            resp.setStatus(Poco::Net::HTTPResponse::HTTP_OK);
+        } else {
+            resp.setStatus(Poco::Net::HTTPResponse::HTTP_NOT_FOUND);
+        }
+        resp.setContentLength(0);
+        resp.send().flush();
+        return;
+    }
+
+    string readParam;
+    if(req.has("ReadParam")) {
+        readParam = req.get("ReadParam");
+        // Client offers to send the digest alone from now on
+        if(req.has("ReadParamDigest") && readParamDigest(readParam) == req.get("ReadParamDigest")) {
+            putReadParam(req.get("ReadParamDigest"), readParam);
+            resp.set("ReadParamDigest", req.get("ReadParamDigest"));
+        }
+    } else if(req.has("ReadParamDigest")) {
+        if(!getReadParam(req.get("ReadParamDigest"), readParam)) {
+            // Evicted or restarted, client resends the full ReadParam
+            resp.setStatus(Poco::Net::HTTPResponse::HTTP_PRECONDITION_FAILED);
+            resp.setContentLength(0);
+            resp.send().flush();
+            return;
+        }
+    }
+
+    if(readParam.empty()) {
         HTTPRequest hdfs_req((HTTPRequest)req);
         string host = req.getHost();    
         host = host.substr(0, host.find(':'));
@@ -181,10 +437,16 @@ public:
         std::istream& fromHDFS = hdfs_session.receiveResponse(hdfs_resp);
         (HTTPResponse &)resp = hdfs_resp;
         resp.setStatus(Poco::Net::HTTPResponse::HTTP_OK);
-        resp.setContentLength(Poco::Net::HTTPMessage::UNKNOWN_CONTENT_LENGTH);
         resp.setContentType("application/octet-stream");
-        resp.setChunkedTransferEncoding(false);    
-        resp.setKeepAlive(false);
+        // Framed by length or chunks, so the client can reuse the connection
+        if(hdfs_resp.getContentLength64() != Poco::Net::HTTPMessage::UNKNOWN_CONTENT_LENGTH) {
+            resp.setChunkedTransferEncoding(false);
+            resp.setContentLength64(hdfs_resp.getContentLength64());
+        } else {
+            resp.setContentLength(Poco::Net::HTTPMessage::UNKNOWN_CONTENT_LENGTH);
+            resp.setChunkedTransferEncoding(true);
+        }
+        resp.setKeepAlive(req.getKeepAlive());
         resp.set("Access-Control-Allow-Methods", "GET");
         resp.set("Access-Control-Allow-Origin", "*");
 
@@ -197,23 +459,33 @@ public:
         return;
     }
 
+    // Cached redirects skip the placement by the gateway, hold the
+    // request cap here instead
+    if(dikeNodeType == STORAGE_NODE && req.has("NdpCachedRedirect") &&
+       dataNodeReqCount >= dikeStorageMaxRequests) {
+        resp.setStatus(Poco::Net::HTTPResponse::HTTP_SERVICE_UNAVAILABLE);
+        resp.set("NdpCapacity", "0");
+        resp.setContentLength(0);
+        resp.send().flush();
+        return;
+    }
+
     dataNodeReqCount += 1;
-    if(req.has("ReadParam")) {
+    if(!readParam.empty()) {
         resp.setStatus(Poco::Net::HTTPResponse::HTTP_OK);
-        resp.setContentLength(Poco::Net::HTTPMessage::UNKNOWN_CONTENT_LENGTH);
         resp.setContentType("application/octet-stream");
-        resp.setChunkedTransferEncoding(false);    
-        resp.setKeepAlive(false);
+        resp.setChunkedTransferEncoding(true);
         resp.set("Access-Control-Allow-Methods", "GET");
         resp.set("Access-Control-Allow-Origin", "*");
 
-        string readParam = req.get("ReadParam");
         if(verbose) {
             cout << DikeUtil().Blue();
         }
         
         DikeProcessor * dikeProcessor = NULL;
+        Request request;
         DikeProcessorConfig dikeSQLConfig;
+        std::vector<int> rowGroups;
 
         std::istringstream readParamStream(readParam.c_str());      
         std::istream& xmlStream(readParamStream);        
@@ -233,7 +505,18 @@ public:
             if(dikeSQLConfig["Name"].compare("TpchQ1") == 0){
                 dikeProcessor = (DikeProcessor *) new TpchQ1;
             } else if (dikeSQLConfig["Name"].compare("Lambda") == 0) {
-                dikeProcessor = (DikeProcessor *) new LambdaProcessor;
+                if(req.has("NdpRowGroups")) {
+                    // Several row groups, each run by its own processor below
+                    rowGroups = parseRowGroups(req.get("NdpRowGroups"));
+                    resp.set("NdpRowGroups", req.get("NdpRowGroups"));
+                } else {
+                    dikeProcessor = (DikeProcessor *) new LambdaProcessor;
+                    // Lambda output can be restarted after any complete column batch
+                    resp.set("NdpResume", "batch");
+                    if(req.has("ResumeBatch")) {
+                        dikeSQLConfig["ResumeBatch"] = req.get("ResumeBatch");
+                    }
+                }
             } else {
                 dikeProcessor = (DikeProcessor *) new DikeSQL;
             }
@@ -266,21 +549,60 @@ public:
                 }
             }
             
+            // Let the client account for the input scanned on its behalf,
+            // the compressed row groups for parquet and the block for CSV
+            if(!rowGroups.empty() || dikeSQLConfig.count("Configuration.RowGroupIndex") > 0) {
+                std::vector<int> scanned = rowGroups;
+                if(scanned.empty()) {
+                    try {
+                        scanned.push_back(std::stoi(dikeSQLConfig["Configuration.RowGroupIndex"]));
+                    } catch (std::exception & e) {
+                    }
+                }
+                int64_t scannedBytes = lambda::InputNode::RowGroupBytes(dikeSQLConfig, scanned);
+                if(scannedBytes > 0) {
+                    resp.set("NdpScannedBytes", std::to_string(scannedBytes));
+                }
+            } else if(dikeSQLConfig.count("Configuration.BlockSize") > 0 &&
+               dikeSQLConfig["Configuration.BlockSize"] != "0") {
+                resp.set("NdpScannedBytes", dikeSQLConfig["Configuration.BlockSize"]);
+            }
+            // Lets clients weigh pushdown against plain reads
+            resp.set("NdpLoad", std::to_string((double)dataNodeReqCount / std::max(1, dikeStorageMaxRequests)));
+            NameNodeHandler::setCapacity(resp);
+            // Lets clients stop the processing early
+            resp.set("NdpRequestId", request.id);
+
             if(verbose) {
                 cout << DikeUtil().Reset() << endl;
             }
 
+            // Results go out chunked on the request connection, so clients
+            // can reuse it for their next request
             ostream& toClient = resp.send();
             toClient.flush();
-#if 1
-            Poco::Net::HTTPServerRequestImpl & req_impl = (Poco::Net::HTTPServerRequestImpl &)req;          
-            Poco::Net::StreamSocket toClientSocket = req_impl.detachSocket();                                
-            DikeOut output(&toClientSocket);
-#else
+            Poco::Net::HTTPServerRequestImpl & req_impl = (Poco::Net::HTTPServerRequestImpl &)req;
             DikeOut output(&toClient);
-#endif
+            ClientCheck clientCheck(req_impl.socket());
             
-            dikeProcessor->Run(dikeSQLConfig, &output);       
+            if(!rowGroups.empty()) {
+                for(int i = 0; i < rowGroups.size(); i++) {
+                    dikeSQLConfig["Configuration.RowGroupIndex"] = std::to_string(rowGroups[i]);
+                    DikeFramedOut framedOutput(&output, rowGroups[i]);
+                    DikeProcessor * rowGroupProcessor = (DikeProcessor *) new LambdaProcessor;
+                    rowGroupProcessor->cancelled = &request.cancelled;
+                    rowGroupProcessor->clientClosed = std::ref(clientCheck);
+                    rowGroupProcessor->Run(dikeSQLConfig, &framedOutput);
+                    delete rowGroupProcessor;
+                    if(framedOutput.end() < 0 || request.cancelled) {
+                        break;
+                    }
+                }
+            } else {
+                dikeProcessor->cancelled = &request.cancelled;
+                dikeProcessor->clientClosed = std::ref(clientCheck);
+                dikeProcessor->Run(dikeSQLConfig, &output);       
+            }
         } catch (Poco::NotFoundException&) {
             cout << DikeUtil().Red() << "Exeption while parsing readParam" << endl;
             cout << DikeUtil().Reset() << endl;
@@ -421,7 +743,8 @@ class DikeServerApp : public ServerApplication
     loadConfiguration(Poco::Util::Application::PRIO_DEFAULT);   
     loadDikeConfig();
 
-    dataNodeParams->setKeepAlive(false);
+    // Pooled clients reuse connections across pushdown requests
+    dataNodeParams->setKeepAlive(true);
     dataNodeParams->setMaxThreads(16);
     dataNodeParams->setMaxQueued(128);
         
@@ -474,4 +797,9 @@ int main(int argc, char** argv)
 
 std::mutex NameNodeHandler::lock;
 std::map<std::string, HTTPResponse> NameNodeHandler::responseMap;
+std::mutex DataNodeHandler::readParamLock;
+std::map<std::string, std::string> DataNodeHandler::readParamCache;
+std::list<std::string> DataNodeHandler::readParamOrder;
+std::mutex DataNodeHandler::requestLock;
+std::map<std::string, std::atomic<bool> *> DataNodeHandler::requestMap;
 